@@ -0,0 +1,135 @@
+package com.nothingworksright.fragmentboss;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BackStackBenchmark measures the lookups and rebuilds behind FragmentBoss's back stack methods,
+ * against a {@link SimulatedHost} holding back stacks of different depths.
+ *
+ * The layers alternate between two containers. Each rebuild benchmark moves the layer that costs
+ * the most, so the back stack keeps its depth and every call is the worst case: resurface moves
+ * the bottom layer to the top, bury moves the top layer to the bottom, setBackStack asks for the
+ * bottom layer on top, and remove takes out the middle layer, which is added back on top between
+ * calls. Run with the GC profiler, as the jmh task does, each rebuild also reports what it
+ * allocates per call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class BackStackBenchmark {
+
+    private static final String TAG_TITLE = "Layer";
+    private static final int[] CONTAINERS = {1, 2};
+
+    @Param({"10", "100", "1000"})
+    public int depth;
+
+    @Param({"BATCHED", "SEQUENTIAL"})
+    public RebuildMode mode;
+
+    private SimulatedHost host;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        host = build(depth);
+    }
+
+    /**
+     * Called to build a back stack with one layer per dbRecordId, from 0 up to depth - 1.
+     */
+    static SimulatedHost build(int depth) {
+        SimulatedHost host = new SimulatedHost();
+        for (int entry = 0; entry < depth; entry++) {
+            push(host, FragmentTag.of(TAG_TITLE, CONTAINERS[entry % CONTAINERS.length], entry));
+        }
+        return host;
+    }
+
+    static void push(SimulatedHost host, FragmentTag tag) {
+        BackStackRebuilder.push(host, tag, new SimulatedHost.SimFragment(), RebuildMode.BATCHED);
+    }
+
+    @Benchmark
+    public SimulatedHost.SimFragment findFragmentByTagTitleAndDbId() {
+        BackStackIndex<SimulatedHost.SimFragment> index = host.index();
+        BackStackIndex.Layer layer = index.findByTagTitleAndDbId(TAG_TITLE, depth / 2);
+        return layer != null ? index.fragmentOf(layer) : null;
+    }
+
+    @Benchmark
+    public int resurfaceFragmentInBackStack() {
+        String bottom = host.index().layers().get(0).tagCombo;
+        return BackStackRebuilder.resurface(host, bottom, mode);
+    }
+
+    @Benchmark
+    public int buryFragmentInBackStack() {
+        String top = host.index().top().tagCombo;
+        return BackStackRebuilder.bury(host, top, mode);
+    }
+
+    @Benchmark
+    public int setBackStack() {
+        List<FragmentTag> desired = new ArrayList<>(host.index().tags());
+        desired.add(desired.remove(0));
+        return BackStackRebuilder.apply(host, desired, null, mode);
+    }
+
+    @Benchmark
+    public int removeFragmentByTagTitleAndDbId(Removal removal) {
+        return BackStackRebuilder.remove(removal.host, TAG_TITLE,
+                removal.middle.getDbRecordId(), removal.mode);
+    }
+
+    /**
+     * Removal keeps its own back stack, and puts the removed layer back on top after each call.
+     */
+    @State(Scope.Thread)
+    public static class Removal {
+
+        @Param({"10", "100", "1000"})
+        public int depth;
+
+        @Param({"BATCHED", "SEQUENTIAL"})
+        public RebuildMode mode;
+
+        SimulatedHost host;
+        FragmentTag middle;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            host = build(depth);
+        }
+
+        @Setup(Level.Invocation)
+        public void chooseMiddle() {
+            middle = host.index().layers().get(depth / 2).tag;
+        }
+
+        @TearDown(Level.Invocation)
+        public void restoreMiddle() {
+            push(host, middle);
+        }
+
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.nothingworksright.fragmentboss;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TagCodecBenchmark measures joining and splitting a tagCombo.
+ *
+ * FragmentBoss.tagJoiner and FragmentBoss.tagSplitter hand the work to {@link FragmentTag}, which
+ * is measured directly, because FragmentBoss itself needs the Android framework.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TagCodecBenchmark {
+
+    private String tagTitle = "Detail";
+    private int containerViewId = 2131492944;
+    private long dbRecordId = 42L;
+    private String tagCombo = FragmentTag.join(tagTitle, containerViewId, dbRecordId);
+
+    @Benchmark
+    public String tagJoiner() {
+        return FragmentTag.join(tagTitle, containerViewId, dbRecordId);
+    }
+
+    @Benchmark
+    public String[] tagSplitter() {
+        return FragmentTag.split(tagCombo);
+    }
+
+    @Benchmark
+    public FragmentTag parse() {
+        return FragmentTag.parse(tagCombo);
+    }
+
+    @Benchmark
+    public FragmentTag valueOf() {
+        return FragmentTag.valueOf(tagCombo);
+    }
+
+}
@@ -0,0 +1,314 @@
+package com.nothingworksright.fragmentboss;
+
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * BackStackBatch records FragmentBoss operations against an in-memory model of the back stack.
+ *
+ * A batch is handed to the {@link Block} passed to
+ * {@link FragmentBoss#batch(FragmentManager, BackStackBatch.Block)}. Each method changes only the
+ * model, in the same way the FragmentBoss method of the same name would change the back stack.
+ * Once the block returns, the net result is applied with a single rebuild, so a sequence of
+ * removes, buries, and resurfaces costs one pass instead of one per call.
+ *
+ * The model starts as a copy of the back stack at the moment the batch runs, after every earlier
+ * operation. A batch must only be used inside its block, on the UI thread.
+ */
+public final class BackStackBatch {
+
+    private final FragmentManager fm;
+    private final FragmentShelf shelf;
+    private final ArrayList<FragmentTag> model;
+    private final HashMap<FragmentTag, Fragment> newFragments = new HashMap<>();
+    private final HashMap<FragmentTag, FragmentFactory> newFactories = new HashMap<>();
+    private final ArrayList<TagPredicate> removed = new ArrayList<>();
+
+    BackStackBatch(FragmentManager fm) {
+        this(fm, FragmentShelf.of(fm), FragmentManagerHost.indexOf(fm).tags());
+    }
+
+    /**
+     * @param fm FragmentManager: The fragment manager the batch is applied to.
+     * @param shelf FragmentShelf: The shelf of the fragment manager.
+     * @param backStack List: The tags of the back stack, bottom first.
+     */
+    BackStackBatch(FragmentManager fm, FragmentShelf shelf, List<FragmentTag> backStack) {
+        this.fm = fm;
+        this.shelf = shelf;
+        this.model = new ArrayList<>(backStack);
+    }
+
+    /**
+     * Called to get the modeled back stack, with every operation recorded so far.
+     *
+     * @return The return value is an unmodifiable List of the modeled tags, bottom first.
+     */
+    public List<FragmentTag> getBackStack() {
+        return Collections.unmodifiableList(model);
+    }
+
+    /**
+     * Called to record a replace. Works like
+     * {@link FragmentBoss#replaceFragmentInContainer(int, FragmentManager, Fragment, String)}.
+     * If the tagCombo is already modeled, it is resurfaced, and the fragment is not used.
+     *
+     * @param fragment Fragment: The fragment to be placed into the activity.
+     * @param tagCombo String: The tagCombo of the fragment. The containerViewId is taken from it.
+     *
+     * @return The return value is this BackStackBatch, so that calls can be chained.
+     */
+    public BackStackBatch replace(Fragment fragment, String tagCombo) {
+        if (fragment != null && tagCombo != null) {
+            FragmentTag tag = FragmentTag.valueOf(tagCombo);
+            if (!moveToTop(tag)) {
+                model.add(tag);
+                newFragments.put(tag, fragment);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Called to record a replace, creating the fragment only if it is needed. Works like
+     * {@link FragmentBoss#replaceFragmentInContainer(int, FragmentManager, FragmentFactory,
+     * String)}.
+     *
+     * @param factory FragmentFactory: Creates the fragment, when there isn't one already.
+     * @param tagCombo String: The tagCombo of the fragment. The containerViewId is taken from it.
+     *
+     * @return The return value is this BackStackBatch, so that calls can be chained.
+     */
+    public BackStackBatch replace(FragmentFactory factory, String tagCombo) {
+        if (factory != null && tagCombo != null) {
+            FragmentTag tag = FragmentTag.valueOf(tagCombo);
+            if (!moveToTop(tag)) {
+                model.add(tag);
+                newFactories.put(tag, factory);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Called to record a resurface. Works like
+     * {@link FragmentBoss#resurfaceFragmentInBackStack(FragmentManager, String)}, including
+     * fragments that were shelved.
+     *
+     * @param desiredTagCombo String: The tagCombo of the fragment to resurface.
+     *
+     * @return The return value is this BackStackBatch, so that calls can be chained.
+     */
+    public BackStackBatch resurface(String desiredTagCombo) {
+        if (desiredTagCombo != null) {
+            FragmentTag tag = FragmentTag.valueOf(desiredTagCombo);
+            if (!moveToTop(tag) && shelf.contains(tag) && !isRemoved(tag)) {
+                model.add(tag);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Called to record a bury. Works like
+     * {@link FragmentBoss#buryFragmentInBackStack(FragmentManager, String)}.
+     *
+     * @param desiredTagCombo String: The tagCombo of the fragment to bury.
+     *
+     * @return The return value is this BackStackBatch, so that calls can be chained.
+     */
+    public BackStackBatch bury(String desiredTagCombo) {
+        if (desiredTagCombo != null) {
+            moveToEnd(FragmentTag.valueOf(desiredTagCombo), false);
+        }
+        return this;
+    }
+
+    /**
+     * Called to record a remove. Works like
+     * {@link FragmentBoss#removeFragmentByTagTitleAndDbId(FragmentManager, String, long)}.
+     *
+     * @param undesiredTagTitle String: The tagTitle of the fragments to remove.
+     * @param undesiredDbRecordId long: The dbRecordId of the fragments to remove.
+     *
+     * @return The return value is this BackStackBatch, so that calls can be chained.
+     */
+    public BackStackBatch remove(final String undesiredTagTitle, final long undesiredDbRecordId) {
+        return removeMatching(new TagPredicate() {
+            @Override
+            public boolean test(FragmentTag tag) {
+                return tag.matches(undesiredTagTitle, undesiredDbRecordId);
+            }
+        });
+    }
+
+    /**
+     * Called to record a remove of every fragment whose tag matches the predicate. Works like
+     * {@link FragmentBoss#removeFragments(FragmentManager, TagPredicate)}.
+     *
+     * @param predicate TagPredicate: Matches the tags of the fragments to remove.
+     *
+     * @return The return value is this BackStackBatch, so that calls can be chained.
+     */
+    public BackStackBatch removeMatching(TagPredicate predicate) {
+        if (predicate != null) {
+            for (int entry = model.size() - 1; entry >= 0; entry--) {
+                FragmentTag tag = model.get(entry);
+                if (predicate.test(tag)) {
+                    model.remove(entry);
+                    newFragments.remove(tag);
+                    newFactories.remove(tag);
+                }
+            }
+            removed.add(predicate);
+        }
+        return this;
+    }
+
+    /**
+     * Called to record a pop of the top fragment. Works like
+     * {@link FragmentBoss#popBackStack(FragmentManager)}.
+     *
+     * @return The return value is this BackStackBatch, so that calls can be chained.
+     */
+    public BackStackBatch pop() {
+        int modelSize = model.size();
+        if (modelSize > 0) {
+            FragmentTag tag = model.remove(modelSize - 1);
+            newFragments.remove(tag);
+            newFactories.remove(tag);
+        }
+        return this;
+    }
+
+    /**
+     * Called to check whether a recorded remove matches the tag. The fragments it matches are
+     * discarded from the shelf once the batch is applied.
+     */
+    private boolean isRemoved(FragmentTag tag) {
+        int removedSize = removed.size();
+        for (int entry = 0; entry < removedSize; entry++) {
+            if (removed.get(entry).test(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called to move a modeled tag to the top.
+     *
+     * @return The return value is true if the tag was modeled.
+     */
+    private boolean moveToTop(FragmentTag tag) {
+        return moveToEnd(tag, true);
+    }
+
+    /**
+     * Called to move a modeled tag to the top or to the bottom. With
+     * {@link ReorderScope#CONTAINER}, only the positions held by the tag's container are used.
+     *
+     * @return The return value is true if the tag was modeled.
+     */
+    private boolean moveToEnd(FragmentTag tag, boolean top) {
+        int position = model.lastIndexOf(tag);
+        if (position < 0) {
+            return false;
+        }
+        if (FragmentBoss.getReorderScope() == ReorderScope.BACK_STACK) {
+            model.remove(position);
+            model.add(top ? model.size() : 0, tag);
+            return true;
+        }
+        // The tags of the container are shifted along its own positions, toward the moved tag.
+        int containerViewId = tag.getContainerViewId();
+        int step = top ? 1 : -1;
+        int modelSize = model.size();
+        for (int entry = position + step; entry >= 0 && entry < modelSize; entry += step) {
+            if (model.get(entry).getContainerViewId() == containerViewId) {
+                model.set(position, model.get(entry));
+                position = entry;
+            }
+        }
+        model.set(position, tag);
+        return true;
+    }
+
+    /**
+     * Called, once the block has returned, to apply the modeled back stack with a single rebuild.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    int apply(RebuildMode mode) {
+        int transactions = BackStackRebuilder.apply(FragmentManagerHost.of(fm), model, factory(),
+                recordedTags(), mode);
+        return transactions + FragmentShelf.trim(fm);
+    }
+
+    /**
+     * Called to get the tags that were replaced with a recorded fragment or factory. A fragment in
+     * the back stack with one of these tags was popped or removed within the batch, so it is not
+     * reused.
+     *
+     * @return The return value is a new Set of the tags.
+     */
+    Set<FragmentTag> recordedTags() {
+        HashSet<FragmentTag> recorded = new HashSet<>(newFragments.keySet());
+        recorded.addAll(newFactories.keySet());
+        return recorded;
+    }
+
+    /**
+     * Called to discard the shelved fragments that the recorded removes match, and then get the
+     * factory for the fragments of the modeled back stack.
+     *
+     * The shelf is discarded from first, so that a fragment removed and then replaced within the
+     * batch is the recorded one, not the one that was shelved before the remove.
+     *
+     * @return The return value is the Factory, which builds shelved fragments again first, then
+     * uses the recorded fragments and factories.
+     */
+    BackStackHost.Factory<Fragment> factory() {
+        int removedSize = removed.size();
+        for (int entry = 0; entry < removedSize; entry++) {
+            shelf.discard(removed.get(entry));
+        }
+        return new BackStackHost.Factory<Fragment>() {
+            @Override
+            public Fragment newFragment(FragmentTag tag) {
+                Fragment fragment = shelf.restore(tag);
+                if (fragment == null) {
+                    fragment = newFragments.get(tag);
+                }
+                if (fragment == null) {
+                    FragmentFactory factory = newFactories.get(tag);
+                    fragment = factory != null ? factory.newFragment(tag) : null;
+                }
+                return fragment;
+            }
+        };
+    }
+
+    /**
+     * Block records operations on a batch. java.util.function.Consumer is not available on every
+     * API level this library supports, so this interface takes its place.
+     */
+    public interface Block {
+
+        /**
+         * Called on the UI thread to record operations on the batch.
+         *
+         * @param batch BackStackBatch: The batch to record operations on.
+         */
+        void record(BackStackBatch batch);
+
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.nothingworksright.fragmentboss;
+
+/**
+ * This class represents a layer from the back stack.
+ *
+ * Each layer includes a {@link #fragment}, a {@link #tagCombo}, and the {@link #fragmentTag}
+ * parsed from it.
+ *
+ * The {@link #tagCombo} is a pipe delimited string, containing a tagTitle and containerViewId
+ * at minimum, so that the FragmentManager back stack may be deconstructed and reconstructed
+ * later. It can also contain a dbRecordId to associate a database value with the fragment.
+ *
+ * @param <F> The type of the fragment, which is Fragment unless the layer belongs to a
+ *            {@link BackStackHost} other than the fragment manager.
+ */
+class BackStackBoss<F> {
+
+    public F fragment;
+    public String tagCombo;
+    public FragmentTag fragmentTag;
+
+    public int getContainerViewId() {
+        return fragmentTag.getContainerViewId();
+    }
+    public F getFragment() {
+        return fragment;
+    }
+    public String getTagCombo() {
+        return tagCombo;
+    }
+    public FragmentTag getFragmentTag() {
+        return fragmentTag;
+    }
+    public String getTagTitle() {
+        return fragmentTag.getTagTitle();
+    }
+    public long getDbRecordId() {
+        return fragmentTag.getDbRecordId();
+    }
+
+    public void setFragment(F fragment) {
+        this.fragment = fragment;
+    }
+    public void setTagCombo(String tagCombo) {
+        this.tagCombo = tagCombo;
+    }
+    public void setFragmentTag(FragmentTag fragmentTag) {
+        this.fragmentTag = fragmentTag;
+    }
+
+}
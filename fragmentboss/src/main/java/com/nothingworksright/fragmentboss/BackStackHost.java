@@ -0,0 +1,113 @@
+package com.nothingworksright.fragmentboss;
+
+import java.util.List;
+
+/**
+ * BackStackHost is the small part of a fragment manager that the {@link BackStackRebuilder}
+ * needs in order to move layers around in a back stack.
+ *
+ * On a device, the host is a {@link FragmentManagerHost}, and the fragments are
+ * android.support.v4.app.Fragment objects. Because the rebuild algorithms only talk to this
+ * interface, they can also run against an in-memory host on a plain JVM, to measure and test
+ * them without a device.
+ *
+ * All methods are called on the UI thread.
+ *
+ * @param <F> The type of the fragments held by the host.
+ */
+interface BackStackHost<F> {
+
+    /**
+     * Called to get the index of the back stack, which locates its layers and their fragments.
+     */
+    BackStackIndex<F> index();
+
+    /**
+     * Called to check whether a fragment currently has a view.
+     */
+    boolean hasView(F fragment);
+
+    /**
+     * Called to check whether a fragment is added to the host.
+     */
+    boolean isAdded(F fragment);
+
+    /**
+     * Called to check whether a fragment is detached from its container.
+     */
+    boolean isDetached(F fragment);
+
+    /**
+     * Called to pop the given layer and every layer above it.
+     *
+     * @param layer Layer: The lowest layer to pop, taken from the index.
+     * @param immediate boolean: True to pop right away, false to queue the pop with the other
+     *                  pending transactions.
+     */
+    void popFrom(BackStackIndex.Layer layer, boolean immediate);
+
+    /**
+     * Called to start a new transaction.
+     */
+    Transaction<F> beginTransaction();
+
+    /**
+     * Called to run every queued transaction.
+     */
+    void executePendingTransactions();
+
+    /**
+     * Called after a rebuild that added covered fragments without their views.
+     *
+     * @param tagCombos List: The tagCombos of the deferred fragments, bottom first.
+     * @param createLater boolean: True if the views should be created in later frames, rather
+     *                    than when each fragment surfaces.
+     */
+    void viewsDeferred(List<String> tagCombos, boolean createLater);
+
+    /**
+     * Transaction is the part of a fragment transaction that the rebuild algorithms use.
+     *
+     * @param <F> The type of the fragments held by the host.
+     */
+    interface Transaction<F> {
+
+        void add(int containerViewId, F fragment, String tag);
+
+        void remove(F fragment);
+
+        void show(F fragment);
+
+        void hide(F fragment);
+
+        void attach(F fragment);
+
+        void detach(F fragment);
+
+        void setAllowOptimization(boolean allowOptimization);
+
+        void addToBackStack(String name);
+
+        void commit();
+
+        void commitNow();
+
+    }
+
+    /**
+     * Factory creates a fragment for a tag that is not in the back stack.
+     *
+     * @param <F> The type of the fragments held by the host.
+     */
+    interface Factory<F> {
+
+        /**
+         * Called to create a new fragment for a tag.
+         *
+         * @return The return value is a new fragment, or null to leave the tag out.
+         */
+        F newFragment(FragmentTag tag);
+
+    }
+
+}
@@ -0,0 +1,499 @@
+package com.nothingworksright.fragmentboss;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BackStackIndex keeps a parsed copy of a fragment manager's back stack, so that layers can be
+ * located without walking and splitting every back stack entry.
+ *
+ * One index is kept per fragment manager, by its {@link FragmentManagerHost}, which marks the
+ * index stale whenever the back stack changes. The next lookup brings it up to date. Layers below
+ * the first changed entry are kept as they are, so only the entries that are new since the last
+ * lookup are parsed into a {@link FragmentTag}. The back stack is read through a {@link Source},
+ * so the same index also serves a back stack that is not a fragment manager's.
+ *
+ * A back stack entry that FragmentBoss did not add, one with no name or a name that is not a
+ * tagCombo, is kept as a layer with no tag, so that every layer's position is its position in the
+ * back stack. Such a layer is never found by a lookup, and a rebuild that pops it leaves it out.
+ *
+ * Layers are indexed by tagCombo, by tagTitle, and by containerViewId. Lookups by tagCombo and
+ * the top of the back stack check are O(1). Lookups by tagTitle and dbRecordId, and by container,
+ * are O(k), where k is the number of layers sharing that tagTitle or container.
+ *
+ * The index holds its fragments weakly, so that it never keeps an activity alive. All methods
+ * must be called on the UI thread. A {@link Snapshot} of the index may be read on any thread.
+ *
+ * @param <F> The type of the fragments in the back stack.
+ */
+final class BackStackIndex<F> {
+
+    private final Source<F> source;
+    private final ArrayList<Layer> layers = new ArrayList<>();
+    private final HashMap<String, Layer> byTagCombo = new HashMap<>();
+    private final HashMap<String, ArrayList<Layer>> byTagTitle = new HashMap<>();
+    private final HashMap<Integer, ArrayList<Layer>> byContainer = new HashMap<>();
+    private boolean stale = true;
+    private Snapshot<F> snapshot;
+
+    /**
+     * @param source Source: Reads the back stack. The index keeps it, so it should not hold an
+     *               activity strongly.
+     */
+    BackStackIndex(Source<F> source) {
+        this.source = source;
+    }
+
+    /**
+     * Called whenever the back stack changes, to bring the index up to date on the next lookup.
+     */
+    void onBackStackChanged() {
+        stale = true;
+    }
+
+    /**
+     * Called to get the tags of the back stack, bottom first.
+     *
+     * @return The return value is a new, unmodifiable List of the tag of every layer that has
+     * one.
+     */
+    List<FragmentTag> tags() {
+        refresh();
+        int layersSize = layers.size();
+        ArrayList<FragmentTag> tags = new ArrayList<>(layersSize);
+        for (int entry = 0; entry < layersSize; entry++) {
+            FragmentTag tag = layers.get(entry).tag;
+            if (tag != null) {
+                tags.add(tag);
+            }
+        }
+        return Collections.unmodifiableList(tags);
+    }
+
+    /**
+     * Called to get an immutable copy of the index, which may be read on any thread. The copy is
+     * made once per change to the back stack.
+     *
+     * @return The return value is the Snapshot of the back stack as it is now.
+     */
+    Snapshot<F> snapshot() {
+        refresh();
+        if (snapshot == null) {
+            snapshot = new Snapshot<>(this);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Called to get the layers of the back stack, bottom first.
+     *
+     * @return The return value is the live list of layers. Do not change it, and do not keep it
+     * past the next change to the back stack.
+     */
+    List<Layer> layers() {
+        refresh();
+        return layers;
+    }
+
+    /**
+     * Called to get the number of layers in the back stack.
+     */
+    int size() {
+        refresh();
+        return layers.size();
+    }
+
+    /**
+     * Called to get the layer on the top of the back stack.
+     *
+     * @return The return value is the top Layer, or null if the back stack is empty.
+     */
+    Layer top() {
+        refresh();
+        int size = layers.size();
+        return size > 0 ? layers.get(size - 1) : null;
+    }
+
+    /**
+     * Called to locate the highest layer with the given tagCombo.
+     *
+     * @return The return value is the matching Layer, or null if no layer matches.
+     */
+    Layer findByTagCombo(String tagCombo) {
+        refresh();
+        return tagCombo != null ? byTagCombo.get(tagCombo) : null;
+    }
+
+    /**
+     * Called to locate the lowest layer with the given tagTitle and dbRecordId.
+     *
+     * @return The return value is the matching Layer, or null if no layer matches.
+     */
+    Layer findByTagTitleAndDbId(String tagTitle, long dbRecordId) {
+        refresh();
+        ArrayList<Layer> bucket = tagTitle != null ? byTagTitle.get(tagTitle) : null;
+        if (bucket != null) {
+            int bucketSize = bucket.size();
+            for (int entry = 0; entry < bucketSize; entry++) {
+                Layer layer = bucket.get(entry);
+                if (layer.tag.getDbRecordId() == dbRecordId) {
+                    return layer;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called to get the layers placed in the given container, bottom first.
+     *
+     * @return The return value is the live list of layers in the container. Do not change it, and
+     * do not keep it past the next change to the back stack.
+     */
+    List<Layer> inContainer(int containerViewId) {
+        refresh();
+        List<Layer> bucket = byContainer.get(containerViewId);
+        return bucket != null ? bucket : Collections.<Layer>emptyList();
+    }
+
+    /**
+     * Called to find the fragment on top of a container, counting only the layers below the given
+     * index of the back stack.
+     *
+     * @param containerViewId int: Identifier of the container.
+     * @param belowIndex int: Only layers below this index of the back stack are counted.
+     *
+     * @return The return value is the fragment on top of the container, or null if there is none.
+     */
+    F topBelow(int containerViewId, int belowIndex) {
+        List<Layer> inContainer = inContainer(containerViewId);
+        for (int entry = inContainer.size() - 1; entry >= 0; entry--) {
+            Layer layer = inContainer.get(entry);
+            if (layer.position < belowIndex) {
+                return fragmentOf(layer);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Called to bring the index up to date with the fragment manager's back stack.
+     *
+     * Back stack entries keep their id and name for as long as they are on the back stack, so the
+     * layers are compared by entry id and name from the bottom up. An id may be handed out again
+     * after its entry is popped, which is why the name is compared too. Layers above the first
+     * mismatch are dropped, and the remaining entries are parsed and added.
+     */
+    private void refresh() {
+        if (!stale || !source.isAlive()) {
+            return;
+        }
+        stale = false;
+
+        // Count the layers that are unchanged since the last refresh.
+        int backStackEntryCount = source.getBackStackEntryCount();
+        int kept = 0;
+        int layersSize = layers.size();
+        while (kept < layersSize && kept < backStackEntryCount) {
+            Layer layer = layers.get(kept);
+            String name = source.getBackStackEntryNameAt(kept);
+            if (layer.entryId != source.getBackStackEntryIdAt(kept)
+                    || (layer.tagCombo == null ? name != null : !layer.tagCombo.equals(name))) {
+                break;
+            }
+            kept++;
+        }
+
+        if (kept < layersSize || kept < backStackEntryCount) {
+            snapshot = null;
+        }
+
+        // Drop the changed layers from the top down.
+        for (int entry = layersSize - 1; entry >= kept; entry--) {
+            unindex(layers.remove(entry));
+        }
+
+        // Parse and index the new entries.
+        for (int entry = kept; entry < backStackEntryCount; entry++) {
+            String tagCombo = source.getBackStackEntryNameAt(entry);
+            FragmentTag tag = parse(tagCombo);
+            Layer layer = new Layer(
+                    source.getBackStackEntryIdAt(entry),
+                    entry,
+                    tagCombo,
+                    tag,
+                    tag != null ? source.findFragmentByTag(tagCombo) : null
+            );
+            layers.add(layer);
+            index(layer);
+        }
+    }
+
+    /**
+     * Called to parse the name of a back stack entry.
+     *
+     * @return The return value is the FragmentTag, or null if the entry was not added by
+     * FragmentBoss.
+     */
+    private static FragmentTag parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return FragmentTag.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void index(Layer layer) {
+        if (layer.tag == null) {
+            return;
+        }
+        byTagCombo.put(layer.tagCombo, layer);
+        bucket(byTagTitle, layer.tag.getTagTitle()).add(layer);
+        bucket(byContainer, layer.tag.getContainerViewId()).add(layer);
+    }
+
+    private void unindex(Layer layer) {
+        if (layer.tag == null) {
+            return;
+        }
+        // Layers are dropped from the top down, so each one is last in its buckets.
+        unbucket(byTagTitle, layer.tag.getTagTitle(), layer);
+        unbucket(byContainer, layer.tag.getContainerViewId(), layer);
+        if (byTagCombo.get(layer.tagCombo) == layer) {
+            byTagCombo.remove(layer.tagCombo);
+            // A lower layer may share the tagCombo. Point the tagCombo at the highest one left.
+            ArrayList<Layer> bucket = byTagTitle.get(layer.tag.getTagTitle());
+            if (bucket != null) {
+                for (int entry = bucket.size() - 1; entry >= 0; entry--) {
+                    Layer lower = bucket.get(entry);
+                    if (lower.tagCombo.equals(layer.tagCombo)) {
+                        byTagCombo.put(lower.tagCombo, lower);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static <K> ArrayList<Layer> bucket(HashMap<K, ArrayList<Layer>> map, K key) {
+        ArrayList<Layer> bucket = map.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            map.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private static <K> void unbucket(HashMap<K, ArrayList<Layer>> map, K key, Layer layer) {
+        ArrayList<Layer> bucket = map.get(key);
+        if (bucket != null) {
+            int last = bucket.size() - 1;
+            if (last >= 0 && bucket.get(last) == layer) {
+                bucket.remove(last);
+            } else {
+                bucket.remove(layer);
+            }
+            if (bucket.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Called to resolve a layer's fragment. The fragment is held weakly, so it is looked up in the
+     * fragment manager again if it has been released, or if it is no longer added under the
+     * layer's tagCombo.
+     *
+     * @return The return value is the fragment of the layer, or null if it cannot be found or the
+     * layer has no tag.
+     */
+    F fragmentOf(Layer layer) {
+        if (layer.tag == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        F fragment = (F) layer.fragmentRef.get();
+        if (fragment == null || !source.isAddedWithTag(fragment, layer.tagCombo)) {
+            fragment = source.isAlive() ? source.findFragmentByTag(layer.tagCombo) : null;
+        }
+        return fragment;
+    }
+
+    /**
+     * This class represents a parsed layer from the back stack.
+     */
+    static final class Layer {
+
+        final int entryId;
+        final int position;
+        // The name of the back stack entry, which may be null when the tag is null.
+        final String tagCombo;
+        // Null when the back stack entry was not added by FragmentBoss.
+        final FragmentTag tag;
+        final WeakReference<Object> fragmentRef;
+
+        Layer(int entryId, int position, String tagCombo, FragmentTag tag, Object fragment) {
+            this.entryId = entryId;
+            this.position = position;
+            this.tagCombo = tagCombo;
+            this.tag = tag;
+            this.fragmentRef = new WeakReference<>(fragment);
+        }
+
+    }
+
+    /**
+     * This class represents the back stack at one point in time.
+     *
+     * A snapshot never changes once it is made, so it may be read on any thread while the UI
+     * thread changes the back stack. Its fragments are resolved when it is made, on the UI thread,
+     * and are held weakly. Lookups work like the ones of the index.
+     *
+     * @param <F> The type of the fragments in the back stack.
+     */
+    static final class Snapshot<F> {
+
+        private final List<FragmentTag> tags;
+        private final FragmentTag[] layerTags;
+        private final ArrayList<WeakReference<F>> fragments;
+        private final HashMap<String, int[]> byTagTitle = new HashMap<>();
+        private final HashMap<Integer, int[]> byContainer = new HashMap<>();
+
+        Snapshot(BackStackIndex<F> index) {
+            List<Layer> layers = index.layers;
+            int layersSize = layers.size();
+            layerTags = new FragmentTag[layersSize];
+            fragments = new ArrayList<>(layersSize);
+            for (int entry = 0; entry < layersSize; entry++) {
+                Layer layer = layers.get(entry);
+                layerTags[entry] = layer.tag;
+                fragments.add(new WeakReference<>(index.fragmentOf(layer)));
+            }
+            tags = index.tags();
+            for (Map.Entry<String, ArrayList<Layer>> bucket : index.byTagTitle.entrySet()) {
+                byTagTitle.put(bucket.getKey(), positionsOf(bucket.getValue()));
+            }
+            for (Map.Entry<Integer, ArrayList<Layer>> bucket : index.byContainer.entrySet()) {
+                byContainer.put(bucket.getKey(), positionsOf(bucket.getValue()));
+            }
+        }
+
+        /**
+         * An empty snapshot, for a back stack that has not been read yet.
+         */
+        Snapshot() {
+            tags = Collections.emptyList();
+            layerTags = new FragmentTag[0];
+            fragments = new ArrayList<>(0);
+        }
+
+        private static int[] positionsOf(ArrayList<Layer> bucket) {
+            int bucketSize = bucket.size();
+            int[] positions = new int[bucketSize];
+            for (int entry = 0; entry < bucketSize; entry++) {
+                positions[entry] = bucket.get(entry).position;
+            }
+            return positions;
+        }
+
+        /**
+         * Called to get the tags of the back stack, bottom first.
+         *
+         * @return The return value is an unmodifiable List of the tag of every layer that has
+         * one.
+         */
+        List<FragmentTag> tags() {
+            return tags;
+        }
+
+        /**
+         * Called to get the tag of the layer on the top of the back stack.
+         *
+         * @return The return value is the top FragmentTag, or null if the back stack is empty or
+         * its top entry was not added by FragmentBoss.
+         */
+        FragmentTag top() {
+            int size = layerTags.length;
+            return size > 0 ? layerTags[size - 1] : null;
+        }
+
+        /**
+         * Called to find the fragment of the lowest layer with the given tagTitle and dbRecordId.
+         *
+         * @return The return value is the matching fragment, or null if no layer matches.
+         */
+        F findByTagTitleAndDbId(String tagTitle, long dbRecordId) {
+            int[] positions = tagTitle != null ? byTagTitle.get(tagTitle) : null;
+            if (positions != null) {
+                for (int position : positions) {
+                    if (layerTags[position].getDbRecordId() == dbRecordId) {
+                        return fragments.get(position).get();
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Called to get the fragments placed in the given container, bottom first.
+         *
+         * @return The return value is a new List of the fragments that are still alive.
+         */
+        List<F> inContainer(int containerViewId) {
+            int[] positions = byContainer.get(containerViewId);
+            if (positions == null) {
+                return new ArrayList<>(0);
+            }
+            List<F> inContainer = new ArrayList<>(positions.length);
+            for (int position : positions) {
+                F fragment = fragments.get(position).get();
+                if (fragment != null) {
+                    inContainer.add(fragment);
+                }
+            }
+            return inContainer;
+        }
+
+    }
+
+    /**
+     * Source reads the back stack and the fragments of the index.
+     *
+     * @param <F> The type of the fragments in the back stack.
+     */
+    interface Source<F> {
+
+        /**
+         * Called to check whether the back stack can still be read. The index is left as it is
+         * once this returns false.
+         */
+        boolean isAlive();
+
+        int getBackStackEntryCount();
+
+        int getBackStackEntryIdAt(int position);
+
+        String getBackStackEntryNameAt(int position);
+
+        /**
+         * Called to find the added fragment with the given tag.
+         *
+         * @return The return value is the fragment, or null if there is none.
+         */
+        F findFragmentByTag(String tag);
+
+        /**
+         * Called to check whether a fragment is still added, with the given tag.
+         */
+        boolean isAddedWithTag(F fragment, String tag);
+
+    }
+
+}
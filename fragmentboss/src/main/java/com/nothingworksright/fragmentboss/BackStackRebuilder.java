@@ -0,0 +1,685 @@
+package com.nothingworksright.fragmentboss;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * BackStackRebuilder moves layers around in the fragment manager's back stack.
+ *
+ * The fragment manager's back stack can only be changed at the top. Moving a layer means popping
+ * that layer and every layer above it, and then adding the popped fragments again in their new
+ * order. The layers below the lowest layer that moves are never touched, so the cost of a move
+ * grows with the distance from the top of the back stack rather than with its depth.
+ *
+ * The algorithms only talk to a {@link BackStackHost}, which is a {@link FragmentManagerHost} on
+ * a device. These methods do not use a handler. They must be called on the UI thread. While
+ * metrics are enabled, each phase of a rebuild is a trace section, see {@link MetricsRegistry}.
+ */
+final class BackStackRebuilder {
+
+    private static volatile ReorderScope reorderScope = ReorderScope.BACK_STACK;
+
+    private BackStackRebuilder() {
+    }
+
+    /**
+     * Called to set which layers a resurface or a bury may move. Null is ignored.
+     */
+    static void setReorderScope(ReorderScope scope) {
+        if (scope != null) {
+            reorderScope = scope;
+        }
+    }
+
+    /**
+     * Called to get the reorder scope.
+     */
+    static ReorderScope getReorderScope() {
+        return reorderScope;
+    }
+
+    /**
+     * Called to replicate the current back stack in an ArrayList. The layers are taken from the
+     * {@link BackStackIndex}, so no back stack entry is parsed again.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     *
+     * @return The return value is an ArrayList of the back stack layers, bottom first.
+     */
+    static <F> ArrayList<BackStackBoss<F>> snapshot(BackStackHost<F> host) {
+        boolean traced = MetricsRegistry.beginSection(MetricsRegistry.SECTION_SNAPSHOT);
+        try {
+            BackStackIndex<F> index = host.index();
+            List<BackStackIndex.Layer> layers = index.layers();
+            int layersSize = layers.size();
+            ArrayList<BackStackBoss<F>> backStackArrayList = new ArrayList<>(layersSize);
+            for (int entry = 0; entry < layersSize; entry++) {
+                BackStackIndex.Layer layer = layers.get(entry);
+
+                // Using BackStackBoss(), set the back stack entry values.
+                BackStackBoss<F> bsb = new BackStackBoss<>();
+                bsb.setTagCombo(layer.tagCombo);
+                bsb.setFragmentTag(layer.tag);
+                bsb.setFragment(index.fragmentOf(layer));
+
+                // Add the backStackBoss to our array list.
+                backStackArrayList.add(bsb);
+            }
+            return backStackArrayList;
+        } finally {
+            MetricsRegistry.endSection(traced);
+        }
+    }
+
+    /**
+     * Called to move the layer matching the desired tagCombo to the top of the back stack.
+     *
+     * Only the desired layer and the layers above it are popped. The layers that were above the
+     * desired layer are added again in their original order, and then the desired layer is added,
+     * leaving it at the surface. Nothing happens when the desired layer is already on top, or when
+     * no layer matches. With {@link ReorderScope#CONTAINER}, the desired layer only moves to the
+     * highest position held by its container.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     * @param desiredTagCombo String: The tagCombo of the layer to resurface.
+     * @param mode RebuildMode: How the back stack is refilled.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static <F> int resurface(BackStackHost<F> host, String desiredTagCombo, RebuildMode mode) {
+        BackStackIndex<F> index = host.index();
+        BackStackIndex.Layer desired = index.findByTagCombo(desiredTagCombo);
+        if (desired == null || desired == index.top()) {
+            return 0;
+        }
+        if (reorderScope == ReorderScope.CONTAINER) {
+            // The desired layer goes last among the layers of its container.
+            List<BackStackIndex.Layer> slots;
+            slots = new ArrayList<>(index.inContainer(desired.tag.getContainerViewId()));
+            List<BackStackIndex.Layer> newOrder = new ArrayList<>(slots);
+            newOrder.remove(desired);
+            newOrder.add(desired);
+            return reorderInContainer(host, slots, newOrder, mode);
+        }
+        ArrayList<BackStackBoss<F>> backStack = snapshot(host);
+        int desiredIndex = desired.position;
+        int backStackSize = backStack.size();
+
+        // The layers above the desired layer keep their order, and the desired layer goes last.
+        List<BackStackBoss<F>> newSuffix;
+        newSuffix = new ArrayList<>(backStackSize - desiredIndex);
+        newSuffix.addAll(backStack.subList(desiredIndex + 1, backStackSize));
+        newSuffix.add(backStack.get(desiredIndex));
+
+        return rebuildFrom(host, backStack, desiredIndex, newSuffix, mode);
+    }
+
+    /**
+     * Called to add a fragment on top of the back stack, without popping anything.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     * @param tag FragmentTag: The tag to add the fragment with.
+     * @param fragment F: The fragment to add.
+     * @param mode RebuildMode: How the back stack is refilled.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static <F> int push(BackStackHost<F> host, FragmentTag tag, F fragment, RebuildMode mode) {
+        BackStackBoss<F> bsb = new BackStackBoss<>();
+        bsb.setTagCombo(tag.getTagCombo());
+        bsb.setFragmentTag(tag);
+        bsb.setFragment(fragment);
+        List<BackStackBoss<F>> none = Collections.emptyList();
+        return rebuildFrom(host, none, host.index().size(), Collections.singletonList(bsb), mode);
+    }
+
+    /**
+     * Called to move the layer matching the desired tagCombo to the bottom of the back stack.
+     *
+     * Every layer is popped. The desired layer is added first, leaving it on the bottom, and then
+     * the remaining layers are added in their original order. Nothing happens when the desired
+     * layer is already on the bottom, or when no layer matches. With
+     * {@link ReorderScope#CONTAINER}, the desired layer only moves to the lowest position held by
+     * its container, and only that position and the layers above it are popped.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     * @param desiredTagCombo String: The tagCombo of the layer to bury.
+     * @param mode RebuildMode: How the back stack is refilled.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static <F> int bury(BackStackHost<F> host, String desiredTagCombo, RebuildMode mode) {
+        BackStackIndex<F> index = host.index();
+        BackStackIndex.Layer desired = index.findByTagCombo(desiredTagCombo);
+        if (desired == null || desired.position == 0) {
+            return 0;
+        }
+        if (reorderScope == ReorderScope.CONTAINER) {
+            // The desired layer goes first among the layers of its container.
+            List<BackStackIndex.Layer> slots;
+            slots = new ArrayList<>(index.inContainer(desired.tag.getContainerViewId()));
+            List<BackStackIndex.Layer> newOrder = new ArrayList<>(slots);
+            newOrder.remove(desired);
+            newOrder.add(0, desired);
+            return reorderInContainer(host, slots, newOrder, mode);
+        }
+        ArrayList<BackStackBoss<F>> backStack = snapshot(host);
+        int desiredIndex = desired.position;
+        int backStackSize = backStack.size();
+
+        // The desired layer goes first, and the other layers keep their order.
+        List<BackStackBoss<F>> newSuffix = new ArrayList<>(backStackSize);
+        newSuffix.add(backStack.get(desiredIndex));
+        for (int entry = 0; entry < backStackSize; entry++) {
+            if (entry != desiredIndex) {
+                newSuffix.add(backStack.get(entry));
+            }
+        }
+
+        return rebuildFrom(host, backStack, 0, newSuffix, mode);
+    }
+
+    /**
+     * Called to reorder the layers of one container among the positions that container holds in
+     * the back stack. The layers of other containers keep their positions.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     * @param slots List: The layers of the container, bottom first, as they are now.
+     * @param newOrder List: The same layers, in their new order, bottom first.
+     * @param mode RebuildMode: How the back stack is refilled.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    private static <F> int reorderInContainer(BackStackHost<F> host,
+                                              List<BackStackIndex.Layer> slots,
+                                              List<BackStackIndex.Layer> newOrder,
+                                              RebuildMode mode) {
+        // Nothing below the first position whose layer changes is touched.
+        int slotsSize = slots.size();
+        int first = 0;
+        while (first < slotsSize && slots.get(first) == newOrder.get(first)) {
+            first++;
+        }
+        if (first == slotsSize) {
+            return 0;
+        }
+        ArrayList<BackStackBoss<F>> backStack = snapshot(host);
+        int fromIndex = slots.get(first).position;
+        int backStackSize = backStack.size();
+
+        // The container's positions are refilled in the new order, and every other layer stays.
+        List<BackStackBoss<F>> newSuffix = new ArrayList<>(backStackSize - fromIndex);
+        int slot = first;
+        for (int entry = fromIndex; entry < backStackSize; entry++) {
+            if (slot < slotsSize && slots.get(slot).position == entry) {
+                newSuffix.add(backStack.get(newOrder.get(slot).position));
+                slot++;
+            } else {
+                newSuffix.add(backStack.get(entry));
+            }
+        }
+
+        return rebuildFrom(host, backStack, fromIndex, newSuffix, mode);
+    }
+
+    /**
+     * Called to remove every layer matching the undesired tagTitle and dbRecordId.
+     *
+     * Only the lowest matching layer and the layers above it are popped. The layers above it that
+     * do not match are added back in their original order.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     * @param undesiredTagTitle String: The tagTitle of the layers to remove.
+     * @param undesiredDbRecordId long: The dbRecordId of the layers to remove.
+     * @param mode RebuildMode: How the back stack is refilled.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static <F> int remove(BackStackHost<F> host, final String undesiredTagTitle,
+                          final long undesiredDbRecordId, RebuildMode mode) {
+        // Find the lowest matching layer.
+        BackStackIndex.Layer undesired;
+        undesired = host.index().findByTagTitleAndDbId(undesiredTagTitle, undesiredDbRecordId);
+        if (undesired == null) {
+            return 0;
+        }
+        return removeFrom(host, undesired.position, new TagPredicate() {
+            @Override
+            public boolean test(FragmentTag tag) {
+                return tag.matches(undesiredTagTitle, undesiredDbRecordId);
+            }
+        }, mode);
+    }
+
+    /**
+     * Called to remove every layer whose tag matches the predicate, with a single rebuild.
+     *
+     * Only the lowest matching layer and the layers above it are popped. The layers above it that
+     * do not match are added back in their original order.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     * @param predicate TagPredicate: Matches the tags of the layers to remove.
+     * @param mode RebuildMode: How the back stack is refilled.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static <F> int removeMatching(BackStackHost<F> host, TagPredicate predicate,
+                                  RebuildMode mode) {
+        // Find the lowest matching layer, using the tags that are already parsed.
+        List<BackStackIndex.Layer> layers = host.index().layers();
+        int layersSize = layers.size();
+        for (int entry = 0; entry < layersSize; entry++) {
+            FragmentTag tag = layers.get(entry).tag;
+            if (tag != null && predicate.test(tag)) {
+                return removeFrom(host, entry, predicate, mode);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Called to pop from the lowest matching layer up, and add back the layers that do not match.
+     */
+    private static <F> int removeFrom(BackStackHost<F> host, int lowestIndex,
+                                      TagPredicate predicate, RebuildMode mode) {
+        ArrayList<BackStackBoss<F>> backStack = snapshot(host);
+        int backStackSize = backStack.size();
+
+        // The layers above it are kept in order, skipping any other matching layer.
+        List<BackStackBoss<F>> newSuffix;
+        newSuffix = new ArrayList<>(backStackSize - lowestIndex);
+        for (int entry = lowestIndex + 1; entry < backStackSize; entry++) {
+            BackStackBoss<F> bsb = backStack.get(entry);
+            FragmentTag tag = bsb.getFragmentTag();
+            if (tag != null && !predicate.test(tag)) {
+                newSuffix.add(bsb);
+            }
+        }
+
+        return rebuildFrom(host, backStack, lowestIndex, newSuffix, mode);
+    }
+
+    /**
+     * Called to make the back stack match the desired list of tags.
+     *
+     * The longest common prefix of the current back stack and the desired list is kept as it is.
+     * Every layer above it is popped, and the rest of the desired list is added in order. A
+     * fragment that was in the back stack is reused, otherwise the factory is asked for one. A tag
+     * that appears more than once is only added the first time, and a tag with no fragment is left
+     * out.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     * @param desiredBackStack List: The tags of the desired back stack, bottom first.
+     * @param factory Factory: Creates the fragments for tags that are not in the back stack. May
+     *                be null.
+     * @param mode RebuildMode: How the back stack is refilled.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static <F> int apply(BackStackHost<F> host, List<FragmentTag> desiredBackStack,
+                         BackStackHost.Factory<F> factory, RebuildMode mode) {
+        return apply(host, desiredBackStack, factory, null, mode);
+    }
+
+    /**
+     * Called to make the back stack match the desired list of tags, like
+     * {@link #apply(BackStackHost, List, BackStackHost.Factory, RebuildMode)}, except that the
+     * fragments of the given tags are always asked of the factory. Their layers are popped and
+     * added back with the new fragments, even when they are in the common prefix.
+     *
+     * @param fresh Set: The tags whose fragment in the back stack is not reused, such as ones that
+     *              were removed and then replaced. May be null.
+     */
+    static <F> int apply(BackStackHost<F> host, List<FragmentTag> desiredBackStack,
+                         BackStackHost.Factory<F> factory, Set<FragmentTag> fresh,
+                         RebuildMode mode) {
+        ArrayList<BackStackBoss<F>> backStack = snapshot(host);
+        int backStackSize = backStack.size();
+        int desiredSize = desiredBackStack.size();
+
+        // Find the longest common prefix.
+        int prefix = 0;
+        while (prefix < backStackSize && prefix < desiredSize
+                && backStack.get(prefix).getFragmentTag() != null
+                && backStack.get(prefix).getFragmentTag().equals(desiredBackStack.get(prefix))
+                && (fresh == null || !fresh.contains(desiredBackStack.get(prefix)))) {
+            prefix++;
+        }
+        if (prefix == backStackSize && prefix == desiredSize) {
+            return 0;
+        }
+
+        // Every tag already placed, in the prefix or in the new suffix, is only placed once.
+        HashSet<FragmentTag> placed = new HashSet<>(desiredSize * 2);
+        for (int entry = 0; entry < prefix; entry++) {
+            placed.add(backStack.get(entry).getFragmentTag());
+        }
+
+        // The popped layers can be reused by their tag.
+        HashMap<FragmentTag, BackStackBoss<F>> popped;
+        popped = new HashMap<>((backStackSize - prefix) * 2);
+        for (int entry = prefix; entry < backStackSize; entry++) {
+            BackStackBoss<F> bsb = backStack.get(entry);
+            if (bsb.getFragmentTag() != null) {
+                popped.put(bsb.getFragmentTag(), bsb);
+            }
+        }
+
+        // Build the new suffix from the rest of the desired list.
+        List<BackStackBoss<F>> newSuffix = new ArrayList<>(desiredSize - prefix);
+        for (int entry = prefix; entry < desiredSize; entry++) {
+            FragmentTag tag = desiredBackStack.get(entry);
+            if (tag == null || !placed.add(tag)) {
+                continue;
+            }
+            BackStackBoss<F> bsb = fresh != null && fresh.contains(tag) ? null : popped.get(tag);
+            if (bsb == null || bsb.getFragment() == null) {
+                F fragment = factory != null ? factory.newFragment(tag) : null;
+                if (fragment == null) {
+                    continue;
+                }
+                bsb = new BackStackBoss<>();
+                bsb.setTagCombo(tag.getTagCombo());
+                bsb.setFragmentTag(tag);
+                bsb.setFragment(fragment);
+            }
+            newSuffix.add(bsb);
+        }
+
+        // Leaving out tags may have made the new suffix the same as the current one.
+        int newSuffixSize = newSuffix.size();
+        if (newSuffixSize == backStackSize - prefix) {
+            int same = 0;
+            while (same < newSuffixSize
+                    && newSuffix.get(same) == backStack.get(prefix + same)) {
+                same++;
+            }
+            if (same == newSuffixSize) {
+                return 0;
+            }
+        }
+
+        return rebuildFrom(host, backStack, prefix, newSuffix, mode);
+    }
+
+    /**
+     * Called to pop every layer from the given index up, and then refill the back stack with the
+     * new suffix in order.
+     *
+     * How the layers are popped and added back depends on the {@link RebuildMode}. A popped layer
+     * that FragmentBoss did not add, one with no tag, cannot be added back, so it is left out.
+     *
+     * @param host BackStackHost: The host of the back stack, usually the fragment manager of the
+     *             activity.
+     * @param backStack List: The current back stack layers, bottom first, as returned by
+     *                  {@link #snapshot(BackStackHost)}.
+     * @param fromIndex int: The index of the lowest layer to pop. Nothing is popped when this is
+     *                  the size of the back stack.
+     * @param newSuffix List: The layers to add on top of the untouched layers, bottom first.
+     * @param mode RebuildMode: How the back stack is refilled.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static <F> int rebuildFrom(BackStackHost<F> host,
+                               List<BackStackBoss<F>> backStack, int fromIndex,
+                               List<BackStackBoss<F>> newSuffix, RebuildMode mode) {
+        newSuffix = withTags(newSuffix);
+        if (mode == RebuildMode.SEQUENTIAL) {
+            return rebuildSequential(host, backStack, fromIndex, newSuffix);
+        }
+        return rebuildBatched(host, fromIndex, newSuffix, mode == RebuildMode.INCREMENTAL);
+    }
+
+    /**
+     * Called to leave out the layers that have no tag.
+     *
+     * @return The return value is the given List if every layer has a tag, or a new List of the
+     * layers that have one.
+     */
+    private static <F> List<BackStackBoss<F>> withTags(List<BackStackBoss<F>> layers) {
+        int layersSize = layers.size();
+        for (int entry = 0; entry < layersSize; entry++) {
+            if (layers.get(entry).getFragmentTag() == null) {
+                List<BackStackBoss<F>> tagged = new ArrayList<>(layersSize - 1);
+                for (int other = 0; other < layersSize; other++) {
+                    if (layers.get(other).getFragmentTag() != null) {
+                        tagged.add(layers.get(other));
+                    }
+                }
+                return tagged;
+            }
+        }
+        return layers;
+    }
+
+    /**
+     * Called to queue the pop and every add, and then run them all with a single call to
+     * executePendingTransactions. Each add allows optimization, so a fragment that is popped and
+     * added back is not torn down.
+     *
+     * Only the top layer of each container needs a view. A covered layer, one with a higher layer
+     * in the same container, whose fragment has no view yet is added detached, in the same
+     * transaction as its add, so a rebuild inflates at most one view per container. A covered
+     * fragment that still has a view keeps it. The deferred fragments are handed to the host,
+     * which on a device attaches each one once it becomes the top of its container, by the
+     * {@link ViewReattacher}. With createLater, the {@link FrameScheduler} also attaches the
+     * deferred fragments in later frames, nearest to the top first.
+     *
+     * Only containers in {@link SurfaceMode#HIDE_SHOW} defer views, because a covered fragment in
+     * {@link SurfaceMode#DETACH_ATTACH} has no view anyway.
+     */
+    private static <F> int rebuildBatched(BackStackHost<F> host, int fromIndex,
+                                          List<BackStackBoss<F>> newSuffix,
+                                          boolean createLater) {
+        int transactions = 0;
+
+        // Queue the pop of the lowest moving layer and everything above it. It runs along with
+        // the adds, in the re-add phase.
+        boolean traced = MetricsRegistry.beginSection(MetricsRegistry.SECTION_CLEAR);
+        try {
+            List<BackStackIndex.Layer> layers = host.index().layers();
+            if (fromIndex < layers.size()) {
+                host.popFrom(layers.get(fromIndex), false);
+                transactions++;
+            }
+        } finally {
+            MetricsRegistry.endSection(traced);
+        }
+
+        // Find the covered layers of the new suffix, from the top down, and defer the views that
+        // don't exist yet.
+        int newSuffixSize = newSuffix.size();
+        boolean[] covered = new boolean[newSuffixSize];
+        boolean[] deferView = new boolean[newSuffixSize];
+        ArrayList<String> deferred = new ArrayList<>();
+        HashSet<Integer> containers = new HashSet<>();
+        for (int entry = newSuffixSize - 1; entry >= 0; entry--) {
+            BackStackBoss<F> bsb = newSuffix.get(entry);
+            int containerViewId = bsb.getContainerViewId();
+            covered[entry] = !containers.add(containerViewId);
+            F fragment = bsb.getFragment();
+            if (covered[entry] && fragment != null && !host.hasView(fragment)
+                    && Surfacer.modeOf(containerViewId) == SurfaceMode.HIDE_SHOW) {
+                deferView[entry] = true;
+                deferred.add(bsb.getTagCombo());
+            }
+        }
+        Collections.reverse(deferred);
+
+        traced = MetricsRegistry.beginSection(MetricsRegistry.SECTION_READD);
+        try {
+            // Queue the new suffix in order. One transaction per layer is needed for the back
+            // stack.
+            transactions += addAll(host, fromIndex, newSuffix, true, deferView);
+
+            // Run the pop and the adds together.
+            host.executePendingTransactions();
+
+            // The top layers are visible, so a detached one is attached now.
+            BackStackHost.Transaction<F> attach = null;
+            for (int entry = newSuffixSize - 1; entry >= 0; entry--) {
+                F fragment = newSuffix.get(entry).getFragment();
+                if (!covered[entry] && fragment != null && host.isDetached(fragment)) {
+                    if (attach == null) {
+                        attach = host.beginTransaction();
+                    }
+                    attach.attach(fragment);
+                }
+            }
+            if (attach != null) {
+                attach.commitNow();
+                transactions++;
+            }
+        } finally {
+            MetricsRegistry.endSection(traced);
+        }
+
+        // The covered layers get their views when they surface, or in later frames.
+        if (!deferred.isEmpty()) {
+            host.viewsDeferred(deferred, createLater);
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Called to pop immediately, and then add the new suffix back once the pop has run.
+     */
+    private static <F> int rebuildSequential(BackStackHost<F> host,
+                                             List<BackStackBoss<F>> backStack,
+                                             int fromIndex,
+                                             List<BackStackBoss<F>> newSuffix) {
+        int transactions = 0;
+        int backStackSize = backStack.size();
+
+        // Pop the lowest moving layer and everything above it. Popping reverses each add, so the
+        // popped fragments are removed from the fragment manager along with their layers.
+        boolean traced = MetricsRegistry.beginSection(MetricsRegistry.SECTION_CLEAR);
+        try {
+            List<BackStackIndex.Layer> layers = host.index().layers();
+            if (fromIndex < layers.size()) {
+                host.popFrom(layers.get(fromIndex), true);
+                transactions++;
+            }
+        } finally {
+            MetricsRegistry.endSection(traced);
+        }
+
+        // Any popped fragment that is somehow still added is removed, all in one transaction.
+        traced = MetricsRegistry.beginSection(MetricsRegistry.SECTION_REMOVE);
+        try {
+            BackStackHost.Transaction<F> removal = null;
+            for (int entry = fromIndex; entry < backStackSize; entry++) {
+                F entryFragment = backStack.get(entry).getFragment();
+                if (entryFragment != null && host.isAdded(entryFragment)) {
+                    if (removal == null) {
+                        removal = host.beginTransaction();
+                    }
+                    removal.remove(entryFragment);
+                }
+            }
+            if (removal != null) {
+                removal.commit();
+                transactions++;
+            }
+            host.executePendingTransactions();
+        } finally {
+            MetricsRegistry.endSection(traced);
+        }
+
+        // The back stack is refilled from the new suffix in order.
+        traced = MetricsRegistry.beginSection(MetricsRegistry.SECTION_READD);
+        try {
+            transactions += addAll(host, fromIndex, newSuffix, false, null);
+            host.executePendingTransactions();
+        } finally {
+            MetricsRegistry.endSection(traced);
+        }
+
+        // Every popped fragment that was added back was torn down first.
+        if (MetricsRegistry.isEnabled()) {
+            MetricsRegistry.readded(countReadded(backStack, fromIndex, newSuffix));
+        }
+
+        return transactions;
+    }
+
+    /**
+     * Called to count the layers of the new suffix whose fragment was popped from the back stack.
+     */
+    private static <F> int countReadded(List<BackStackBoss<F>> backStack, int fromIndex,
+                                        List<BackStackBoss<F>> newSuffix) {
+        Set<F> popped = Collections.newSetFromMap(new IdentityHashMap<F, Boolean>());
+        int backStackSize = backStack.size();
+        for (int entry = fromIndex; entry < backStackSize; entry++) {
+            F fragment = backStack.get(entry).getFragment();
+            if (fragment != null) {
+                popped.add(fragment);
+            }
+        }
+        int readded = 0;
+        int newSuffixSize = newSuffix.size();
+        for (int entry = 0; entry < newSuffixSize; entry++) {
+            if (popped.contains(newSuffix.get(entry).getFragment())) {
+                readded++;
+            }
+        }
+        return readded;
+    }
+
+    /**
+     * Called to commit one add transaction per layer, in order, each one added to the back stack.
+     * Each transaction also puts away the fragment that its layer covers, as chosen by the
+     * {@link SurfaceMode} of the container. See {@link Surfacer}.
+     *
+     * @param fromIndex int: The index of the lowest popped layer. The layers below it stay.
+     * @param deferView boolean[]: For each layer, true to add its fragment detached. May be null.
+     *
+     * @return The return value is the number of transactions that were committed.
+     */
+    private static <F> int addAll(BackStackHost<F> host, int fromIndex,
+                                  List<BackStackBoss<F>> layers,
+                                  boolean allowOptimization, boolean[] deferView) {
+        int transactions = 0;
+        int layersSize = layers.size();
+        // The fragment on top of each container, as the layers are added.
+        HashMap<Integer, F> tops = new HashMap<>();
+        for (int entry = 0; entry < layersSize; entry++) {
+            BackStackBoss<F> bsb = layers.get(entry);
+            F fragment = bsb.getFragment();
+            if (fragment != null) {
+                String tagCombo = bsb.getTagCombo();
+                int containerViewId = bsb.getContainerViewId();
+                F covered;
+                if (tops.containsKey(containerViewId)) {
+                    covered = tops.get(containerViewId);
+                } else {
+                    covered = host.index().topBelow(containerViewId, fromIndex);
+                }
+                tops.put(containerViewId, fragment);
+                BackStackHost.Transaction<F> ft = host.beginTransaction();
+                ft.setAllowOptimization(allowOptimization);
+                Surfacer.addLayer(ft, containerViewId, fragment, tagCombo, covered,
+                        deferView != null && deferView[entry]);
+                ft.addToBackStack(tagCombo);
+                ft.commit();
+                transactions++;
+            }
+        }
+        return transactions;
+    }
+
+}
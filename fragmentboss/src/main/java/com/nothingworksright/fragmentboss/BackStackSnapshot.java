@@ -0,0 +1,238 @@
+package com.nothingworksright.fragmentboss;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * BackStackSnapshot is the compact binary form of a back stack, written so that the back stack
+ * can be restored on a cold start.
+ *
+ * The snapshot starts with a header: a magic number, the format version, and a stamp that tells
+ * whether the saved state can still be read. Every tagTitle and fragment class name follows once,
+ * in a table of strings, and every containerViewId once, in a table of containers. Each layer,
+ * bottom first, is then the index of its container, the index of its tagTitle, its dbRecordId,
+ * the index of its class name, and its arguments and saved state as opaque bytes. Counts,
+ * indexes, lengths, and the dbRecordId are written as variable length integers, so a layer
+ * without state takes a handful of bytes.
+ *
+ * This class only reads and writes bytes. See {@link SnapshotStore} for how the fragments are
+ * captured and built again.
+ */
+final class BackStackSnapshot {
+
+    private static final int MAGIC = 0x46425353;
+    private static final int FORMAT_VERSION = 1;
+
+    final long stamp;
+    final List<Entry> entries;
+
+    BackStackSnapshot(long stamp, List<Entry> entries) {
+        this.stamp = stamp;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * Called to write the snapshot.
+     *
+     * @return The return value is the encoded snapshot.
+     *
+     * @throws IOException If a tagTitle or class name is too long to write.
+     */
+    byte[] encode() throws IOException {
+        // Each tagTitle, class name, and containerViewId is written once, and referred to by its
+        // index.
+        ArrayList<String> strings = new ArrayList<>();
+        HashMap<String, Integer> stringIndexes = new HashMap<>();
+        ArrayList<Integer> containers = new ArrayList<>();
+        HashMap<Integer, Integer> containerIndexes = new HashMap<>();
+        int entriesSize = entries.size();
+        int[] containerIndexOf = new int[entriesSize];
+        int[] titleIndexes = new int[entriesSize];
+        int[] classIndexes = new int[entriesSize];
+        for (int entry = 0; entry < entriesSize; entry++) {
+            Entry layer = entries.get(entry);
+            containerIndexOf[entry] = indexOf(layer.tag.getContainerViewId(), containers,
+                    containerIndexes);
+            titleIndexes[entry] = indexOf(layer.tag.getTagTitle(), strings, stringIndexes);
+            classIndexes[entry] = indexOf(layer.className, strings, stringIndexes);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 32 * entriesSize);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeLong(stamp);
+        int stringsSize = strings.size();
+        writeVarLong(out, stringsSize);
+        for (int entry = 0; entry < stringsSize; entry++) {
+            out.writeUTF(strings.get(entry));
+        }
+        int containersSize = containers.size();
+        writeVarLong(out, containersSize);
+        for (int entry = 0; entry < containersSize; entry++) {
+            out.writeInt(containers.get(entry));
+        }
+        writeVarLong(out, entriesSize);
+        for (int entry = 0; entry < entriesSize; entry++) {
+            Entry layer = entries.get(entry);
+            writeVarLong(out, containerIndexOf[entry]);
+            writeVarLong(out, titleIndexes[entry]);
+            // Zigzag, so that the common -1 takes one byte.
+            long dbRecordId = layer.tag.getDbRecordId();
+            writeVarLong(out, (dbRecordId << 1) ^ (dbRecordId >> 63));
+            writeVarLong(out, classIndexes[entry]);
+            writeBytes(out, layer.arguments);
+            writeBytes(out, layer.savedState);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Called to read a snapshot written by {@link #encode()}.
+     *
+     * @param data byte[]: The encoded snapshot.
+     *
+     * @return The return value is the BackStackSnapshot. The tagTitles of its tags are interned.
+     *
+     * @throws IOException If the data is not a snapshot, is of another format version, or is cut
+     * short.
+     */
+    static BackStackSnapshot decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a back stack snapshot");
+        }
+        int formatVersion = in.readUnsignedByte();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unknown back stack snapshot format " + formatVersion);
+        }
+        long stamp = in.readLong();
+        int stringsSize = readCount(in, data.length);
+        String[] strings = new String[stringsSize];
+        for (int entry = 0; entry < stringsSize; entry++) {
+            strings[entry] = in.readUTF();
+        }
+        int containersSize = readCount(in, data.length);
+        int[] containers = new int[containersSize];
+        for (int entry = 0; entry < containersSize; entry++) {
+            containers[entry] = in.readInt();
+        }
+        int entriesSize = readCount(in, data.length);
+        ArrayList<Entry> entries = new ArrayList<>(entriesSize);
+        for (int entry = 0; entry < entriesSize; entry++) {
+            int containerViewId = containers[readIndex(in, containersSize)];
+            String tagTitle = strings[readIndex(in, stringsSize)];
+            long zigzag = readVarLong(in);
+            long dbRecordId = (zigzag >>> 1) ^ -(zigzag & 1);
+            String className = strings[readIndex(in, stringsSize)];
+            byte[] arguments = readBytes(in, data.length);
+            byte[] savedState = readBytes(in, data.length);
+            FragmentTag tag = FragmentTag.of(tagTitle, containerViewId, dbRecordId).intern();
+            entries.add(new Entry(tag, className, arguments, savedState));
+        }
+        return new BackStackSnapshot(stamp, entries);
+    }
+
+    private static <T> int indexOf(T value, ArrayList<T> table, HashMap<T, Integer> indexes) {
+        Integer index = indexes.get(value);
+        if (index == null) {
+            index = table.size();
+            table.add(value);
+            indexes.put(value, index);
+        }
+        return index;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        // The length is written plus one, so that zero means null.
+        if (bytes == null) {
+            writeVarLong(out, 0);
+        } else {
+            writeVarLong(out, bytes.length + 1L);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, int limit) throws IOException {
+        int lengthPlusOne = readCount(in, limit + 1);
+        if (lengthPlusOne == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[lengthPlusOne - 1];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed back stack snapshot");
+    }
+
+    /**
+     * Called to read a count or length, which can never be more than the size of the data.
+     */
+    private static int readCount(DataInputStream in, int limit) throws IOException {
+        long count = readVarLong(in);
+        if (count < 0 || count > limit) {
+            throw new IOException("Malformed back stack snapshot");
+        }
+        return (int) count;
+    }
+
+    private static int readIndex(DataInputStream in, int size) throws IOException {
+        long index = readVarLong(in);
+        if (index < 0 || index >= size) {
+            throw new IOException("Malformed back stack snapshot");
+        }
+        return (int) index;
+    }
+
+    /**
+     * This class represents one layer of the snapshot.
+     */
+    static final class Entry {
+
+        final FragmentTag tag;
+        final String className;
+        final byte[] arguments;
+        final byte[] savedState;
+
+        /**
+         * @param tag FragmentTag: The tag of the layer.
+         * @param className String: The class name of the fragment.
+         * @param arguments byte[]: The marshalled arguments of the fragment, or null.
+         * @param savedState byte[]: The marshalled saved state of the fragment, or null.
+         */
+        Entry(FragmentTag tag, String className, byte[] arguments, byte[] savedState) {
+            this.tag = tag;
+            this.className = className;
+            this.arguments = arguments;
+            this.savedState = savedState;
+        }
+
+    }
+
+}
@@ -0,0 +1,322 @@
+package com.nothingworksright.fragmentboss;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+/**
+ * CompactState keeps the saved instance state of an activity small when its back stack is deep.
+ *
+ * The fragment manager saves the full state of every fragment in its back stack into the
+ * activity's saved state, which is sent through a binder transaction when the activity stops. A
+ * deep back stack makes that transaction slow, and past its limit it fails with a
+ * TransactionTooLargeException.
+ *
+ * While a compact saved state depth is set, the state the fragment manager saved is taken back
+ * out of the activity's saved state, once it has been saved, and replaced with a compact one. The
+ * top layers of each container keep their tag, class name, arguments, and full saved state in it.
+ * The layers below them keep only their tag, their class name, and their arguments when they are
+ * small. Their saved state, and larger arguments, are written to a file in the app's private
+ * files, one file per activity, on a background thread. The live fragments are left as they are,
+ * so nothing is torn down or built again while the activity is only in the background.
+ *
+ * Once the activity is created again from its saved state, the fragment manager starts empty,
+ * and the whole back stack is built again in one pass, in its order, with only the top fragment
+ * of each container creating its view. The saved state of the fragment manager is only replaced
+ * when every fragment in it is a layer of the back stack added by FragmentBoss, and none of them
+ * is retained.
+ *
+ * The {@link FragmentShelf} is carried over the same way, as the tag, the class name, and the
+ * arguments of each shelved fragment, with the rest in the same file. Files that have not been
+ * written for a week are deleted, as nothing restores them any more.
+ *
+ * All methods must be called on the UI thread.
+ */
+final class CompactState {
+
+    // The key FragmentActivity saves the state of its fragment manager under.
+    private static final String FRAGMENTS_KEY = "android:support:fragments";
+    private static final String KEY = "com.nothingworksright.fragmentboss.CompactState";
+    private static final String KEY_ID = "id";
+    private static final String KEY_SHELF = "shelf";
+    private static final String KEY_BACK_STACK = "backStack";
+    private static final String FILE_PREFIX = "compact-";
+    private static final int INLINE_ARGUMENTS_BYTES = 1024;
+    private static final long MAX_FILE_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private static final Map<FragmentManager, String> IDS = new WeakHashMap<>();
+    private static volatile int depth;
+
+    private CompactState() {
+    }
+
+    /**
+     * Called to set the number of layers of each container whose state is saved in full. Zero
+     * means every layer.
+     */
+    static void setDepth(int keepPerContainer) {
+        depth = Math.max(0, keepPerContainer);
+    }
+
+    /**
+     * Called after the fragment manager has saved its state, to replace that state with a compact
+     * one, and carry the shelf over in the activity's saved state. The fragments themselves are
+     * left as they are.
+     *
+     * @param context Context: The application context.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param outState Bundle: The activity's saved state.
+     *
+     * @return The return value is the number of layers whose saved state was moved to the file.
+     */
+    static int save(Context context, FragmentManager fm, Bundle outState) {
+        List<BackStackSnapshot.Entry> backStack = null;
+        List<BackStackSnapshot.Entry> inFile = new ArrayList<>();
+        int moved = 0;
+        int keepPerContainer = depth;
+        if (keepPerContainer > 0 && outState.containsKey(FRAGMENTS_KEY)) {
+            backStack = compactBackStack(fm, keepPerContainer, inFile);
+            moved = inFile.size();
+        }
+
+        // The tags and small arguments of the shelf go into the saved state, and the rest into
+        // the file.
+        List<BackStackSnapshot.Entry> shelf = new ArrayList<>();
+        List<BackStackSnapshot.Entry> entries = FragmentShelf.of(fm).entries();
+        int entriesSize = entries.size();
+        for (int entry = 0; entry < entriesSize; entry++) {
+            shelf.add(split(entries.get(entry), inFile));
+        }
+
+        String name = FILE_PREFIX + idOf(fm);
+        if (backStack == null && shelf.isEmpty()) {
+            outState.remove(KEY);
+            SnapshotStore.delete(context, name);
+            return 0;
+        }
+        Bundle compact = new Bundle();
+        try {
+            if (backStack != null) {
+                compact.putByteArray(KEY_BACK_STACK, new BackStackSnapshot(0L, backStack).encode());
+            }
+            if (!shelf.isEmpty()) {
+                compact.putByteArray(KEY_SHELF, new BackStackSnapshot(0L, shelf).encode());
+            }
+        } catch (IOException e) {
+            // A tagTitle or class name is too long to write, so the saved state is left in full,
+            // and the shelf is not carried over.
+            outState.remove(KEY);
+            return 0;
+        }
+        if (inFile.isEmpty()) {
+            SnapshotStore.delete(context, name);
+        } else {
+            // If writing fails, the fragments are built again without their state.
+            SnapshotStore.write(context, name, inFile);
+        }
+        compact.putString(KEY_ID, idOf(fm));
+        if (backStack != null) {
+            // The compact back stack takes the place of the fragment manager's own state.
+            outState.remove(FRAGMENTS_KEY);
+        }
+        outState.putBundle(KEY, compact);
+        SnapshotStore.prune(context, FILE_PREFIX, MAX_FILE_AGE_MILLIS);
+        return moved;
+    }
+
+    /**
+     * Called to capture the back stack, with the full state of the top layers of each container,
+     * and only the tags, class names, and small arguments of the layers below them.
+     *
+     * @param inFile List: Gets the saved state and large arguments of the layers below.
+     *
+     * @return The return value is the List of the layers, bottom first, or null if the back
+     * stack is empty, or the fragment manager has a fragment that FragmentBoss did not add to
+     * the back stack, or that is retained.
+     */
+    private static List<BackStackSnapshot.Entry> compactBackStack(
+            FragmentManager fm, int keepPerContainer, List<BackStackSnapshot.Entry> inFile) {
+        BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+        List<BackStackIndex.Layer> layers = index.layers();
+        int layersSize = layers.size();
+        if (layersSize == 0) {
+            return null;
+        }
+        HashSet<BackStackIndex.Layer> covered = FragmentShelf.coveredPast(index, keepPerContainer);
+        List<BackStackSnapshot.Entry> backStack = new ArrayList<>(layersSize);
+        HashSet<Fragment> inBackStack = new HashSet<>(layersSize * 2);
+        for (int entry = 0; entry < layersSize; entry++) {
+            BackStackIndex.Layer layer = layers.get(entry);
+            Fragment fragment = index.fragmentOf(layer);
+            if (layer.tag == null || fragment == null || fragment.getRetainInstance()) {
+                // Only the fragment manager can restore this layer.
+                return null;
+            }
+            inBackStack.add(fragment);
+            BackStackSnapshot.Entry captured = SnapshotStore.capture(fm, layer.tag, fragment);
+            backStack.add(covered.contains(layer) ? split(captured, inFile) : captured);
+        }
+        List<Fragment> fragments = fm.getFragments();
+        if (fragments != null) {
+            for (Fragment fragment : fragments) {
+                if (fragment != null && !inBackStack.contains(fragment)) {
+                    // A fragment added without the back stack is only restored by the fragment
+                    // manager.
+                    return null;
+                }
+            }
+        }
+        return backStack;
+    }
+
+    /**
+     * Called to split an entry into the part that goes into the saved state, which is returned,
+     * and the part that goes into the file, which is added to inFile if there is any.
+     */
+    private static BackStackSnapshot.Entry split(BackStackSnapshot.Entry full,
+                                                 List<BackStackSnapshot.Entry> inFile) {
+        byte[] arguments = full.arguments;
+        boolean argumentsInline = arguments == null || arguments.length <= INLINE_ARGUMENTS_BYTES;
+        if (!argumentsInline || full.savedState != null) {
+            inFile.add(new BackStackSnapshot.Entry(full.tag, full.className,
+                    argumentsInline ? null : arguments, full.savedState));
+        }
+        return new BackStackSnapshot.Entry(full.tag, full.className,
+                argumentsInline ? arguments : null, null);
+    }
+
+    /**
+     * Called once the fragment manager has restored its state, to put the fragments that were
+     * carried over back on the shelf, and to build the compact back stack again.
+     *
+     * @param context Context: The application context.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param savedInstanceState Bundle: The activity's saved state, or null.
+     *
+     * @return The return value is the OperationHandle of the rebuild, or null if there was no
+     * compact back stack to build.
+     */
+    static OperationHandle restore(Context context, FragmentManager fm,
+                                   Bundle savedInstanceState) {
+        Bundle compact = savedInstanceState != null ? savedInstanceState.getBundle(KEY) : null;
+        String id = compact != null ? compact.getString(KEY_ID) : null;
+        if (id == null) {
+            return null;
+        }
+        // The activity keeps its file, so that saving again replaces it.
+        synchronized (IDS) {
+            IDS.put(fm, id);
+        }
+        HashMap<FragmentTag, BackStackSnapshot.Entry> inFile = new HashMap<>();
+        BackStackSnapshot snapshot = SnapshotStore.load(context, FILE_PREFIX + id);
+        if (snapshot != null) {
+            for (BackStackSnapshot.Entry stored : snapshot.entries) {
+                inFile.put(stored.tag, stored);
+            }
+        }
+
+        List<BackStackSnapshot.Entry> shelf = decode(compact.getByteArray(KEY_SHELF), inFile);
+        if (shelf != null) {
+            FragmentShelf.of(fm).load(context, shelf);
+        }
+        List<BackStackSnapshot.Entry> backStack;
+        backStack = decode(compact.getByteArray(KEY_BACK_STACK), inFile);
+        if (backStack == null || fm.getBackStackEntryCount() > 0) {
+            // The fragment manager restored its own back stack.
+            return null;
+        }
+        return rebuild(context, fm, backStack);
+    }
+
+    /**
+     * Called to decode the entries carried over in the saved state, and merge in the parts that
+     * were written to the file.
+     *
+     * @return The return value is the List of merged entries, or null if there are none.
+     */
+    private static List<BackStackSnapshot.Entry> decode(
+            byte[] data, HashMap<FragmentTag, BackStackSnapshot.Entry> inFile) {
+        if (data == null) {
+            return null;
+        }
+        BackStackSnapshot inline;
+        try {
+            inline = BackStackSnapshot.decode(data);
+        } catch (IOException e) {
+            return null;
+        }
+        List<BackStackSnapshot.Entry> entries = inline.entries;
+        int entriesSize = entries.size();
+        List<BackStackSnapshot.Entry> merged = new ArrayList<>(entriesSize);
+        for (int entry = 0; entry < entriesSize; entry++) {
+            BackStackSnapshot.Entry carried = entries.get(entry);
+            BackStackSnapshot.Entry stored = inFile.get(carried.tag);
+            if (stored == null) {
+                merged.add(carried);
+            } else {
+                merged.add(new BackStackSnapshot.Entry(carried.tag, carried.className,
+                        carried.arguments != null ? carried.arguments : stored.arguments,
+                        stored.savedState));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Called to build the back stack again in one pass, with each fragment built from its class,
+     * arguments, and saved state.
+     */
+    private static OperationHandle rebuild(final Context context, final FragmentManager fm,
+                                           List<BackStackSnapshot.Entry> entries) {
+        int entriesSize = entries.size();
+        final List<FragmentTag> desired = new ArrayList<>(entriesSize);
+        final HashMap<FragmentTag, BackStackSnapshot.Entry> byTag = new HashMap<>(entriesSize * 2);
+        for (int entry = 0; entry < entriesSize; entry++) {
+            BackStackSnapshot.Entry layer = entries.get(entry);
+            desired.add(layer.tag);
+            byTag.put(layer.tag, layer);
+        }
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.RESTORE_STATE, fm, null) {
+            @Override
+            int execute() {
+                BackStackHost.Factory<Fragment> fromState = new BackStackHost.Factory<Fragment>() {
+                    @Override
+                    public Fragment newFragment(FragmentTag tag) {
+                        BackStackSnapshot.Entry layer = byTag.get(tag);
+                        return layer != null ? SnapshotStore.build(context, layer) : null;
+                    }
+                };
+                // A sequential rebuild would create every view, so a batched one is used.
+                RebuildMode mode = FragmentBoss.getRebuildMode() == RebuildMode.INCREMENTAL
+                        ? RebuildMode.INCREMENTAL : RebuildMode.BATCHED;
+                return BackStackRebuilder.apply(FragmentManagerHost.of(fm), desired, fromState,
+                        mode);
+            }
+        });
+    }
+
+    private static String idOf(FragmentManager fm) {
+        synchronized (IDS) {
+            String id = IDS.get(fm);
+            if (id == null) {
+                id = UUID.randomUUID().toString();
+                IDS.put(fm, id);
+            }
+            return id;
+        }
+    }
+
+}
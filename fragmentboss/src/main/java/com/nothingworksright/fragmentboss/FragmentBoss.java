@@ -1,16 +1,17 @@
 package com.nothingworksright.fragmentboss;
 
-import android.os.Handler;
-import android.os.Looper;
+import android.content.Context;
+import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
-
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
+import android.support.v4.os.TraceCompat;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * FragmentBoss is a library module for Android.
@@ -18,7 +19,9 @@ import java.util.ArrayList;
  * The methods in this library make use of the android.support.v4.app Android API classes, such as
  * the Fragment, FragmentManager, and FragmentTransaction.
  *
- * Some methods use a handler that runs on the UI thread.
+ * Some methods run on the UI thread. They run right away when called on the UI thread, and are
+ * otherwise posted to it through a single shared handler. Operations waiting for the UI thread
+ * are coalesced, so that a burst of calls does not repeat the same work.
  *
  * @author Joshua Gray
  * @version 1.0.0
@@ -29,21 +32,43 @@ import java.util.ArrayList;
  */
 public class FragmentBoss {
 
+    private static volatile RebuildMode rebuildMode = RebuildMode.BATCHED;
+
+    private static final MetricsRegistry.Tracer TRACE_COMPAT = new MetricsRegistry.Tracer() {
+        @Override
+        public void beginSection(String sectionName) {
+            TraceCompat.beginSection(sectionName);
+        }
+
+        @Override
+        public void endSection() {
+            TraceCompat.endSection();
+        }
+    };
+
+    private static final Executor UI_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            MainThreadDispatcher.post(runnable);
+        }
+    };
+
     /**
      * Called to replace a fragment in a container. Uses the fragment tag to identify unique
      * fragments.
      *
-     * Uses a handler that's running on the UI thread.
+     * Runs on the UI thread. When called on the UI thread, runs right away.
      *
      * This is the primary method of the FragmentBoss class. This method could be used any time a
      * fragment needs to be placed into a container.
      *
      * If a fragment with a matching tag can be found in the fragment manager, it will be resurfaced
      * by using {@link #resurfaceFragmentInBackStack(FragmentManager, String)}. If no matching
-     * fragment tag can be found in the fragment manager, the fragment will be added using the
+     * fragment tag can be found in the fragment manager, the fragment will be added on top of the
+     * container, and the fragment it covers is hidden or detached, as chosen by the container's
+     * {@link SurfaceMode}. The first fragment in a container is added using the
      * fragmentTransaction.replace(int containerViewId, Fragment fragment, String tag) method.
-     * The fragment tag is added to the back stack. Last, bringToFront is called on the fragment's
-     * view, to be sure that the fragment at the top of the back stack is also visible.
+     * The fragment tag is added to the back stack.
      *
      * @param containerViewId int: Identifier of the container whose fragment(s) are to be replaced.
      * @param fm FragmentManager: The fragment manager interface being used to interact with the
@@ -52,40 +77,112 @@ public class FragmentBoss {
      * @param tagCombo String: The tagCombo is a pipe delimited string of values. Always create the
      *                 tagCombo by using the {@link #tagJoiner(String, int, long)}  method. Always
      *                 split the tagCombo by using the {@link #tagSplitter(String)} method.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle replaceFragmentInContainer(final int containerViewId,
+                                                             final FragmentManager fm,
+                                                             final Fragment fragment,
+                                                             final String tagCombo) {
+        return replace(containerViewId, fm, fragment, null, tagCombo);
+    }
+
+    /**
+     * Called to replace a fragment in a container, creating the fragment only if it is needed.
+     * Uses the fragment tag to identify unique fragments.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * Works like {@link #replaceFragmentInContainer(int, FragmentManager, Fragment, String)},
+     * except that the factory is only called when no fragment with a matching tag can be found in
+     * the fragment manager. Resurfacing a fragment that already exists doesn't build a new one
+     * just to throw it away.
+     *
+     * @param containerViewId int: Identifier of the container whose fragment(s) are to be replaced.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param factory FragmentFactory: Creates the fragment to be placed into the activity, when
+     *                there isn't one already.
+     * @param tagCombo String: The tagCombo is a pipe delimited string of values. Always create the
+     *                 tagCombo by using the {@link #tagJoiner(String, int, long)}  method. Always
+     *                 split the tagCombo by using the {@link #tagSplitter(String)} method.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle replaceFragmentInContainer(final int containerViewId,
+                                                             final FragmentManager fm,
+                                                             final FragmentFactory factory,
+                                                             final String tagCombo) {
+        return replace(containerViewId, fm, null, factory, tagCombo);
+    }
+
+    /**
+     * Called by both replaceFragmentInContainer methods. At most one of fragment and factory is
+     * not null. If both are null, nothing is added.
      */
-    public static void replaceFragmentInContainer(final int containerViewId,
-                                                  final FragmentManager fm, final Fragment fragment,
-                                                  final String tagCombo) {
-        // Get a handler that can be used to post to the main thread
-        Handler handler = new Handler(Looper.getMainLooper());
-        Runnable runnable = new Runnable() {
+    private static OperationHandle replace(final int containerViewId, final FragmentManager fm,
+                                           final Fragment fragment, final FragmentFactory factory,
+                                           final String tagCombo) {
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.REPLACE, fm, tagCombo) {
             @Override
-            public void run() {
-                if (fm != null && fragment != null && tagCombo != null) {
+            int execute() {
+                int transactions = 0;
+                if (fm != null && tagCombo != null && (fragment != null || factory != null)) {
+                    String fromTitle = FragmentPrefetcher.titleOnTop(fm);
+                    Fragment shown;
                     if (fm.findFragmentByTag(tagCombo) != null) {
                         // If a fragment with the same tag is already in the fragment manager,
                         // just resurface it.
-                        resurfaceFragmentInBackStack(fm, tagCombo);
+                        transactions += BackStackRebuilder.resurface(
+                                FragmentManagerHost.of(fm), tagCombo, rebuildMode);
                     } else {
-                        // If the fragment isn't in the fragment manager, add it, using replace.
+                        // If the fragment was shelved, build it again from its saved state.
+                        // Otherwise use the given fragment, or have the factory create one.
+                        FragmentTag tag = FragmentTag.valueOf(tagCombo);
+                        shown = FragmentShelf.of(fm).restore(tag);
+                        if (shown == null && fragment == null) {
+                            // Reuse a removed fragment with the same tagTitle, if one is pooled.
+                            shown = FragmentRecycler.take(fm, tag);
+                        }
+                        if (shown == null) {
+                            shown = fragment != null ? fragment : factory.newFragment(tag);
+                        }
+                        if (shown == null) {
+                            return transactions;
+                        }
+                        // If the fragment isn't in the fragment manager, add it on top of the
+                        // container, and put away the fragment it covers. The first layer of a
+                        // container uses replace, to clear anything added outside FragmentBoss.
                         FragmentTransaction ft = fm.beginTransaction();
-                        ft.replace(
+                        ft.setAllowOptimization(rebuildMode != RebuildMode.SEQUENTIAL);
+                        Fragment covered = FragmentManagerHost.indexOf(fm).topBelow(
                                 containerViewId,
-                                fragment,
-                                tagCombo
+                                fm.getBackStackEntryCount()
                         );
+                        if (covered != null) {
+                            Surfacer.addLayer(new FragmentManagerHost.Transaction(ft),
+                                    containerViewId, shown, tagCombo, covered, false);
+                        } else {
+                            ft.replace(
+                                    containerViewId,
+                                    shown,
+                                    tagCombo
+                            );
+                        }
                         ft.addToBackStack(tagCombo);
                         ft.commit();
+                        transactions++;
                     }
                     fm.executePendingTransactions();
-                    // Bring the fragment's view to the front.
-                    if (fragment.getView() != null) {
-                        fragment.getView().bringToFront();
-                    }
+                    // Shelve the least recently surfaced fragments past the maximum depth.
+                    transactions += FragmentShelf.trim(fm);
+                    FragmentPrefetcher.navigated(fm, fromTitle, tagCombo);
                 }
+                return transactions;
             }
-        };
-        handler.post(runnable);
+        });
     }
 
     /**
@@ -95,12 +192,14 @@ public class FragmentBoss {
      * Called to resurface a desired fragment which already exists somewhere in the back stack,
      * without changing or losing other currently existing fragments in the back stack.
      *
-     * Uses a handler that's running on the UI thread.
+     * Runs on the UI thread. When called on the UI thread, runs right away.
      *
-     * First, the current back stack is replicated in an ArrayList. Next, the back stack is emptied,
-     * and all fragments are removed from the fragment manager. Next, the fragment manager and back
-     * stack are refilled from the ArrayList in order, skipping the desired fragment. Last, the
-     * desired fragment is added, leaving it at the surface.
+     * First, the current back stack is replicated in an ArrayList. Next, the desired fragment and
+     * every fragment above it are popped off of the back stack. The layers below the desired
+     * fragment are left alone. Next, the popped fragments are added back in order, skipping the
+     * desired fragment. Last, the desired fragment is added, leaving it at the surface. The work
+     * grows with the distance of the desired fragment from the top of the back stack, not with the
+     * depth of the back stack. How the back stack is refilled depends on the {@link RebuildMode}.
      *
      * @param fm FragmentManager: The fragment manager interface being used to interact with the
      *           fragment objects inside of the activity.
@@ -108,230 +207,771 @@ public class FragmentBoss {
      *                        create the tagCombo by using the {@link #tagJoiner(String, int, long)}
      *                        method. Always split the tagCombo by using the
      *                        {@link #tagSplitter(String)} method.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
      */
-    public static void resurfaceFragmentInBackStack(final FragmentManager fm,
-                                                    final String desiredTagCombo) {
+    public static OperationHandle resurfaceFragmentInBackStack(final FragmentManager fm,
+                                                               final String desiredTagCombo) {
+        return resurfaceFragmentInBackStack(fm, desiredTagCombo, null);
+    }
 
-        // Get a handler that can be used to post to the main thread
-        Handler handler = new Handler(Looper.getMainLooper());
-        Runnable runnable = new Runnable() {
+    /**
+     * Called to resurface a desired fragment which already exists somewhere in the back stack,
+     * using the given {@link RebuildMode} for this operation only.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param desiredTagCombo String: The tagCombo is a pipe delimited string of values. Always
+     *                        create the tagCombo by using the {@link #tagJoiner(String, int, long)}
+     *                        method. Always split the tagCombo by using the
+     *                        {@link #tagSplitter(String)} method.
+     * @param mode RebuildMode: How the back stack is refilled. Null means the mode set by using
+     *             {@link #setRebuildMode(RebuildMode)}.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle resurfaceFragmentInBackStack(final FragmentManager fm,
+                                                               final String desiredTagCombo,
+                                                               final RebuildMode mode) {
+
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.RESURFACE, fm, desiredTagCombo, mode) {
             @Override
-            public void run() {
+            int execute() {
+                int transactions = 0;
                 if (fm != null) {
+                    RebuildMode rebuild = mode != null ? mode : rebuildMode;
+                    String fromTitle = FragmentPrefetcher.titleOnTop(fm);
+                    BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+                    if (index.findByTagCombo(desiredTagCombo) != null) {
+                        // Only the desired layer and the layers above it are moved.
+                        transactions += BackStackRebuilder.resurface(
+                                FragmentManagerHost.of(fm), desiredTagCombo, rebuild);
+                    } else if (desiredTagCombo != null) {
+                        // If the fragment was shelved, build it again and add it on top.
+                        FragmentTag tag = FragmentTag.valueOf(desiredTagCombo);
+                        Fragment restored = FragmentShelf.of(fm).restore(tag);
+                        if (restored != null) {
+                            transactions += BackStackRebuilder.push(
+                                    FragmentManagerHost.of(fm), tag, restored, rebuild);
+                            transactions += FragmentShelf.trim(fm);
+                        }
+                    }
+                    FragmentPrefetcher.navigated(fm, fromTitle, desiredTagCombo);
+                }
+                return transactions;
+            }
+        });
 
-                    int backStackEntryCount = fm.getBackStackEntryCount();
-                    if (backStackEntryCount > 0) {
-
-                        // Populate our own ArrayList of the current back stack entries.
-                        ArrayList<BackStackBoss> backStackArrayList = new ArrayList<>();
-                        for (int entry = 0; entry < backStackEntryCount; entry++) {
-
-                            // Get the tagCombo from this back stack entry in the fragment manager.
-                            String tagCombo = fm.getBackStackEntryAt(entry).getName();
+    }
 
-                            // Using BackStackBoss(), set the back stack entry values.
-                            BackStackBoss bsb = new BackStackBoss();
-                            bsb.setTagCombo(tagCombo);
-                            bsb.setTagTitle(tagSplitter(tagCombo)[0]);
-                            bsb.setContainerViewId(Integer.valueOf(tagSplitter(tagCombo)[1]));
-                            bsb.setDbRecordId(Long.valueOf(tagSplitter(tagCombo)[2]));
-                            bsb.setFragment(fm.findFragmentByTag(tagCombo));
+    /**
+     * Called to bury a fragment at the bottom of the back stack.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * First, the current back stack is replicated in an ArrayList. Next, the back stack is emptied,
+     * which removes all of its fragments from the fragment manager. Next, the fragment manager and
+     * back stack are refilled beginning with the desired fragment, and then the remaining fragments
+     * from the ArrayList in order. How the back stack is refilled depends on the
+     * {@link RebuildMode}.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param desiredTagCombo String: The tagCombo is a pipe delimited string of values. Always
+     *                        create the tagCombo by using the {@link #tagJoiner(String, int, long)}
+     *                        method. Always split the tagCombo by using the
+     *                        {@link #tagSplitter(String)} method.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle buryFragmentInBackStack(final FragmentManager fm,
+                                                          final String desiredTagCombo) {
+        return buryFragmentInBackStack(fm, desiredTagCombo, null);
+    }
 
-                            // Add the backStackBoss to our array list.
-                            backStackArrayList.add(bsb);
+    /**
+     * Called to bury a fragment at the bottom of the back stack, using the given
+     * {@link RebuildMode} for this operation only.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param desiredTagCombo String: The tagCombo is a pipe delimited string of values. Always
+     *                        create the tagCombo by using the {@link #tagJoiner(String, int, long)}
+     *                        method. Always split the tagCombo by using the
+     *                        {@link #tagSplitter(String)} method.
+     * @param mode RebuildMode: How the back stack is refilled. Null means the mode set by using
+     *             {@link #setRebuildMode(RebuildMode)}.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle buryFragmentInBackStack(final FragmentManager fm,
+                                                          final String desiredTagCombo,
+                                                          final RebuildMode mode) {
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.BURY, fm, desiredTagCombo, mode) {
+            @Override
+            int execute() {
+                if (fm == null) {
+                    return 0;
+                }
+                // Every layer is popped, and the desired layer is added back first.
+                return BackStackRebuilder.bury(FragmentManagerHost.of(fm), desiredTagCombo,
+                        mode != null ? mode : rebuildMode);
+            }
+        });
+    }
 
-                        }
+    /**
+     * Called to make the back stack match a desired list of tags.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * The layers at the bottom of the back stack that already match the desired list are left
+     * alone. Every layer above them is popped, and the rest of the desired list is added in order.
+     * Fragments that were already in the back stack are reused. A tag without a fragment in the
+     * back stack is left out, so use
+     * {@link #setBackStack(FragmentManager, List, FragmentFactory)} to add new fragments.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param desiredBackStack List: The FragmentTags of the desired back stack, bottom first. The
+     *                         list is copied, so it may be changed after this call.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle setBackStack(final FragmentManager fm,
+                                               final List<FragmentTag> desiredBackStack) {
+        return setBackStack(fm, desiredBackStack, null);
+    }
 
-                        int backStackArrayListSize = backStackArrayList.size();
+    /**
+     * Called to make the back stack match a desired list of tags, creating the fragments that are
+     * not in the back stack yet.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * This works like {@link #setBackStack(FragmentManager, List)}, except that the factory is
+     * asked for a new fragment for every desired tag without a fragment in the back stack. A series
+     * of replace, bury, and remove calls can be replaced by one call to this method, so the back
+     * stack is rebuilt once.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param desiredBackStack List: The FragmentTags of the desired back stack, bottom first. The
+     *                         list is copied, so it may be changed after this call.
+     * @param factory FragmentFactory: Creates the fragments for tags that are not in the back
+     *                stack. May be null.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle setBackStack(final FragmentManager fm,
+                                               final List<FragmentTag> desiredBackStack,
+                                               final FragmentFactory factory) {
+        return setBackStack(fm, desiredBackStack, factory, null);
+    }
 
-                        // Clear the fragment manager back stack completely
-                        FragmentManager.BackStackEntry firstEntry = fm.getBackStackEntryAt(0);
-                        fm.popBackStackImmediate(
-                            firstEntry.getId(),
-                            FragmentManager.POP_BACK_STACK_INCLUSIVE
-                        );
-                        fm.executePendingTransactions();
-
-                        // Remove all fragments from the fragment manager
-                        for (int entry = 0; entry < backStackArrayListSize; entry++) {
-                            BackStackBoss bsb = backStackArrayList.get(entry);
-                            Fragment entryFragment = bsb.getFragment();
-                            FragmentTransaction ft = fm.beginTransaction();
-                            ft.remove(entryFragment);
-                            ft.commit();
-                        }
-                        fm.executePendingTransactions();
-
-                        // The fragment manager and back stack are refilled from the ArrayList in order,
-                        // skipping the desired fragment.
-                        for (int entry = 0; entry < backStackArrayListSize; entry++) {
-                            BackStackBoss bsb = backStackArrayList.get(entry);
-                            int containerViewId = bsb.getContainerViewId();
-                            Fragment fragment = bsb.getFragment();
-                            String tagCombo = bsb.getTagCombo();
-                            if (!tagCombo.equals(desiredTagCombo)) {
-                                FragmentTransaction ft = fm.beginTransaction();
-                                ft.add(containerViewId, fragment, tagCombo);
-                                ft.addToBackStack(tagCombo);
-                                ft.commit();
-                            }
-                        }
-                        fm.executePendingTransactions();
-
-                        // Last, the desired fragment is added to the fragment manager and back stack,
-                        // leaving it on top.
-                        for (int entry = 0; entry < backStackArrayListSize; entry++) {
-                            BackStackBoss bsb = backStackArrayList.get(entry);
-                            int containerViewId = bsb.getContainerViewId();
-                            Fragment fragment = bsb.getFragment();
-                            String tagCombo = bsb.getTagCombo();
-                            if (tagCombo.equals(desiredTagCombo)) {
-                                FragmentTransaction ft = fm.beginTransaction();
-                                ft.add(containerViewId, fragment, tagCombo);
-                                ft.addToBackStack(tagCombo);
-                                ft.commit();
+    /**
+     * Called to make the back stack match a desired list of tags, creating the fragments that are
+     * not in the back stack yet, using the given {@link RebuildMode} for this operation only.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param desiredBackStack List: The FragmentTags of the desired back stack, bottom first. The
+     *                         list is copied, so it may be changed after this call.
+     * @param factory FragmentFactory: Creates the fragments for tags that are not in the back
+     *                stack. May be null.
+     * @param mode RebuildMode: How the back stack is refilled. Null means the mode set by using
+     *             {@link #setRebuildMode(RebuildMode)}.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle setBackStack(final FragmentManager fm,
+                                               final List<FragmentTag> desiredBackStack,
+                                               final FragmentFactory factory,
+                                               final RebuildMode mode) {
+        final List<FragmentTag> desired;
+        desired = desiredBackStack != null ? new ArrayList<>(desiredBackStack) : null;
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.SET_BACK_STACK, fm, null, mode) {
+            @Override
+            int execute() {
+                int transactions = 0;
+                if (fm != null && desired != null) {
+                    // Shelved fragments are built again before the factory is asked.
+                    final FragmentShelf shelf = FragmentShelf.of(fm);
+                    BackStackHost.Factory<Fragment> shelfFirst;
+                    shelfFirst = new BackStackHost.Factory<Fragment>() {
+                        @Override
+                        public Fragment newFragment(FragmentTag tag) {
+                            Fragment restored = shelf.restore(tag);
+                            if (restored == null && factory != null) {
+                                restored = factory.newFragment(tag);
                             }
+                            return restored;
                         }
-                        fm.executePendingTransactions();
+                    };
+                    // Only the layers above the longest common prefix are moved.
+                    transactions += BackStackRebuilder.apply(FragmentManagerHost.of(fm),
+                            desired, shelfFirst, mode != null ? mode : rebuildMode);
+                    transactions += FragmentShelf.trim(fm);
+                }
+                return transactions;
+            }
+        });
+    }
 
+    /**
+     * Called to save the back stack of a fragment manager to the app's private files, so that it
+     * can be restored on a cold start by using
+     * {@link #restoreBackStackSnapshot(Context, FragmentManager, String)}.
+     *
+     * Call this on the UI thread while the fragments are still active, such as from the
+     * activity's onStop method. The snapshot is written in a compact binary form: each layer's
+     * tag, the class name of its fragment, its arguments, and its saved state. The snapshot is
+     * encoded on the UI thread and written to its file on a background thread. A snapshot with the
+     * same name is replaced, and is left as it was if writing fails.
+     *
+     * @param context Context: Any context of the app. Only its application context is used.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param name String: The name of the snapshot, such as the name of the activity. It is used
+     *             as a file name.
+     *
+     * @return The return value is true if the snapshot was encoded and is being written.
+     *
+     * @throws IllegalArgumentException If the name is empty or is not a plain file name.
+     */
+    public static boolean saveBackStackSnapshot(Context context, FragmentManager fm,
+                                                String name) {
+        if (context == null || fm == null) {
+            return false;
+        }
+        return SnapshotStore.save(context.getApplicationContext(), fm, name);
+    }
+
+    /**
+     * Called to restore a back stack saved by using
+     * {@link #saveBackStackSnapshot(Context, FragmentManager, String)}.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * The whole back stack is set in one pass, like
+     * {@link #setBackStack(FragmentManager, List, FragmentFactory)}, and each fragment is built
+     * from its class, arguments, and saved state. Only the top fragment of each container creates
+     * its view. The views of the covered fragments are created once they surface, or in later
+     * frames with {@link RebuildMode#INCREMENTAL}. Call this from the activity's onCreate method
+     * when its savedInstanceState is null, because otherwise the fragment manager restores its
+     * own back stack. A snapshot saved by another build of the app, or on another build of the
+     * system, cannot be read. It is deleted, and nothing is restored.
+     *
+     * @param context Context: Any context of the app. Only its application context is used.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param name String: The name the snapshot was saved with.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     * Its final back stack is empty if there was nothing to restore.
+     *
+     * @throws IllegalArgumentException If the name is empty or is not a plain file name.
+     */
+    public static OperationHandle restoreBackStackSnapshot(final Context context,
+                                                           final FragmentManager fm,
+                                                           final String name) {
+        SnapshotStore.checkName(name);
+        final Context appContext = context != null ? context.getApplicationContext() : null;
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.SET_BACK_STACK, fm, null) {
+            @Override
+            int execute() {
+                if (fm == null || appContext == null) {
+                    return 0;
+                }
+                BackStackSnapshot snapshot = SnapshotStore.load(appContext, name);
+                if (snapshot == null) {
+                    return 0;
+                }
+                List<BackStackSnapshot.Entry> entries = snapshot.entries;
+                int entriesSize = entries.size();
+                List<FragmentTag> desired = new ArrayList<>(entriesSize);
+                final HashMap<FragmentTag, BackStackSnapshot.Entry> byTag;
+                byTag = new HashMap<>(entriesSize * 2);
+                for (int entry = 0; entry < entriesSize; entry++) {
+                    BackStackSnapshot.Entry layer = entries.get(entry);
+                    desired.add(layer.tag);
+                    byTag.put(layer.tag, layer);
+                }
+                BackStackHost.Factory<Fragment> fromSnapshot;
+                fromSnapshot = new BackStackHost.Factory<Fragment>() {
+                    @Override
+                    public Fragment newFragment(FragmentTag tag) {
+                        BackStackSnapshot.Entry layer = byTag.get(tag);
+                        return layer != null ? SnapshotStore.build(appContext, layer) : null;
                     }
+                };
+                // A sequential rebuild would create every view, so a batched one is used.
+                RebuildMode mode = rebuildMode == RebuildMode.INCREMENTAL
+                        ? RebuildMode.INCREMENTAL : RebuildMode.BATCHED;
+                int transactions = BackStackRebuilder.apply(FragmentManagerHost.of(fm), desired,
+                        fromSnapshot, mode);
+                transactions += FragmentShelf.trim(fm);
+                return transactions;
+            }
+        });
+    }
+
+    /**
+     * Called to delete a back stack snapshot, such as when the user signs out.
+     *
+     * @param context Context: Any context of the app.
+     * @param name String: The name the snapshot was saved with.
+     *
+     * @throws IllegalArgumentException If the name is empty or is not a plain file name.
+     */
+    public static void deleteBackStackSnapshot(Context context, String name) {
+        if (context != null) {
+            SnapshotStore.delete(context.getApplicationContext(), name);
+        }
+    }
+
+    /**
+     * Called to set how many layers of each container keep their full state when the activity
+     * saves its instance state. Zero, the default, means every layer.
+     *
+     * With a depth set, {@link #onSaveInstanceState(Context, FragmentManager, Bundle)} replaces
+     * the state the fragment manager saved with a compact one, once it has been saved. The layers
+     * below the top layers of each container keep only their tag, their class name, and their
+     * small arguments in it, and the rest of their state is written to a file. The fragments
+     * themselves are left as they are. Once the activity is created again from its saved state,
+     * {@link #onRestoreInstanceState(Context, FragmentManager, Bundle)} builds the back stack
+     * again, with every layer at its position and with its state, so back navigation reaches them
+     * as before. This keeps the saved state of a deep back stack small enough for the binder
+     * transaction that carries it, and avoids a TransactionTooLargeException.
+     *
+     * The saved state of the fragment manager is kept in full when it has a fragment that is not
+     * a layer of the back stack added by FragmentBoss, or a retained fragment, as only the
+     * fragment manager can restore those.
+     *
+     * @param keepPerContainer int: The number of top layers of each container to save in full.
+     */
+    public static void setCompactSavedStateDepth(int keepPerContainer) {
+        CompactState.setDepth(keepPerContainer);
+    }
+
+    /**
+     * Called from the activity's onSaveInstanceState method, after it calls the super method.
+     *
+     * Runs right away, and must be called on the UI thread.
+     *
+     * Replaces the state the fragment manager saved with a compact one as set by using
+     * {@link #setCompactSavedStateDepth(int)}, and carries every shelved fragment over in the
+     * outState Bundle as its tag, its class name, and its arguments when they are small. Larger
+     * arguments and the saved state of the covered layers and of the shelved fragments are
+     * written to a file in the app's private files, on a background thread. No fragment is
+     * removed or added. Without this call, shelved fragments are lost when the process is killed.
+     *
+     * @param context Context: Any context of the app. Only its application context is used.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param outState Bundle: The Bundle the activity saves its state into.
+     */
+    public static void onSaveInstanceState(Context context, FragmentManager fm,
+                                           Bundle outState) {
+        if (context == null || fm == null || outState == null) {
+            return;
+        }
+        CompactState.save(context.getApplicationContext(), fm, outState);
+    }
 
+    /**
+     * Called from the activity's onCreate method, after it calls the super method, to put the
+     * fragments carried over by using
+     * {@link #onSaveInstanceState(Context, FragmentManager, Bundle)} back on the shelf, and to
+     * build the compact back stack it saved again.
+     *
+     * Runs right away, and must be called on the UI thread. The back stack is built with a single
+     * rebuild, in the rebuild mode set by using {@link #setRebuildMode(RebuildMode)}, so only the
+     * top fragment of each container creates its view. Other shelved fragments are not built
+     * until they are resurfaced, replaced, or set in the back stack.
+     *
+     * @param context Context: Any context of the app. Only its application context is used.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param savedInstanceState Bundle: The activity's saved state, which may be null.
+     */
+    public static void onRestoreInstanceState(Context context, FragmentManager fm,
+                                              Bundle savedInstanceState) {
+        if (context == null || fm == null) {
+            return;
+        }
+        CompactState.restore(context.getApplicationContext(), fm, savedInstanceState);
+    }
+
+    /**
+     * Called to run several operations on the back stack with a single rebuild.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * The block records operations, such as replace, resurface, bury, remove, and pop, against an
+     * in-memory model of the back stack. Once it returns, the modeled back stack is applied like
+     * {@link #setBackStack(FragmentManager, List, FragmentFactory)}: the layers at the bottom that
+     * did not change are left alone, and the rest is rebuilt once, with a single call to
+     * executePendingTransactions.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param block BackStackBatch.Block: Records the operations. It is called on the UI thread.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle batch(final FragmentManager fm,
+                                        final BackStackBatch.Block block) {
+        return batch(fm, block, null);
+    }
+
+    /**
+     * Called to run several operations on the back stack with a single rebuild, using the given
+     * {@link RebuildMode} for this batch only. See
+     * {@link #batch(FragmentManager, BackStackBatch.Block)}.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param block BackStackBatch.Block: Records the operations. It is called on the UI thread.
+     * @param mode RebuildMode: How the back stack is refilled. Null means the mode set by using
+     *             {@link #setRebuildMode(RebuildMode)}.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle batch(final FragmentManager fm,
+                                        final BackStackBatch.Block block,
+                                        final RebuildMode mode) {
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.BATCH, fm, null) {
+            @Override
+            int execute() {
+                if (fm == null || block == null) {
+                    return 0;
                 }
+                // Record against the model, then rebuild once.
+                BackStackBatch batch = new BackStackBatch(fm);
+                block.record(batch);
+                return batch.apply(mode != null ? mode : rebuildMode);
             }
-        };
-        handler.post(runnable);
+        });
+    }
+
+    /**
+     * Called to set the maximum number of fragments FragmentBoss keeps in the back stack.
+     *
+     * When the back stack grows past the maximum, the least recently surfaced fragments, which are
+     * the lowest ones, are taken out of the fragment manager. The top fragment of each container
+     * is always kept, since it is on screen. Each one taken out is kept only as its tag,
+     * arguments, and saved state. To avoid a rebuild for every new fragment, the back stack is
+     * trimmed to three quarters of the maximum. A fragment taken out this way is built again from
+     * its saved state when it is resurfaced, replaced, or named in
+     * {@link #setBackStack(FragmentManager, List)}. It no longer takes part in back navigation.
+     *
+     * @param maxDepth int: The maximum number of fragments in the back stack. Zero, the default,
+     *                 means there is no maximum.
+     */
+    public static void setMaxBackStackDepth(int maxDepth) {
+        FragmentShelf.setGlobalLimit(maxDepth);
+    }
 
+    /**
+     * Called to set the maximum number of fragments FragmentBoss keeps in the back stack for one
+     * container. Works like {@link #setMaxBackStackDepth(int)}, counting only the fragments placed
+     * in the given container.
+     *
+     * @param containerViewId int: Identifier of the container.
+     * @param maxDepth int: The maximum number of fragments in the container. Zero, the default,
+     *                 means there is no maximum.
+     */
+    public static void setMaxBackStackDepth(int containerViewId, int maxDepth) {
+        FragmentShelf.setContainerLimit(containerViewId, maxDepth);
     }
 
     /**
-     * Called to bury a fragment at the bottom of the back stack.
+     * Called to let FragmentBoss shed fragments when the system asks the app to trim its memory.
      *
-     * Uses a handler that's running on the UI thread.
+     * Registers a ComponentCallbacks2 with the application context, on API 14 and up. Below API
+     * 14 this does nothing. From TRIM_MEMORY_RUNNING_LOW up, the views of the fragments covered by
+     * the top fragment of their container are released, and are created again when the fragment
+     * is back on top. At TRIM_MEMORY_RUNNING_CRITICAL, while the app is still in the foreground,
+     * the covered fragments are taken out of the fragment manager and kept only as their tag and
+     * saved state, the same as with {@link #setMaxBackStackDepth(int)}. The levels that arrive in
+     * the background, such as TRIM_MEMORY_COMPLETE, come after the activity has saved its state,
+     * so they only release views.
      *
-     * First, the current back stack is replicated in an ArrayList. Next, the back stack is emptied,
-     * and all fragments are removed from the fragment manager. Next, the fragment manager and back
-     * stack are refilled beginning with the desired fragment, and then the remaining fragments from
-     * the ArrayList in order.
+     * @param context Context: Any context of the app. Only its application context is kept.
+     */
+    public static void registerTrimMemoryCallbacks(Context context) {
+        MemoryTrimmer.register(context);
+    }
+
+    /**
+     * Called to stop FragmentBoss from shedding fragments when the system asks the app to trim its
+     * memory.
+     *
+     * @param context Context: Any context of the app.
+     */
+    public static void unregisterTrimMemoryCallbacks(Context context) {
+        MemoryTrimmer.unregister(context);
+    }
+
+    /**
+     * Called to shed the fragments of one fragment manager as if the system had asked the app to
+     * trim its memory. Useful from an activity's own onTrimMemory method, instead of
+     * {@link #registerTrimMemoryCallbacks(Context)}.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
      *
      * @param fm FragmentManager: The fragment manager interface being used to interact with the
      *           fragment objects inside of the activity.
-     * @param desiredTagCombo String: The tagCombo is a pipe delimited string of values. Always
-     *                        create the tagCombo by using the {@link #tagJoiner(String, int, long)}
-     *                        method. Always split the tagCombo by using the
-     *                        {@link #tagSplitter(String)} method.
+     * @param level int: The trim memory level, as passed to ComponentCallbacks2.onTrimMemory.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
      */
-    public static void buryFragmentInBackStack(final FragmentManager fm,
-                                               final String desiredTagCombo) {
-        // Get a handler that can be used to post to the main thread
-        Handler handler = new Handler(Looper.getMainLooper());
-        Runnable runnable = new Runnable() {
+    public static OperationHandle onTrimMemory(final FragmentManager fm, final int level) {
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.TRIM_MEMORY, fm, null) {
             @Override
-            public void run() {
-                if (fm != null) {
+            int execute() {
+                return fm != null ? MemoryTrimmer.trim(fm, level) : 0;
+            }
+        });
+    }
 
-                    int backStackEntryCount = fm.getBackStackEntryCount();
-                    if (backStackEntryCount > 0) {
+    /**
+     * Called to choose how the back stack is refilled after a fragment is resurfaced, buried, or
+     * removed. The default is {@link RebuildMode#BATCHED}.
+     *
+     * @param mode RebuildMode: The rebuild mode to use from now on.
+     */
+    public static void setRebuildMode(RebuildMode mode) {
+        if (mode != null) {
+            rebuildMode = mode;
+        }
+    }
 
-                        // Populate our own ArrayList of the current back stack entries.
-                        ArrayList<BackStackBoss> backStackArrayList = new ArrayList<>();
-                        for (int entry = 0; entry < backStackEntryCount; entry++) {
+    /**
+     * Called to get the current rebuild mode.
+     *
+     * @return The return value is the RebuildMode set by using
+     * {@link #setRebuildMode(RebuildMode)}.
+     */
+    public static RebuildMode getRebuildMode() {
+        return rebuildMode;
+    }
 
-                            // Get the tagCombo from this back stack entry in the fragment manager.
-                            String tagCombo = fm.getBackStackEntryAt(entry).getName();
+    /**
+     * Called to choose which layers a resurface or a bury may move.
+     *
+     * With {@link ReorderScope#CONTAINER}, only the layers in the same container as the resurfaced
+     * or buried fragment are reordered, and the fragments of other containers keep their place in
+     * the back stack. This suits layouts with several containers, such as a master and a detail
+     * pane. The default is {@link ReorderScope#BACK_STACK}.
+     *
+     * @param scope ReorderScope: The reorder scope to use from now on.
+     */
+    public static void setReorderScope(ReorderScope scope) {
+        BackStackRebuilder.setReorderScope(scope);
+    }
 
-                            // Using BackStackBoss(), set the back stack entry values.
-                            BackStackBoss bsb = new BackStackBoss();
-                            bsb.setTagCombo(tagCombo);
-                            bsb.setTagTitle(tagSplitter(tagCombo)[0]);
-                            bsb.setContainerViewId(Integer.valueOf(tagSplitter(tagCombo)[1]));
-                            bsb.setDbRecordId(Long.valueOf(tagSplitter(tagCombo)[2]));
-                            bsb.setFragment(fm.findFragmentByTag(tagCombo));
+    /**
+     * Called to get the current reorder scope.
+     *
+     * @return The return value is the ReorderScope set by using
+     * {@link #setReorderScope(ReorderScope)}.
+     */
+    public static ReorderScope getReorderScope() {
+        return BackStackRebuilder.getReorderScope();
+    }
 
-                            // Add the backStackBoss to our array list.
-                            backStackArrayList.add(bsb);
+    /**
+     * Called to choose what happens to the fragment that was on top of a container when another
+     * fragment is placed over it, for every container without a mode of its own.
+     *
+     * The default is {@link SurfaceMode#HIDE_SHOW}, which keeps covered views so that resurfacing
+     * them needs no inflation. {@link SurfaceMode#DETACH_ATTACH} destroys covered views to save
+     * memory. Changing the mode only affects layers added afterwards.
+     *
+     * @param mode SurfaceMode: The surface mode to use from now on.
+     */
+    public static void setSurfaceMode(SurfaceMode mode) {
+        Surfacer.setDefaultMode(mode);
+    }
 
-                        }
+    /**
+     * Called to choose what happens to the fragment that was on top of one container when another
+     * fragment is placed over it. See {@link #setSurfaceMode(SurfaceMode)}.
+     *
+     * @param containerViewId int: Identifier of the container.
+     * @param mode SurfaceMode: The surface mode of the container, or null to use the default.
+     */
+    public static void setSurfaceMode(int containerViewId, SurfaceMode mode) {
+        Surfacer.setContainerMode(containerViewId, mode);
+    }
 
-                        int backStackArrayListSize = backStackArrayList.size();
+    /**
+     * Called to set how much of each frame may be spent creating the views that an
+     * {@link RebuildMode#INCREMENTAL} rebuild deferred. The default is 4 milliseconds.
+     *
+     * @param budgetMillis long: The budget per frame, in milliseconds. At least one view is
+     *                     created per frame, even with a budget of zero.
+     */
+    public static void setFrameBudgetMillis(long budgetMillis) {
+        FrameScheduler.setFrameBudgetMillis(budgetMillis);
+    }
 
-                        // Clear the fragment manager back stack completely
-                        FragmentManager.BackStackEntry firstEntry = fm.getBackStackEntryAt(0);
-                        fm.popBackStackImmediate(
-                                firstEntry.getId(),
-                                FragmentManager.POP_BACK_STACK_INCLUSIVE
-                        );
-                        fm.executePendingTransactions();
-
-                        // Remove all fragments from the fragment manager
-                        for (int entry = 0; entry < backStackArrayListSize; entry++) {
-                            BackStackBoss bsb = backStackArrayList.get(entry);
-                            Fragment entryFragment = bsb.getFragment();
-                            FragmentTransaction ft = fm.beginTransaction();
-                            ft.remove(entryFragment);
-                            ft.commit();
-                        }
-                        fm.executePendingTransactions();
-
-                        // First, the desired fragment is added to the fragment manager and back stack,
-                        // leaving it on the bottom.
-                        for (int entry = 0; entry < backStackArrayListSize; entry++) {
-                            BackStackBoss bsb = backStackArrayList.get(entry);
-                            int containerViewId = bsb.getContainerViewId();
-                            Fragment fragment = bsb.getFragment();
-                            String tagCombo = bsb.getTagCombo();
-                            if (tagCombo.equals(desiredTagCombo)) {
-                                FragmentTransaction ft = fm.beginTransaction();
-                                ft.add(containerViewId, fragment, tagCombo);
-                                ft.addToBackStack(tagCombo);
-                                ft.commit();
-                            }
-                        }
-                        fm.executePendingTransactions();
-
-                        // Next, the fragment manager and back stack are refilled with the remaining
-                        // fragments from the ArrayList in order.
-                        for (int entry = 0; entry < backStackArrayListSize; entry++) {
-                            BackStackBoss bsb = backStackArrayList.get(entry);
-                            int containerViewId = bsb.getContainerViewId();
-                            Fragment fragment = bsb.getFragment();
-                            String tagCombo = bsb.getTagCombo();
-                            if (!tagCombo.equals(desiredTagCombo)) {
-                                FragmentTransaction ft = fm.beginTransaction();
-                                ft.add(containerViewId, fragment, tagCombo);
-                                ft.addToBackStack(tagCombo);
-                                ft.commit();
-                            }
-                        }
-                        fm.executePendingTransactions();
+    /**
+     * Called to set how many removed fragments are kept for reuse for a tagTitle. The pool is
+     * empty by default.
+     *
+     * A fragment that implements {@link Recyclable}, and is removed from the fragment manager, is
+     * kept in the pool of its tagTitle until the pool is full. When
+     * {@link #replaceFragmentInContainer(int, FragmentManager, FragmentFactory, String)} needs a
+     * new fragment with that tagTitle, a pooled fragment is rebound to the new tag instead of
+     * calling the factory. This saves building a new fragment when flipping quickly through
+     * records that differ only in their dbRecordId. Only the fragment instance is reused, so its
+     * view is inflated again once it is added. Each fragment manager has its own pools, which
+     * start with the first FragmentBoss call on it and are dropped when its activity is destroyed.
+     * A pooled fragment is told to release its old tag by {@link Recyclable#onRecycle()} when it
+     * is taken, and its old arguments are cleared before it is rebound.
+     *
+     * @param tagTitle String: The tagTitle of the fragments to pool.
+     * @param poolSize int: The most fragments to keep. Zero turns pooling off for the tagTitle.
+     */
+    public static void setRecyclePoolSize(String tagTitle, int poolSize) {
+        FragmentRecycler.setPoolSize(tagTitle, poolSize);
+    }
 
-                    }
+    /**
+     * Called to turn predictive prefetching on or off. Prefetching is off by default.
+     *
+     * While prefetching is on, FragmentBoss learns which tagTitle tends to be shown after which
+     * from each replace and resurface. When the UI thread is idle, it builds the fragments most
+     * likely to be shown next, with their no-argument constructors, one per idle slot. A fragment
+     * that implements {@link Prefetchable} can also inflate its view at that time. Take a
+     * prefetched fragment by using {@link #takePrefetchedFragment(FragmentManager, String)}, such
+     * as from a {@link FragmentFactory}, so that showing it only takes a commit. Prefetched
+     * fragments are dropped when their activity is destroyed, and when prefetching is turned off.
+     *
+     * @param enabled boolean: True to turn prefetching on.
+     */
+    public static void setPrefetchEnabled(boolean enabled) {
+        FragmentPrefetcher.setEnabled(enabled);
+    }
 
-                }
-            }
-        };
-        handler.post(runnable);
+    /**
+     * Called to take the fragment that was prefetched for a tagTitle, if there is one.
+     *
+     * Must be called on the UI thread. The fragment has no arguments, and is not in any fragment
+     * manager. Set its arguments before it is added.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity. Only fragments prefetched for this
+     *           fragment manager are taken.
+     * @param tagTitle String: The tagTitle the fragment will be added with.
+     *
+     * @return The return value is the prefetched Fragment, or null if none was prefetched for the
+     * tagTitle or prefetching is off.
+     */
+    public static Fragment takePrefetchedFragment(FragmentManager fm, String tagTitle) {
+        if (fm == null || tagTitle == null) {
+            return null;
+        }
+        return FragmentPrefetcher.take(fm, tagTitle);
+    }
+
+    /**
+     * Called to turn the built-in metrics on or off. Metrics are off by default.
+     *
+     * While metrics are on, FragmentBoss keeps a latency histogram for each kind of operation,
+     * counts the transactions it commits and the fragments it tears down and adds back, and tracks
+     * the depth of the back stack. Each phase of a rebuild, which is the snapshot of the back
+     * stack, clearing it, removing leftover fragments, and adding fragments back, is also marked
+     * as a section in the system trace, on API 18 and up. Turning metrics off keeps what was
+     * recorded so far.
+     *
+     * @param enabled boolean: True to turn metrics on.
+     */
+    public static void setMetricsEnabled(boolean enabled) {
+        MetricsRegistry.setEnabled(enabled, TRACE_COMPAT);
+    }
+
+    /**
+     * Called to take a snapshot of the metrics recorded since metrics were turned on, or last
+     * reset. May be called on any thread.
+     *
+     * @return The return value is a FragmentBossMetrics, which never changes once taken.
+     */
+    public static FragmentBossMetrics getMetrics() {
+        return MetricsRegistry.snapshot();
+    }
+
+    /**
+     * Called to forget the metrics recorded so far. Metrics stay on or off as they were.
+     */
+    public static void resetMetrics() {
+        MetricsRegistry.reset();
+    }
+
+    /**
+     * Called to add a listener that is called after every measured operation, while metrics are
+     * on. Adding the same listener again does nothing.
+     *
+     * @param listener FragmentBossMetrics.Listener: The listener to call.
+     */
+    public static void addMetricsListener(FragmentBossMetrics.Listener listener) {
+        MetricsRegistry.addListener(listener);
+    }
+
+    /**
+     * Called to remove a listener added by using
+     * {@link #addMetricsListener(FragmentBossMetrics.Listener)}.
+     *
+     * @param listener FragmentBossMetrics.Listener: The listener to remove.
+     */
+    public static void removeMetricsListener(FragmentBossMetrics.Listener listener) {
+        MetricsRegistry.removeListener(listener);
     }
 
     /**
      * Called to pop the top fragment off of the fragment manager's back stack.
      *
-     * Uses a handler that's running on the UI thread.
+     * Runs on the UI thread. When called on the UI thread, runs right away.
      *
      * @param fm FragmentManager: The fragment manager interface being used to interact with the
      *           fragment objects inside of the activity.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
      */
-    public static void popBackStack(final FragmentManager fm) {
-        // Get a handler that can be used to post to the main thread
-        Handler handler = new Handler(Looper.getMainLooper());
-        Runnable runnable = new Runnable() {
+    public static OperationHandle popBackStack(final FragmentManager fm) {
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.POP, fm, null) {
             @Override
-            public void run() {
+            int execute() {
                 // Pop the top fragment off of the back stack.
-                fm.popBackStackImmediate();
+                boolean popped = fm.popBackStackImmediate();
                 fm.executePendingTransactions();
+                return popped ? 1 : 0;
             }
-        };
-        handler.post(runnable);
+        });
     }
 
     /**
@@ -345,15 +985,10 @@ public class FragmentBoss {
      * @return The return value is a pipe delimited String. This is called the tagCombo.
      */
     public static String tagJoiner(String tagTitle, int containerViewId, long dbRecordId) {
-        String result = new String();
+        String result = "";
         // At a minimum, the tagTitle must be supplied.
         if (tagTitle != null) {
-            Joiner joiner = Joiner.on("|");
-            result = joiner.join(
-                    tagTitle,
-                    String.valueOf(containerViewId),
-                    String.valueOf(dbRecordId)
-            );
+            result = FragmentTag.join(tagTitle, containerViewId, dbRecordId);
         }
         return result;
     }
@@ -361,18 +996,21 @@ public class FragmentBoss {
     /**
      * Called to split multiple fields from a pipe delimited String.
      *
+     * The String is split on every pipe, without building any intermediate collection. To read the
+     * fields as typed values, and without splitting the String at all, use
+     * {@link FragmentTag#valueOf(String)}.
+     *
      * @param tagCombo String: A pipe delimited String containing multiple values.
      *
      * @return The return value is a String array of the separated values from the tagCombo. These
      * values are: The String which is the fragment tag title; the string value of the int which
-     * is the fragment's containerViewId.
+     * is the fragment's containerViewId; the string value of the long which is the fragment's
+     * dbRecordId.
      */
     public static String[] tagSplitter(String tagCombo) {
         String[] result = new String[0];
         if (tagCombo != null) {
-            Splitter splitter = Splitter.on("|");
-            Iterable<String> iterable = splitter.split(tagCombo);
-            result = Iterables.toArray(iterable, String.class);
+            result = FragmentTag.split(tagCombo);
         }
         return result;
     }
@@ -381,6 +1019,11 @@ public class FragmentBoss {
      * Called to locate and return a fragment where the tagCombo contains matching tagTitle and
      * dbRecordId values.
      *
+     * The fragment is found in the back stack index, which is kept up to date as the back stack
+     * changes, so the back stack entries are not walked and split on every call. May be called on
+     * any thread. Off the UI thread, the back stack is read as it was published once the last
+     * operation ran, from an immutable snapshot.
+     *
      * @param fm FragmentManager: The fragment manager interface being used to interact with the
      *           fragment objects inside of the activity.
      * @param desiredTagTitle String: The first of two pipe delimited values contained in the
@@ -394,39 +1037,78 @@ public class FragmentBoss {
     public static Fragment findFragmentByTagTitleAndDbId(final FragmentManager fm,
                                                          String desiredTagTitle,
                                                          long desiredDbRecordId) {
+        long start = MetricsRegistry.start();
+        Fragment found = null;
         if (fm != null) {
+            // The published snapshot keeps each layer parsed, grouped by tagTitle, and is safe to
+            // read on any thread.
+            found = FragmentManagerHost.published(fm).findByTagTitleAndDbId(desiredTagTitle,
+                    desiredDbRecordId);
+        }
+        MetricsRegistry.found(start, MainThreadDispatcher.isMainThread() ? null : UI_THREAD);
+        // If no fragment tagTitle matched, return null.
+        return found;
+    }
 
-            int backStackEntryCount = fm.getBackStackEntryCount();
-
-            if (backStackEntryCount > 0) {
-
-                for (int entry = 0; entry < backStackEntryCount; entry++) {
-
-                    // Gather the details from the back stack entry in the fragment manager.
-                    String tagCombo = fm.getBackStackEntryAt(entry).getName();
-                    String tagTitle = tagSplitter(tagCombo)[0];
-                    int contViewId = Integer.valueOf(tagSplitter(tagCombo)[1]);
-                    long dbRecordId = Long.valueOf(tagSplitter(tagCombo)[2]);
-
-                    // If the fragment tagTitle and DB record ID are a match, return the fragment.
-                    if (tagTitle.equals(desiredTagTitle) && dbRecordId == desiredDbRecordId) {
-                        return fm.findFragmentByTag(tagCombo);
-                    }
-
-                }
-
-            }
+    /**
+     * Called to locate and return every fragment placed in a container by the back stack.
+     *
+     * The fragments are found in the back stack index, by the containerViewId in their tagCombo,
+     * without walking the rest of the back stack. May be called on any thread, like
+     * {@link #findFragmentByTagTitleAndDbId(FragmentManager, String, long)}.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param containerViewId int: Identifier of the container.
+     *
+     * @return The return value is a List of the fragments in the container, bottom first. The list
+     * is empty if no fragment is found.
+     */
+    public static List<Fragment> findFragmentsInContainer(final FragmentManager fm,
+                                                          int containerViewId) {
+        long start = MetricsRegistry.start();
+        List<Fragment> fragments;
+        if (fm != null) {
+            fragments = FragmentManagerHost.published(fm).inContainer(containerViewId);
+        } else {
+            fragments = new ArrayList<>();
+        }
+        MetricsRegistry.found(start, MainThreadDispatcher.isMainThread() ? null : UI_THREAD);
+        return fragments;
+    }
 
+    /**
+     * Called to check whether the fragment with the given tagCombo is at the top of the back
+     * stack. May be called on any thread, like
+     * {@link #findFragmentByTagTitleAndDbId(FragmentManager, String, long)}.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param tagCombo String: The tagCombo is a pipe delimited string of values. Always create the
+     *                 tagCombo by using the {@link #tagJoiner(String, int, long)} method.
+     *
+     * @return The return value is true if the top layer of the back stack has the given tagCombo.
+     */
+    public static boolean isFragmentOnTop(final FragmentManager fm, String tagCombo) {
+        long start = MetricsRegistry.start();
+        boolean onTop = false;
+        if (fm != null && tagCombo != null) {
+            FragmentTag top = FragmentManagerHost.published(fm).top();
+            onTop = top != null && top.getTagCombo().equals(tagCombo);
         }
-        // If no fragment tagTitle matched, return null.
-        return null;
+        MetricsRegistry.found(start, MainThreadDispatcher.isMainThread() ? null : UI_THREAD);
+        return onTop;
     }
 
     /**
      * Called to remove a fragment from the fragment manager and back stack. The fragment is located
      * by matching on the tagTitle and dbRecordId, fields in the BackStackBoss tagCombo.
      *
-     * Uses a handler that's running on the UI thread.
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * Only the undesired fragment and the fragments above it are popped off of the back stack. The
+     * fragments above it are added back in order. How the back stack is refilled depends on the
+     * {@link RebuildMode}.
      *
      * @param fm FragmentManager: The fragment manager interface being used to interact with the
      *           fragment objects inside of the activity.
@@ -435,176 +1117,182 @@ public class FragmentBoss {
      *                          string used to identify a fragment.
      * @param undesiredDbRecordId long: A database record ID, such as a unique column or primary key
      *                            value.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
      */
-    public static void removeFragmentByTagTitleAndDbId(final FragmentManager fm,
-                                                       final String undesiredTagTitle,
-                                                       final long undesiredDbRecordId) {
-
-        // Get a handler that can be used to post to the main thread
-        Handler handler = new Handler(Looper.getMainLooper());
-        Runnable runnable = new Runnable() {
+    public static OperationHandle removeFragmentByTagTitleAndDbId(
+            final FragmentManager fm, final String undesiredTagTitle,
+            final long undesiredDbRecordId) {
+
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.REMOVE, fm, undesiredTagTitle,
+                undesiredDbRecordId) {
             @Override
-            public void run() {
-                if (fm != null) {
-
-                    int backStackEntryCount = fm.getBackStackEntryCount();
-
-                    if (backStackEntryCount > 0) {
-
-                        // Populate our own ArrayList of the current back stack entries.
-                        ArrayList<BackStackBoss> backStackArrayList = new ArrayList<>();
-                        for (int entry = 0; entry < backStackEntryCount; entry++) {
-
-                            // Get the tagCombo from this back stack entry in the fragment manager.
-                            String tagCombo = fm.getBackStackEntryAt(entry).getName();
-
-                            // Using BackStackBoss(), set the back stack entry values.
-                            BackStackBoss bsb = new BackStackBoss();
-                            bsb.setTagCombo(tagCombo);
-                            bsb.setTagTitle(tagSplitter(tagCombo)[0]);
-                            bsb.setContainerViewId(Integer.valueOf(tagSplitter(tagCombo)[1]));
-                            bsb.setDbRecordId(Long.valueOf(tagSplitter(tagCombo)[2]));
-                            bsb.setFragment(fm.findFragmentByTag(tagCombo));
-
-                            // Add the backStackBoss to our array list.
-                            backStackArrayList.add(bsb);
-
-                        }
-
-                        int backStackArrayListSize = backStackArrayList.size();
-
-                        // Clear the fragment manager back stack completely
-                        FragmentManager.BackStackEntry firstEntry = fm.getBackStackEntryAt(0);
-                        fm.popBackStackImmediate(
-                                firstEntry.getId(),
-                                FragmentManager.POP_BACK_STACK_INCLUSIVE
-                        );
-                        fm.executePendingTransactions();
-
-                        // Remove all fragments from the fragment manager
-                        for (int entry = 0; entry < backStackArrayListSize; entry++) {
-                            BackStackBoss bsb = backStackArrayList.get(entry);
-                            Fragment entryFragment = bsb.getFragment();
-                            FragmentTransaction ft = fm.beginTransaction();
-                            ft.remove(entryFragment);
-                            ft.commit();
-                        }
-                        fm.executePendingTransactions();
-
-                        // The fragment manager and back stack are refilled from the ArrayList in order,
-                        // skipping the undesired fragment.
-                        for (int entry = 0; entry < backStackArrayListSize; entry++) {
-
-                            BackStackBoss bsb = backStackArrayList.get(entry);
-
-                            Fragment fragment = bsb.getFragment();
-                            String tagCombo = bsb.getTagCombo();
-                            String tagTitle = bsb.getTagTitle();
-                            int containerViewId = bsb.getContainerViewId();
-                            long dbRecordId = bsb.getDbRecordId();
-
-                            String entryCombo = tagTitle + String.valueOf(dbRecordId);
-                            String undesiredCombo;
-                            undesiredCombo = undesiredTagTitle + String.valueOf(undesiredDbRecordId);
-
-                            if (!entryCombo.equals(undesiredCombo)) {
-                                FragmentTransaction ft = fm.beginTransaction();
-                                ft.add(containerViewId, fragment, tagCombo);
-                                ft.addToBackStack(tagCombo);
-                                ft.commit();
-                            }
-
-                        }
-                        fm.executePendingTransactions();
-
-                    }
-
+            int execute() {
+                if (fm == null) {
+                    return 0;
                 }
+                // Only the undesired layer and the layers above it are moved.
+                int transactions = BackStackRebuilder.remove(
+                        FragmentManagerHost.of(fm),
+                        undesiredTagTitle,
+                        undesiredDbRecordId,
+                        rebuildMode
+                );
+                FragmentShelf.of(fm).discard(new TagPredicate() {
+                    @Override
+                    public boolean test(FragmentTag tag) {
+                        return tag.matches(undesiredTagTitle, undesiredDbRecordId);
+                    }
+                });
+                return transactions;
             }
-        };
-        handler.post(runnable);
+        });
 
     }
 
     /**
+     * Called to remove every fragment whose tag matches a predicate from the fragment manager and
+     * back stack, with a single rebuild.
      *
-     * Called to call the onResume method in the fragment at the top of the back stack.
+     * Runs on the UI thread. When called on the UI thread, runs right away.
      *
-     * Uses a handler that's running on the UI thread.
+     * Only the lowest matching fragment and the fragments above it are popped off of the back
+     * stack. The fragments above it that do not match are added back in order. How the back stack
+     * is refilled depends on the {@link RebuildMode}.
      *
      * @param fm FragmentManager: The fragment manager interface being used to interact with the
      *           fragment objects inside of the activity.
+     * @param predicate TagPredicate: Matches the tags of the fragments to remove. It is called on
+     *                  the UI thread.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
      */
-    public static void topFragmentOnResume(final FragmentManager fm) {
-        // Get a handler that can be used to post to the main thread
-        Handler handler = new Handler(Looper.getMainLooper());
-        Runnable runnable = new Runnable() {
+    public static OperationHandle removeFragments(final FragmentManager fm,
+                                                  final TagPredicate predicate) {
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.REMOVE_MATCHING, fm, null) {
             @Override
-            public void run() {
-                if (fm != null) {
-                    int backStackEntryCount = fm.getBackStackEntryCount();
-                    if (backStackEntryCount > 0) {
-                        String tagCombo = fm.getBackStackEntryAt(backStackEntryCount - 1).getName();
-                        Fragment fragment = fm.findFragmentByTag(tagCombo);
-                        fragment.onResume();
-                    }
+            int execute() {
+                if (fm == null || predicate == null) {
+                    return 0;
                 }
+                // Only the lowest matching layer and the layers above it are moved.
+                int transactions = BackStackRebuilder.removeMatching(
+                        FragmentManagerHost.of(fm),
+                        predicate,
+                        rebuildMode
+                );
+                FragmentShelf.of(fm).discard(predicate);
+                return transactions;
             }
-        };
-        handler.post(runnable);
+        });
     }
 
     /**
-     * This class represents a layer from the back stack.
+     * Called to remove every fragment with the given tagTitle, whatever its dbRecordId, with a
+     * single rebuild.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
      *
-     * Each layer includes a {@link #containerViewId}, {@link #fragment}, and {@link #tagCombo}.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param undesiredTagTitle String: The tagTitle of the fragments to remove.
      *
-     * The {@link #tagCombo} is a pipe delimited string, containing a {@link #tagTitle} and
-     * {@link #containerViewId} at minimum, so that the FragmentManager back stack may be
-     * deconstructed and reconstructed later. It can also contain a {@link #dbRecordId} to associate
-     * a database value with the fragment.
+     * @return The return value is an OperationHandle that completes once the operation has run.
      */
-    static class BackStackBoss {
-
-        public int containerViewId;
-        public Fragment fragment;
-        public String tagCombo;
-        public String tagTitle;
-        public long dbRecordId;
+    public static OperationHandle removeFragmentsByTagTitle(final FragmentManager fm,
+                                                            final String undesiredTagTitle) {
+        return removeFragments(fm, new TagPredicate() {
+            @Override
+            public boolean test(FragmentTag tag) {
+                return tag.getTagTitle().equals(undesiredTagTitle);
+            }
+        });
+    }
 
-        public int getContainerViewId() {
-            return containerViewId;
-        }
-        public Fragment getFragment() {
-            return fragment;
-        }
-        public String getTagCombo() {
-            return tagCombo;
-        }
-        public String getTagTitle() {
-            return tagTitle;
-        }
-        public long getDbRecordId() {
-            return dbRecordId;
-        }
+    /**
+     * Called to remove every fragment placed in the given container, with a single rebuild.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param containerViewId int: Identifier of the container whose fragments are to be removed.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle removeFragmentsInContainer(final FragmentManager fm,
+                                                             final int containerViewId) {
+        return removeFragments(fm, new TagPredicate() {
+            @Override
+            public boolean test(FragmentTag tag) {
+                return tag.getContainerViewId() == containerViewId;
+            }
+        });
+    }
 
-        public void setContainerViewId(int containerViewId) {
-            this.containerViewId = containerViewId;
-        }
-        public void setFragment(Fragment fragment) {
-            this.fragment = fragment;
-        }
-        public void setTagCombo(String tagCombo) {
-            this.tagCombo = tagCombo;
-        }
-        public void setTagTitle(String tagTitle) {
-            this.tagTitle = tagTitle;
-        }
-        public void setDbRecordId(long dbRecordId) {
-            this.dbRecordId = dbRecordId;
+    /**
+     * Called to remove every fragment whose dbRecordId is one of the given values, whatever its
+     * tagTitle, with a single rebuild.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param undesiredDbRecordIds long...: The dbRecordIds of the fragments to remove. The values
+     *                             are copied, so the array may be changed after this call.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle removeFragmentsByDbRecordIds(final FragmentManager fm,
+                                                               long... undesiredDbRecordIds) {
+        if (undesiredDbRecordIds == null || undesiredDbRecordIds.length == 0) {
+            return removeFragments(fm, null);
         }
+        // A sorted copy is searched, so that no value is boxed.
+        final long[] sortedDbRecordIds = undesiredDbRecordIds.clone();
+        Arrays.sort(sortedDbRecordIds);
+        return removeFragments(fm, new TagPredicate() {
+            @Override
+            public boolean test(FragmentTag tag) {
+                return Arrays.binarySearch(sortedDbRecordIds, tag.getDbRecordId()) >= 0;
+            }
+        });
+    }
 
+    /**
+     *
+     * Called to call the onResume method in the fragment at the top of the back stack.
+     *
+     * Runs on the UI thread. When called on the UI thread, runs right away.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     *
+     * @return The return value is an OperationHandle that completes once the operation has run.
+     */
+    public static OperationHandle topFragmentOnResume(final FragmentManager fm) {
+        // Run on the main thread, right away if this is the main thread.
+        return MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.TOP_ON_RESUME, fm, null) {
+            @Override
+            int execute() {
+                if (fm != null) {
+                    BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+                    BackStackIndex.Layer top = index.top();
+                    if (top != null) {
+                        Fragment fragment = index.fragmentOf(top);
+                        if (fragment != null) {
+                            fragment.onResume();
+                        }
+                    }
+                }
+                return 0;
+            }
+        });
     }
 
 }
-
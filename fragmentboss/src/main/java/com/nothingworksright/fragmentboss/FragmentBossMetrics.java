@@ -0,0 +1,291 @@
+package com.nothingworksright.fragmentboss;
+
+/**
+ * FragmentBossMetrics is a snapshot of what FragmentBoss has measured since metrics were enabled,
+ * or since they were last reset.
+ *
+ * Metrics are off by default, and cost nothing until they are turned on with
+ * {@link FragmentBoss#setMetricsEnabled(boolean)}. Once on, FragmentBoss keeps a latency histogram
+ * per kind of operation, counts the transactions it commits and the fragments it adds back after
+ * tearing them down, and tracks the depth of the back stack. Take a snapshot with
+ * {@link FragmentBoss#getMetrics()}, or add a {@link Listener} with
+ * {@link FragmentBoss#addMetricsListener(Listener)} to hear about each operation as it runs. A
+ * snapshot never changes once it is taken, so it can be handed to any thread for export.
+ */
+public final class FragmentBossMetrics {
+
+    /**
+     * Operation names the kinds of FragmentBoss operations that are measured.
+     */
+    public enum Operation {
+
+        /**
+         * {@link FragmentBoss#replaceFragmentInContainer}.
+         */
+        REPLACE,
+
+        /**
+         * {@link FragmentBoss#resurfaceFragmentInBackStack}.
+         */
+        RESURFACE,
+
+        /**
+         * {@link FragmentBoss#buryFragmentInBackStack}.
+         */
+        BURY,
+
+        /**
+         * {@link FragmentBoss#popBackStack}.
+         */
+        POP,
+
+        /**
+         * {@link FragmentBoss#removeFragmentByTagTitleAndDbId}, and the methods that remove every
+         * matching fragment.
+         */
+        REMOVE,
+
+        /**
+         * {@link FragmentBoss#findFragmentByTagTitleAndDbId},
+         * {@link FragmentBoss#findFragmentsInContainer} and {@link FragmentBoss#isFragmentOnTop}.
+         */
+        FIND,
+
+        /**
+         * {@link FragmentBoss#setBackStack}.
+         */
+        SET_BACK_STACK,
+
+        /**
+         * {@link FragmentBoss#batch}.
+         */
+        BATCH,
+
+        /**
+         * {@link FragmentBoss#onTrimMemory}, and the trims of
+         * {@link FragmentBoss#registerTrimMemoryCallbacks}.
+         */
+        TRIM_MEMORY
+
+    }
+
+    private final Histogram[] latencies;
+    private final long transactionsCommitted;
+    private final long fragmentsReadded;
+    private final int backStackDepth;
+    private final int maxBackStackDepth;
+
+    FragmentBossMetrics(Histogram[] latencies, long transactionsCommitted, long fragmentsReadded,
+                        int backStackDepth, int maxBackStackDepth) {
+        this.latencies = latencies;
+        this.transactionsCommitted = transactionsCommitted;
+        this.fragmentsReadded = fragmentsReadded;
+        this.backStackDepth = backStackDepth;
+        this.maxBackStackDepth = maxBackStackDepth;
+    }
+
+    /**
+     * Called to get the latency histogram of one kind of operation. The latency is the time the
+     * operation ran on the UI thread, not counting any time spent waiting for it.
+     *
+     * @param operation Operation: The kind of operation.
+     *
+     * @return The return value is the Histogram of the operation.
+     */
+    public Histogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    /**
+     * Called to get the number of fragment transactions committed by FragmentBoss operations,
+     * counting a pop as one.
+     *
+     * @return The return value is the number of transactions.
+     */
+    public long getTransactionsCommitted() {
+        return transactionsCommitted;
+    }
+
+    /**
+     * Called to get the number of fragments that a rebuild tore down and then added back, each of
+     * which created its view and restored its state again. Only a
+     * {@link RebuildMode#SEQUENTIAL} rebuild tears fragments down.
+     *
+     * @return The return value is the number of fragments added back.
+     */
+    public long getFragmentsReadded() {
+        return fragmentsReadded;
+    }
+
+    /**
+     * Called to get the depth of the back stack that the last operation left behind.
+     *
+     * @return The return value is the number of layers in the back stack.
+     */
+    public int getBackStackDepth() {
+        return backStackDepth;
+    }
+
+    /**
+     * Called to get the deepest the back stack has been after an operation.
+     *
+     * @return The return value is the largest number of layers seen in the back stack.
+     */
+    public int getMaxBackStackDepth() {
+        return maxBackStackDepth;
+    }
+
+    /**
+     * Histogram counts latencies in buckets that double in width.
+     *
+     * The first bucket holds everything under one microsecond, 1024 nanoseconds to be exact. Each
+     * bucket after it ends at twice the end of the one before, and the last bucket has no end.
+     * Recording a latency only adds one to its bucket, so the histogram is cheap to keep, and a
+     * percentile is accurate to within a factor of two.
+     */
+    public static final class Histogram {
+
+        static final int BUCKETS = 32;
+        private static final int FIRST_BUCKET_SHIFT = 10;
+
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        Histogram(long[] counts, long count, long totalNanos, long maxNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * Called to find the bucket of a latency.
+         */
+        static int bucketOf(long nanos) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos) >>> FIRST_BUCKET_SHIFT);
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        /**
+         * Called to get the number of latencies recorded.
+         *
+         * @return The return value is the number of operations measured.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Called to get the sum of every latency recorded.
+         *
+         * @return The return value is the total in nanoseconds.
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Called to get the mean latency.
+         *
+         * @return The return value is the mean in nanoseconds, or 0 if nothing was recorded.
+         */
+        public long getMeanNanos() {
+            return count > 0 ? totalNanos / count : 0;
+        }
+
+        /**
+         * Called to get the longest latency recorded.
+         *
+         * @return The return value is the maximum in nanoseconds, or 0 if nothing was recorded.
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Called to estimate a percentile of the latencies, such as 50 for the median or 99 for
+         * the 99th percentile.
+         *
+         * @param percentile double: The percentile, from 0 to 100.
+         *
+         * @return The return value is the end of the bucket holding the percentile, but never more
+         * than the maximum, in nanoseconds. It is 0 if nothing was recorded.
+         */
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            double clamped = Math.min(100, Math.max(0, percentile));
+            long rank = Math.max(1, (long) Math.ceil(clamped / 100 * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    return Math.min(getBucketEndNanos(bucket), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        /**
+         * Called to get the number of buckets, for exporting the whole histogram.
+         *
+         * @return The return value is the number of buckets.
+         */
+        public int getBucketCount() {
+            return BUCKETS;
+        }
+
+        /**
+         * Called to get the number of latencies in one bucket.
+         *
+         * @param bucket int: The bucket, from 0 up to {@link #getBucketCount()} - 1.
+         *
+         * @return The return value is the number of latencies in the bucket.
+         */
+        public long getCountInBucket(int bucket) {
+            return counts[bucket];
+        }
+
+        /**
+         * Called to get where one bucket ends. A bucket holds the latencies from the end of the
+         * bucket before it, inclusive, up to its own end, exclusive.
+         *
+         * @param bucket int: The bucket, from 0 up to {@link #getBucketCount()} - 1.
+         *
+         * @return The return value is the end of the bucket in nanoseconds, or Long.MAX_VALUE for
+         * the last bucket.
+         */
+        public long getBucketEndNanos(int bucket) {
+            if (bucket >= BUCKETS - 1) {
+                return Long.MAX_VALUE;
+            }
+            return 1L << (bucket + FIRST_BUCKET_SHIFT);
+        }
+
+    }
+
+    /**
+     * Listener is called after every measured FragmentBoss operation, to export metrics as they
+     * happen.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the UI thread, right after an operation has run. A lookup made off the UI
+         * thread is posted to the UI thread and reported shortly after. Keep it short, because
+         * the next operation waits for it.
+         *
+         * @param operation Operation: The kind of operation.
+         * @param durationNanos long: How long the operation ran, in nanoseconds.
+         * @param transactions int: The number of transactions the operation committed.
+         * @param backStackDepth int: The depth of the back stack after the operation.
+         */
+        void onOperation(Operation operation, long durationNanos, int transactions,
+                         int backStackDepth);
+
+    }
+
+}
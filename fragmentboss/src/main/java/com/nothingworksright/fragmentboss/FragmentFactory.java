@@ -0,0 +1,23 @@
+package com.nothingworksright.fragmentboss;
+
+import android.support.v4.app.Fragment;
+
+/**
+ * FragmentFactory creates a fragment for a {@link FragmentTag} when FragmentBoss needs one that is
+ * not already in the fragment manager.
+ *
+ * FragmentBoss calls the factory on the UI thread, and only when no fragment with the tagCombo can
+ * be found, so no fragment is built just to be thrown away.
+ */
+public interface FragmentFactory {
+
+    /**
+     * Called to create a new fragment for a tag.
+     *
+     * @param tag FragmentTag: The tag the fragment will be added with.
+     *
+     * @return The return value is a new Fragment, or null to leave the tag out.
+     */
+    Fragment newFragment(FragmentTag tag);
+
+}
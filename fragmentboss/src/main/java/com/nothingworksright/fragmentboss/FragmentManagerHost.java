@@ -0,0 +1,299 @@
+package com.nothingworksright.fragmentboss;
+
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * FragmentManagerHost is the {@link BackStackHost} of a real fragment manager.
+ *
+ * One host is kept per fragment manager. The host registers itself as an
+ * OnBackStackChangedListener the first time it is needed, and keeps the {@link BackStackIndex} of
+ * the fragment manager up to date. Views that a rebuild deferred are handed to the
+ * {@link ViewReattacher}, and to the {@link FrameScheduler} when they should be created in later
+ * frames.
+ *
+ * The host also publishes a {@link BackStackIndex.Snapshot} of the back stack once each
+ * operation has run, and shortly after any other change to the back stack, for the lookups that
+ * are called off the UI thread.
+ *
+ * The host holds its fragment manager weakly, so that it never keeps an activity alive. All
+ * methods must be called on the UI thread, except for {@link #published(FragmentManager)}.
+ */
+final class FragmentManagerHost implements BackStackHost<Fragment>,
+        BackStackIndex.Source<Fragment>, FragmentManager.OnBackStackChangedListener {
+
+    private static final Map<FragmentManager, FragmentManagerHost> HOSTS = new WeakHashMap<>();
+
+    private static final BackStackIndex.Snapshot<Fragment> EMPTY = new BackStackIndex.Snapshot<>();
+
+    private final WeakReference<FragmentManager> fmRef;
+    private final BackStackIndex<Fragment> index;
+    private volatile BackStackIndex.Snapshot<Fragment> snapshot = EMPTY;
+    private boolean publishPosted;
+
+    private final Runnable publish = new Runnable() {
+        @Override
+        public void run() {
+            publishPosted = false;
+            if (isAlive()) {
+                publish();
+            }
+        }
+    };
+
+    private FragmentManagerHost(FragmentManager fm) {
+        fmRef = new WeakReference<>(fm);
+        index = new BackStackIndex<>(this);
+    }
+
+    /**
+     * Called to get the host of a fragment manager. The host is created and registered as an
+     * OnBackStackChangedListener the first time it is needed, and the {@link FragmentRecycler}
+     * starts pooling the fragments removed from the fragment manager.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     *
+     * @return The return value is the FragmentManagerHost of the fragment manager.
+     */
+    static FragmentManagerHost of(FragmentManager fm) {
+        synchronized (HOSTS) {
+            FragmentManagerHost host = HOSTS.get(fm);
+            if (host == null) {
+                host = new FragmentManagerHost(fm);
+                fm.addOnBackStackChangedListener(host);
+                HOSTS.put(fm, host);
+                FragmentRecycler.register(fm);
+            }
+            return host;
+        }
+    }
+
+    /**
+     * Called to get the back stack index of a fragment manager.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     *
+     * @return The return value is the BackStackIndex of the fragment manager.
+     */
+    static BackStackIndex<Fragment> indexOf(FragmentManager fm) {
+        return of(fm).index;
+    }
+
+    /**
+     * Called on the UI thread to publish the back stack as it is now.
+     *
+     * @return The return value is the published BackStackIndex.Snapshot.
+     */
+    BackStackIndex.Snapshot<Fragment> publish() {
+        BackStackIndex.Snapshot<Fragment> current = index.snapshot();
+        snapshot = current;
+        return current;
+    }
+
+    /**
+     * Called on any thread to get the back stack of a fragment manager as it was last published.
+     * A fragment manager without a host is given one on the UI thread, and reads as empty until
+     * then.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     *
+     * @return The return value is the last published BackStackIndex.Snapshot.
+     */
+    static BackStackIndex.Snapshot<Fragment> published(final FragmentManager fm) {
+        if (MainThreadDispatcher.isMainThread()) {
+            return of(fm).publish();
+        }
+        FragmentManagerHost host;
+        synchronized (HOSTS) {
+            host = HOSTS.get(fm);
+        }
+        if (host != null) {
+            return host.snapshot;
+        }
+        MainThreadDispatcher.post(new Runnable() {
+            @Override
+            public void run() {
+                of(fm).publish();
+            }
+        });
+        return EMPTY;
+    }
+
+    /**
+     * Called to get every fragment manager that has a host.
+     *
+     * @return The return value is a new List of the fragment managers that are still alive.
+     */
+    static List<FragmentManager> managers() {
+        synchronized (HOSTS) {
+            return new ArrayList<>(HOSTS.keySet());
+        }
+    }
+
+    @Override
+    public void onBackStackChanged() {
+        index.onBackStackChanged();
+        // A rebuild changes the back stack many times, so publish once it is done.
+        if (!publishPosted) {
+            publishPosted = true;
+            MainThreadDispatcher.post(publish);
+        }
+    }
+
+    @Override
+    public BackStackIndex<Fragment> index() {
+        return index;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return fmRef.get() != null;
+    }
+
+    @Override
+    public int getBackStackEntryCount() {
+        return fmRef.get().getBackStackEntryCount();
+    }
+
+    @Override
+    public int getBackStackEntryIdAt(int position) {
+        return fmRef.get().getBackStackEntryAt(position).getId();
+    }
+
+    @Override
+    public String getBackStackEntryNameAt(int position) {
+        return fmRef.get().getBackStackEntryAt(position).getName();
+    }
+
+    @Override
+    public Fragment findFragmentByTag(String tag) {
+        return fmRef.get().findFragmentByTag(tag);
+    }
+
+    @Override
+    public boolean isAddedWithTag(Fragment fragment, String tag) {
+        return fragment.isAdded() && tag.equals(fragment.getTag());
+    }
+
+    @Override
+    public boolean hasView(Fragment fragment) {
+        return fragment.getView() != null;
+    }
+
+    @Override
+    public boolean isAdded(Fragment fragment) {
+        return fragment.isAdded();
+    }
+
+    @Override
+    public boolean isDetached(Fragment fragment) {
+        return fragment.isDetached();
+    }
+
+    @Override
+    public void popFrom(BackStackIndex.Layer layer, boolean immediate) {
+        FragmentManager fm = fmRef.get();
+        if (immediate) {
+            fm.popBackStackImmediate(layer.entryId, FragmentManager.POP_BACK_STACK_INCLUSIVE);
+        } else {
+            fm.popBackStack(layer.entryId, FragmentManager.POP_BACK_STACK_INCLUSIVE);
+        }
+    }
+
+    @Override
+    public BackStackHost.Transaction<Fragment> beginTransaction() {
+        return new Transaction(fmRef.get().beginTransaction());
+    }
+
+    @Override
+    public void executePendingTransactions() {
+        fmRef.get().executePendingTransactions();
+    }
+
+    @Override
+    public void viewsDeferred(List<String> tagCombos, boolean createLater) {
+        FragmentManager fm = fmRef.get();
+        ViewReattacher reattacher = ViewReattacher.of(fm);
+        int tagCombosSize = tagCombos.size();
+        for (int entry = 0; entry < tagCombosSize; entry++) {
+            reattacher.released(tagCombos.get(entry));
+        }
+        if (createLater) {
+            FrameScheduler.attachLater(fm, tagCombos);
+        }
+    }
+
+    /**
+     * This class passes each call on to a FragmentTransaction.
+     */
+    static final class Transaction implements BackStackHost.Transaction<Fragment> {
+
+        private final FragmentTransaction ft;
+
+        Transaction(FragmentTransaction ft) {
+            this.ft = ft;
+        }
+
+        @Override
+        public void add(int containerViewId, Fragment fragment, String tag) {
+            ft.add(containerViewId, fragment, tag);
+        }
+
+        @Override
+        public void remove(Fragment fragment) {
+            ft.remove(fragment);
+        }
+
+        @Override
+        public void show(Fragment fragment) {
+            ft.show(fragment);
+        }
+
+        @Override
+        public void hide(Fragment fragment) {
+            ft.hide(fragment);
+        }
+
+        @Override
+        public void attach(Fragment fragment) {
+            ft.attach(fragment);
+        }
+
+        @Override
+        public void detach(Fragment fragment) {
+            ft.detach(fragment);
+        }
+
+        @Override
+        public void setAllowOptimization(boolean allowOptimization) {
+            ft.setAllowOptimization(allowOptimization);
+        }
+
+        @Override
+        public void addToBackStack(String name) {
+            ft.addToBackStack(name);
+        }
+
+        @Override
+        public void commit() {
+            ft.commit();
+        }
+
+        @Override
+        public void commitNow() {
+            ft.commitNow();
+        }
+
+    }
+
+}
@@ -0,0 +1,251 @@
+package com.nothingworksright.fragmentboss;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * FragmentPrefetcher builds the fragments that are likely to be shown next while the UI thread
+ * is idle, so that showing one of them only takes a commit.
+ *
+ * Each replace and resurface that changes the top of the back stack is recorded as a transition
+ * from one tagTitle to another in a {@link TransitionPredictor}, along with the class of the
+ * fragment shown for the tagTitle. Once the UI thread is idle, up to {@link #MAX_PREFETCHED}
+ * tagTitles that followed the top tagTitle at least {@link #MIN_SHARE_PERCENT} percent of the time
+ * are built with their no-argument constructor, one per idle slot. A fragment that implements
+ * {@link Prefetchable} is then given the activity's context to do more of its work ahead of time.
+ *
+ * Prefetched fragments have no arguments, and are only used when taken by using
+ * {@link FragmentBoss#takePrefetchedFragment(FragmentManager, String)}. They are kept per fragment
+ * manager, for the fragment manager whose navigation predicted them, and are dropped once its
+ * activity is destroyed or prefetching is turned off. A prefetched fragment that is no longer
+ * likely is dropped as well. All methods other than {@link #setEnabled(boolean)} must be called
+ * on the UI thread.
+ */
+final class FragmentPrefetcher extends FragmentManager.FragmentLifecycleCallbacks {
+
+    static final int MAX_PREFETCHED = 2;
+    static final int MIN_SHARE_PERCENT = 25;
+
+    private static final TransitionPredictor PREDICTOR = new TransitionPredictor();
+    private static final HashMap<String, Class<? extends Fragment>> CLASSES = new HashMap<>();
+    private static final Map<FragmentManager, FragmentPrefetcher> PREFETCHERS = new WeakHashMap<>();
+    private static volatile boolean enabled;
+    private static WeakReference<FragmentManager> navigatedFm;
+    private static boolean scheduled;
+
+    private final LinkedHashMap<String, Fragment> prefetched = new LinkedHashMap<>();
+    private WeakReference<Context> activityContext;
+    private String topTitle;
+
+    private static final MessageQueue.IdleHandler IDLE = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            // Keep the handler for the next idle slot while there is more to build.
+            scheduled = prefetchNext();
+            return scheduled;
+        }
+    };
+
+    private FragmentPrefetcher() {
+    }
+
+    /**
+     * Called to turn prefetching on or off. Fragments prefetched so far are dropped once it is
+     * off, on the UI thread.
+     */
+    static void setEnabled(boolean enable) {
+        enabled = enable;
+        if (enable) {
+            return;
+        }
+        if (MainThreadDispatcher.isMainThread()) {
+            dropAll();
+        } else {
+            MainThreadDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!enabled) {
+                        dropAll();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Called before an operation, to get the tagTitle it navigates away from.
+     *
+     * @return The return value is the tagTitle on top, or null if there is none or prefetching is
+     * off.
+     */
+    static String titleOnTop(FragmentManager fm) {
+        if (!enabled) {
+            return null;
+        }
+        BackStackIndex.Layer top = FragmentManagerHost.indexOf(fm).top();
+        return top != null && top.tag != null ? top.tag.getTagTitle() : null;
+    }
+
+    /**
+     * Called after an operation meant to show the given tagCombo. Nothing is recorded unless the
+     * fragment with the tagCombo is on top.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param fromTitle String: The tagTitle that was on top before the operation.
+     * @param tagCombo String: The tagCombo of the fragment the operation was meant to show.
+     */
+    static void navigated(FragmentManager fm, String fromTitle, String tagCombo) {
+        if (!enabled || tagCombo == null || fm.isDestroyed()) {
+            return;
+        }
+        BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+        BackStackIndex.Layer top = index.top();
+        if (top == null || !tagCombo.equals(top.tagCombo)) {
+            return;
+        }
+        FragmentPrefetcher prefetcher = PREFETCHERS.get(fm);
+        if (prefetcher == null) {
+            // Drop the fragments prefetched for this fragment manager with its activity.
+            prefetcher = new FragmentPrefetcher();
+            fm.registerFragmentLifecycleCallbacks(prefetcher, false);
+            PREFETCHERS.put(fm, prefetcher);
+        }
+        String toTitle = top.tag.getTagTitle();
+        Fragment shown = index.fragmentOf(top);
+        if (shown != null) {
+            CLASSES.put(toTitle, shown.getClass());
+            Context context = shown.getContext();
+            if (context != null) {
+                prefetcher.activityContext = new WeakReference<>(context);
+            }
+        }
+        PREDICTOR.record(fromTitle, toTitle);
+        prefetcher.topTitle = toTitle;
+        navigatedFm = new WeakReference<>(fm);
+        if (!scheduled) {
+            scheduled = true;
+            Looper.myQueue().addIdleHandler(IDLE);
+        }
+    }
+
+    /**
+     * Called to take the fragment prefetched for a tagTitle.
+     *
+     * @param fm FragmentManager: The fragment manager the fragment will be added to.
+     * @param tagTitle String: The tagTitle the fragment will be added with.
+     *
+     * @return The return value is the prefetched Fragment, which is not in any fragment manager,
+     * or null if there is none.
+     */
+    static Fragment take(FragmentManager fm, String tagTitle) {
+        if (!enabled) {
+            dropAll();
+            return null;
+        }
+        FragmentPrefetcher prefetcher = PREFETCHERS.get(fm);
+        if (prefetcher == null) {
+            return null;
+        }
+        Fragment fragment = prefetcher.prefetched.remove(tagTitle);
+        if (fragment == null || fragment.getTag() != null || fragment.isAdded()) {
+            return null;
+        }
+        return fragment;
+    }
+
+    /**
+     * Called while the UI thread is idle, to build one likely fragment for the fragment manager
+     * that was navigated last.
+     *
+     * @return The return value is true if a fragment was built, and there may be more to build.
+     */
+    private static boolean prefetchNext() {
+        if (!enabled) {
+            dropAll();
+            return false;
+        }
+        FragmentManager fm = navigatedFm != null ? navigatedFm.get() : null;
+        FragmentPrefetcher prefetcher = fm != null ? PREFETCHERS.get(fm) : null;
+        if (prefetcher == null) {
+            return false;
+        }
+        if (fm.isDestroyed()) {
+            prefetcher.drop(fm);
+            return false;
+        }
+        LinkedHashMap<String, Fragment> prefetched = prefetcher.prefetched;
+        List<String> likely;
+        likely = PREDICTOR.predict(prefetcher.topTitle, MAX_PREFETCHED, MIN_SHARE_PERCENT);
+        prefetched.keySet().retainAll(likely);
+        int likelySize = likely.size();
+        for (int entry = 0; entry < likelySize; entry++) {
+            String tagTitle = likely.get(entry);
+            Class<? extends Fragment> fragmentClass = CLASSES.get(tagTitle);
+            if (fragmentClass == null || prefetched.containsKey(tagTitle)) {
+                continue;
+            }
+            Fragment fragment;
+            try {
+                fragment = fragmentClass.newInstance();
+            } catch (InstantiationException e) {
+                CLASSES.remove(tagTitle);
+                continue;
+            } catch (IllegalAccessException e) {
+                CLASSES.remove(tagTitle);
+                continue;
+            }
+            WeakReference<Context> activityContext = prefetcher.activityContext;
+            Context context = activityContext != null ? activityContext.get() : null;
+            if (context != null && fragment instanceof Prefetchable) {
+                ((Prefetchable) fragment).onPrefetch(context);
+            }
+            prefetched.put(tagTitle, fragment);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called to drop every prefetched fragment, and stop listening to each fragment manager.
+     */
+    private static void dropAll() {
+        if (PREFETCHERS.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<FragmentManager, FragmentPrefetcher> entry : PREFETCHERS.entrySet()) {
+            entry.getKey().unregisterFragmentLifecycleCallbacks(entry.getValue());
+        }
+        PREFETCHERS.clear();
+        navigatedFm = null;
+    }
+
+    /**
+     * Called to drop the fragments prefetched for a fragment manager, and stop listening to it.
+     */
+    private void drop(FragmentManager fm) {
+        fm.unregisterFragmentLifecycleCallbacks(this);
+        PREFETCHERS.remove(fm);
+        prefetched.clear();
+        activityContext = null;
+    }
+
+    @Override
+    public void onFragmentDestroyed(FragmentManager fm, Fragment f) {
+        if (fm.isDestroyed()) {
+            // The activity is being destroyed, and its prefetched fragments with it.
+            drop(fm);
+        }
+    }
+
+}
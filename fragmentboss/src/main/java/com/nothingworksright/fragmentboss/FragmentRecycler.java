@@ -0,0 +1,154 @@
+package com.nothingworksright.fragmentboss;
+
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * FragmentRecycler keeps a pool of removed fragments per tagTitle, so that a fragment can be
+ * reused for another tag with the same tagTitle instead of building a new one.
+ *
+ * A fragment is pooled when it is detached while being removed from its fragment manager, it
+ * implements {@link Recyclable}, and the pool of its tagTitle, as set by using
+ * {@link FragmentBoss#setRecyclePoolSize(String, int)}, is not full. Fragments detached because
+ * their activity is destroyed are not pooled. Only the fragment instance is reused. Its view was
+ * destroyed when it was removed, so it inflates a new one once it is added again. A pooled
+ * fragment is only reused once the fragment manager has fully released it, which is when it has
+ * no tag and is not added. Only then is it told to release anything tied to its old tag, its old
+ * arguments are cleared, and it is rebound. A pooled fragment that a rebuild adds back with its
+ * old tag is dropped from the pool without being told anything.
+ *
+ * One pool is kept per fragment manager, and it is dropped when the activity is destroyed, so
+ * pooled fragments never outlive their activity. The recycler registers itself for the fragment
+ * lifecycle callbacks of a fragment manager as soon as its {@link FragmentManagerHost} is
+ * created, so fragments removed before the first take are pooled too. All methods must be called
+ * on the UI thread.
+ */
+final class FragmentRecycler extends FragmentManager.FragmentLifecycleCallbacks {
+
+    private static final Map<FragmentManager, FragmentRecycler> RECYCLERS = new WeakHashMap<>();
+    private static final HashMap<String, Integer> POOL_SIZES = new HashMap<>();
+
+    private final HashMap<String, ArrayList<Fragment>> pools = new HashMap<>();
+
+    private FragmentRecycler() {
+    }
+
+    /**
+     * Called to set how many removed fragments are kept for a tagTitle. Zero means none.
+     */
+    static void setPoolSize(String tagTitle, int poolSize) {
+        synchronized (POOL_SIZES) {
+            if (poolSize > 0) {
+                POOL_SIZES.put(tagTitle, poolSize);
+            } else {
+                POOL_SIZES.remove(tagTitle);
+            }
+        }
+    }
+
+    private static int poolSizeOf(String tagTitle) {
+        synchronized (POOL_SIZES) {
+            Integer poolSize = POOL_SIZES.get(tagTitle);
+            return poolSize != null ? poolSize : 0;
+        }
+    }
+
+    /**
+     * Called when the host of a fragment manager is created, to start pooling the fragments
+     * removed from it.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     */
+    static void register(FragmentManager fm) {
+        if (RECYCLERS.containsKey(fm)) {
+            return;
+        }
+        FragmentRecycler recycler = new FragmentRecycler();
+        fm.registerFragmentLifecycleCallbacks(recycler, false);
+        RECYCLERS.put(fm, recycler);
+    }
+
+    /**
+     * Called to take a pooled fragment for a tag, let it release its old tag, clear its old
+     * arguments, and rebind it to the tag.
+     *
+     * @param fm FragmentManager: The fragment manager the fragment will be added to.
+     * @param tag FragmentTag: The tag the fragment will be added with.
+     *
+     * @return The return value is the rebound Fragment, or null if there is none in the pool.
+     */
+    static Fragment take(FragmentManager fm, FragmentTag tag) {
+        int poolSize = poolSizeOf(tag.getTagTitle());
+        if (poolSize == 0) {
+            return null;
+        }
+        FragmentRecycler recycler = RECYCLERS.get(fm);
+        if (recycler == null) {
+            return null;
+        }
+        ArrayList<Fragment> pool = recycler.pools.get(tag.getTagTitle());
+        if (pool == null) {
+            return null;
+        }
+        for (int entry = pool.size() - 1; entry >= 0; entry--) {
+            Fragment fragment = pool.get(entry);
+            if (fragment.isAdded()) {
+                // A rebuild added the fragment back after it was pooled.
+                pool.remove(entry);
+            } else if (fragment.getTag() == null) {
+                pool.remove(entry);
+                ((Recyclable) fragment).onRecycle();
+                // The fragment manager no longer knows the fragment, so its arguments can be set.
+                fragment.setArguments(null);
+                ((Recyclable) fragment).onRebind(tag);
+                return fragment;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onFragmentDetached(FragmentManager fm, Fragment f) {
+        if (!(f instanceof Recyclable) || !f.isRemoving() || f.getTag() == null) {
+            return;
+        }
+        String tagTitle;
+        try {
+            tagTitle = FragmentTag.valueOf(f.getTag()).getTagTitle();
+        } catch (IllegalArgumentException e) {
+            // The fragment was not added by FragmentBoss.
+            return;
+        }
+        int poolSize = poolSizeOf(tagTitle);
+        if (poolSize == 0) {
+            return;
+        }
+        ArrayList<Fragment> pool = pools.get(tagTitle);
+        if (pool == null) {
+            pool = new ArrayList<>(poolSize);
+            pools.put(tagTitle, pool);
+        }
+        pool.remove(f);
+        while (pool.size() >= poolSize) {
+            pool.remove(0);
+        }
+        pool.add(f);
+    }
+
+    @Override
+    public void onFragmentDestroyed(FragmentManager fm, Fragment f) {
+        if (fm.isDestroyed()) {
+            // The activity is being destroyed, and its pooled fragments with it.
+            fm.unregisterFragmentLifecycleCallbacks(this);
+            RECYCLERS.remove(fm);
+            pools.clear();
+        }
+    }
+
+}
@@ -0,0 +1,423 @@
+package com.nothingworksright.fragmentboss;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * FragmentShelf keeps the fragments that FragmentBoss has taken out of a fragment manager, so that
+ * they can be built again on demand.
+ *
+ * A shelved fragment is kept only as its {@link FragmentTag}, its class, its arguments, and the
+ * Fragment.SavedState that the fragment manager saved for it. The fragment instance and its view
+ * hierarchy are released.
+ *
+ * Fragments are shelved when a back stack grows past the maximum depth set by using
+ * {@link FragmentBoss#setMaxBackStackDepth(int)} or
+ * {@link FragmentBoss#setMaxBackStackDepth(int, int)}. The least recently surfaced layers, which
+ * are the lowest ones, are shelved first, except for the top layer of each container, which is on
+ * screen. To avoid a rebuild on every new layer, a back stack that grows past its maximum is
+ * trimmed to three quarters of the maximum, or as close as the top layers allow.
+ *
+ * A shelf outlives its process only through {@link CompactState}, which carries it over in the
+ * activity's saved state. Fragments carried over that way are kept marshalled until they are
+ * restored.
+ *
+ * One shelf is kept per fragment manager. All methods must be called on the UI thread.
+ */
+final class FragmentShelf {
+
+    private static final Map<FragmentManager, FragmentShelf> SHELVES = new WeakHashMap<>();
+    private static final HashMap<Integer, Integer> CONTAINER_LIMITS = new HashMap<>();
+    private static int globalLimit;
+
+    private final LinkedHashMap<FragmentTag, Shelved> shelved = new LinkedHashMap<>();
+
+    FragmentShelf() {
+    }
+
+    /**
+     * Called to get the shelf for a fragment manager. The shelf is created the first time it is
+     * needed.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     *
+     * @return The return value is the FragmentShelf of the fragment manager.
+     */
+    static FragmentShelf of(FragmentManager fm) {
+        synchronized (SHELVES) {
+            FragmentShelf shelf = SHELVES.get(fm);
+            if (shelf == null) {
+                shelf = new FragmentShelf();
+                SHELVES.put(fm, shelf);
+            }
+            return shelf;
+        }
+    }
+
+    /**
+     * Called to set the maximum number of layers in the back stack. Zero means no maximum.
+     */
+    static void setGlobalLimit(int maxDepth) {
+        synchronized (CONTAINER_LIMITS) {
+            globalLimit = Math.max(0, maxDepth);
+        }
+    }
+
+    /**
+     * Called to set the maximum number of layers in one container. Zero means no maximum.
+     */
+    static void setContainerLimit(int containerViewId, int maxDepth) {
+        synchronized (CONTAINER_LIMITS) {
+            if (maxDepth > 0) {
+                CONTAINER_LIMITS.put(containerViewId, maxDepth);
+            } else {
+                CONTAINER_LIMITS.remove(containerViewId);
+            }
+        }
+    }
+
+    /**
+     * Called to check whether a fragment with the given tag is on the shelf.
+     */
+    boolean contains(FragmentTag tag) {
+        return shelved.containsKey(tag);
+    }
+
+    /**
+     * Called to get the number of fragments on the shelf.
+     */
+    int size() {
+        return shelved.size();
+    }
+
+    /**
+     * Called to save a fragment's state and put it on the shelf. The fragment must still be in the
+     * fragment manager, and is taken out of it by the caller afterwards.
+     *
+     * @param fm FragmentManager: The fragment manager the fragment is in.
+     * @param tag FragmentTag: The tag of the fragment.
+     * @param fragment Fragment: The fragment to shelve.
+     */
+    void shelve(FragmentManager fm, FragmentTag tag, Fragment fragment) {
+        Fragment.SavedState savedState = null;
+        try {
+            savedState = fm.saveFragmentInstanceState(fragment);
+        } catch (IllegalStateException e) {
+            // The fragment is not active in the fragment manager, so it has no state to save.
+        }
+        Bundle arguments = fragment.getArguments();
+        shelve(tag, fragment.getClass(), arguments != null ? new Bundle(arguments) : null,
+                savedState);
+    }
+
+    /**
+     * Called to put a fragment on the shelf by its class, arguments, and saved state.
+     *
+     * @param tag FragmentTag: The tag of the fragment.
+     * @param fragmentClass Class: The class of the fragment, which has a no-argument constructor.
+     * @param arguments Bundle: The arguments of the fragment. May be null.
+     * @param savedState Fragment.SavedState: The saved state of the fragment. May be null.
+     */
+    void shelve(FragmentTag tag, Class<? extends Fragment> fragmentClass, Bundle arguments,
+                Fragment.SavedState savedState) {
+        shelved.put(tag, new Shelved(fragmentClass, arguments, savedState));
+    }
+
+    /**
+     * Called to take a fragment off the shelf and build a new instance of it, with its arguments
+     * and saved state.
+     *
+     * @param tag FragmentTag: The tag of the fragment.
+     *
+     * @return The return value is the new Fragment, or null if it is not on the shelf or cannot be
+     * built.
+     */
+    Fragment restore(FragmentTag tag) {
+        Shelved entry = shelved.remove(tag);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.stored != null) {
+            return SnapshotStore.build(entry.context, entry.stored);
+        }
+        Fragment fragment;
+        try {
+            fragment = entry.fragmentClass.newInstance();
+        } catch (InstantiationException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+        if (entry.arguments != null) {
+            fragment.setArguments(entry.arguments);
+        }
+        if (entry.savedState != null) {
+            fragment.setInitialSavedState(entry.savedState);
+        }
+        return fragment;
+    }
+
+    /**
+     * Called to marshall every fragment on the shelf, in the order they were shelved.
+     *
+     * @return The return value is a list with a BackStackSnapshot.Entry per shelved fragment.
+     */
+    List<BackStackSnapshot.Entry> entries() {
+        List<BackStackSnapshot.Entry> entries = new ArrayList<>(shelved.size());
+        for (Map.Entry<FragmentTag, Shelved> entry : shelved.entrySet()) {
+            Shelved shelvedFragment = entry.getValue();
+            if (shelvedFragment.stored != null) {
+                entries.add(shelvedFragment.stored);
+            } else {
+                entries.add(SnapshotStore.entryOf(entry.getKey(), shelvedFragment.fragmentClass,
+                        shelvedFragment.arguments, shelvedFragment.savedState));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Called to put marshalled fragments on the shelf, such as the ones carried over from a
+     * previous process. A fragment that is already on the shelf is kept as it is.
+     *
+     * @param context Context: Any context of the app. It is used to build the fragments.
+     * @param entries List: The BackStackSnapshot.Entry of each fragment.
+     */
+    void load(Context context, List<BackStackSnapshot.Entry> entries) {
+        Context appContext = context.getApplicationContext();
+        int entriesSize = entries.size();
+        for (int entry = 0; entry < entriesSize; entry++) {
+            BackStackSnapshot.Entry stored = entries.get(entry);
+            if (!shelved.containsKey(stored.tag)) {
+                shelved.put(stored.tag, new Shelved(appContext, stored));
+            }
+        }
+    }
+
+    /**
+     * Called to drop every shelved fragment whose tag matches the predicate.
+     */
+    void discard(TagPredicate predicate) {
+        Iterator<FragmentTag> iterator = shelved.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (predicate.test(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Called to shelve the least recently surfaced layers of a back stack that has grown past its
+     * maximum depth, or past the maximum depth of one of its containers.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static int trim(FragmentManager fm) {
+        int limit;
+        HashMap<Integer, Integer> containerLimits;
+        synchronized (CONTAINER_LIMITS) {
+            limit = globalLimit;
+            containerLimits = CONTAINER_LIMITS.isEmpty() ? null : new HashMap<>(CONTAINER_LIMITS);
+        }
+        if (limit == 0 && containerLimits == null) {
+            return 0;
+        }
+
+        HashSet<BackStackIndex.Layer> evicted;
+        evicted = pastLimits(FragmentManagerHost.indexOf(fm), limit, containerLimits);
+        if (evicted == null) {
+            return 0;
+        }
+        return evict(fm, evicted);
+    }
+
+    /**
+     * Called to find the layers to shelve so that a back stack is within its maximum depth, and
+     * each of its containers within theirs. The top layer of a container is never among them, so
+     * that no container is left empty on screen.
+     *
+     * @param index BackStackIndex: The index of the back stack.
+     * @param limit int: The maximum depth of the whole back stack. Zero means no maximum.
+     * @param containerLimits Map: The maximum depth of each container with one, or null.
+     *
+     * @return The return value is the set of layers to shelve, or null if there are none.
+     */
+    static HashSet<BackStackIndex.Layer> pastLimits(BackStackIndex<?> index, int limit,
+                                                    Map<Integer, Integer> containerLimits) {
+        List<BackStackIndex.Layer> layers = index.layers();
+        int layersSize = layers.size();
+        HashSet<BackStackIndex.Layer> evicted = null;
+
+        // Past the global maximum, the lowest covered layers are shelved. The top layer of each
+        // container is on screen, however low it is in the back stack, so it is kept.
+        if (limit > 0 && layersSize > limit) {
+            HashSet<BackStackIndex.Layer> covered = coveredPast(index, 1);
+            int toEvict = layersSize - lowWater(limit);
+            for (int entry = 0; entry < layersSize && toEvict > 0; entry++) {
+                BackStackIndex.Layer layer = layers.get(entry);
+                if (covered.contains(layer)) {
+                    if (evicted == null) {
+                        evicted = new HashSet<>();
+                    }
+                    evicted.add(layer);
+                    toEvict--;
+                }
+            }
+        }
+
+        // Past a container's maximum, the lowest layers of that container are shelved.
+        if (containerLimits != null) {
+            for (Map.Entry<Integer, Integer> containerLimit : containerLimits.entrySet()) {
+                List<BackStackIndex.Layer> inContainer = index.inContainer(containerLimit.getKey());
+                int inContainerSize = inContainer.size();
+                if (inContainerSize > containerLimit.getValue()) {
+                    if (evicted == null) {
+                        evicted = new HashSet<>();
+                    }
+                    int keep = lowWater(containerLimit.getValue());
+                    for (int entry = 0; entry < inContainerSize - keep; entry++) {
+                        evicted.add(inContainer.get(entry));
+                    }
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Called to shelve the given layers and take them out of the back stack, with a single
+     * rebuild from the lowest of them.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param evicted Set: The layers to shelve, taken from the BackStackIndex of the fragment
+     *                manager.
+     *
+     * @return The return value is the number of transactions that were run.
+     *
+     * @throws IllegalStateException If the fragment manager has already saved its state. Nothing
+     * is shelved in that case.
+     */
+    static int evict(FragmentManager fm, Set<BackStackIndex.Layer> evicted) {
+        BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+        List<BackStackIndex.Layer> layers = index.layers();
+        int layersSize = layers.size();
+
+        // Shelve the evicted fragments while they are still in the fragment manager.
+        FragmentShelf shelf = of(fm);
+        int lowestIndex = layersSize;
+        for (BackStackIndex.Layer layer : evicted) {
+            lowestIndex = Math.min(lowestIndex, layer.position);
+            Fragment fragment = index.fragmentOf(layer);
+            if (fragment != null) {
+                shelf.shelve(fm, layer.tag, fragment);
+            }
+        }
+
+        // Rebuild from the lowest evicted layer, leaving the evicted layers out.
+        FragmentManagerHost host = FragmentManagerHost.of(fm);
+        ArrayList<BackStackBoss<Fragment>> backStack;
+        backStack = BackStackRebuilder.snapshot(host);
+        List<BackStackBoss<Fragment>> newSuffix;
+        newSuffix = new ArrayList<>(layersSize - lowestIndex);
+        for (int entry = lowestIndex; entry < layersSize; entry++) {
+            if (!evicted.contains(layers.get(entry))) {
+                newSuffix.add(backStack.get(entry));
+            }
+        }
+        try {
+            return BackStackRebuilder.rebuildFrom(host, backStack, lowestIndex, newSuffix,
+                    FragmentBoss.getRebuildMode());
+        } catch (IllegalStateException e) {
+            // The back stack was left as it was, so the evicted fragments are still in it.
+            for (BackStackIndex.Layer layer : evicted) {
+                shelf.shelved.remove(layer.tag);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Called to find the layers that are not among the given number of top layers of their
+     * container. With a depth of one, these are the covered layers. Layers that FragmentBoss did
+     * not add are left out.
+     *
+     * @param index BackStackIndex: The index of the back stack.
+     * @param depth int: The number of layers to keep in each container.
+     *
+     * @return The return value is the set of layers below the top layers of their container,
+     * which is empty if there are none.
+     */
+    static HashSet<BackStackIndex.Layer> coveredPast(BackStackIndex<?> index, int depth) {
+        List<BackStackIndex.Layer> layers = index.layers();
+        HashMap<Integer, Integer> kept = new HashMap<>();
+        HashSet<BackStackIndex.Layer> covered = new HashSet<>();
+        for (int entry = layers.size() - 1; entry >= 0; entry--) {
+            BackStackIndex.Layer layer = layers.get(entry);
+            if (layer.tag == null) {
+                continue;
+            }
+            int containerViewId = layer.tag.getContainerViewId();
+            Integer inContainer = kept.get(containerViewId);
+            int count = inContainer == null ? 0 : inContainer;
+            if (count < depth) {
+                kept.put(containerViewId, count + 1);
+            } else {
+                covered.add(layer);
+            }
+        }
+        return covered;
+    }
+
+    private static int lowWater(int limit) {
+        return Math.max(1, limit - limit / 4);
+    }
+
+    /**
+     * This class represents one fragment on the shelf, either as it was shelved or, when it was
+     * carried over from a previous process, marshalled.
+     */
+    private static final class Shelved {
+
+        final Class<? extends Fragment> fragmentClass;
+        final Bundle arguments;
+        final Fragment.SavedState savedState;
+        final Context context;
+        final BackStackSnapshot.Entry stored;
+
+        Shelved(Class<? extends Fragment> fragmentClass, Bundle arguments,
+                Fragment.SavedState savedState) {
+            this.fragmentClass = fragmentClass;
+            this.arguments = arguments;
+            this.savedState = savedState;
+            this.context = null;
+            this.stored = null;
+        }
+
+        Shelved(Context context, BackStackSnapshot.Entry stored) {
+            this.fragmentClass = null;
+            this.arguments = null;
+            this.savedState = null;
+            this.context = context;
+            this.stored = stored;
+        }
+
+    }
+
+}
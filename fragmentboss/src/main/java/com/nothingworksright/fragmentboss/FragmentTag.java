@@ -0,0 +1,275 @@
+package com.nothingworksright.fragmentboss;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FragmentTag is the parsed form of a tagCombo.
+ *
+ * A FragmentTag holds the {@link #getTagTitle() tagTitle}, {@link #getContainerViewId()
+ * containerViewId}, and {@link #getDbRecordId() dbRecordId} of a fragment, along with the pipe
+ * delimited tagCombo that is used as the fragment tag and back stack entry name.
+ *
+ * A tagCombo is parsed once, from the end, without splitting it into intermediate collections. The
+ * tagTitle may contain pipes. Two FragmentTags are equal when their fields are equal, and the hash
+ * code is computed once.
+ *
+ * Only tagTitles are interned, since an app has few of them but may have a dbRecordId per row of
+ * its database. FragmentTags returned by {@link #valueOf(String)} and {@link #intern()} with the
+ * same tagTitle share the same tagTitle String. The {@link #MAX_INTERNED_TAG_TITLES} most recently
+ * used tagTitles are remembered.
+ */
+public final class FragmentTag {
+
+    private static final char DELIMITER = '|';
+
+    static final int MAX_INTERNED_TAG_TITLES = 256;
+
+    private static final LinkedHashMap<String, String> INTERNED_TAG_TITLES =
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_INTERNED_TAG_TITLES;
+                }
+            };
+
+    private final String tagTitle;
+    private final int containerViewId;
+    private final long dbRecordId;
+    private final int hash;
+    private String tagCombo;
+
+    private FragmentTag(String tagTitle, int containerViewId, long dbRecordId, String tagCombo) {
+        this.tagTitle = tagTitle;
+        this.containerViewId = containerViewId;
+        this.dbRecordId = dbRecordId;
+        this.tagCombo = tagCombo;
+        int result = tagTitle.hashCode();
+        result = 31 * result + containerViewId;
+        result = 31 * result + (int) (dbRecordId ^ (dbRecordId >>> 32));
+        this.hash = result;
+    }
+
+    /**
+     * Called to create a FragmentTag from its fields.
+     *
+     * @param tagTitle String: A traditional fragment tag, a unique string used to identify a unique
+     *                 fragment. Used here as a fragment title.
+     * @param containerViewId int: Identifier of the container for the fragment to be placed in.
+     * @param dbRecordId long: A database record ID, such as a unique column or primary key value.
+     *
+     * @return The return value is a new FragmentTag.
+     */
+    public static FragmentTag of(String tagTitle, int containerViewId, long dbRecordId) {
+        if (tagTitle == null) {
+            throw new IllegalArgumentException("The tagTitle must be supplied.");
+        }
+        return new FragmentTag(tagTitle, containerViewId, dbRecordId, null);
+    }
+
+    /**
+     * Called to parse a tagCombo.
+     *
+     * The dbRecordId is read after the last pipe, and the containerViewId after the pipe before
+     * that. Everything before those two pipes is the tagTitle.
+     *
+     * @param tagCombo String: A pipe delimited String, as created by
+     *                 {@link FragmentBoss#tagJoiner(String, int, long)}.
+     *
+     * @return The return value is a new FragmentTag.
+     *
+     * @throws IllegalArgumentException If the tagCombo is null or is not a valid tagCombo.
+     */
+    public static FragmentTag parse(String tagCombo) {
+        if (tagCombo == null) {
+            throw new IllegalArgumentException("The tagCombo must be supplied.");
+        }
+        int lastPipe = tagCombo.lastIndexOf(DELIMITER);
+        int middlePipe = lastPipe > 0 ? tagCombo.lastIndexOf(DELIMITER, lastPipe - 1) : -1;
+        if (middlePipe < 0) {
+            throw new IllegalArgumentException("Not a tagCombo: " + tagCombo);
+        }
+        long containerViewId = parseLong(tagCombo, middlePipe + 1, lastPipe);
+        if (containerViewId < Integer.MIN_VALUE || containerViewId > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Not a tagCombo: " + tagCombo);
+        }
+        long dbRecordId = parseLong(tagCombo, lastPipe + 1, tagCombo.length());
+        return new FragmentTag(
+                tagCombo.substring(0, middlePipe),
+                (int) containerViewId,
+                dbRecordId,
+                tagCombo
+        );
+    }
+
+    /**
+     * Called to get the FragmentTag for a tagCombo. The tagCombo is parsed, and the tagTitle of
+     * the result is interned.
+     *
+     * @param tagCombo String: A pipe delimited String, as created by
+     *                 {@link FragmentBoss#tagJoiner(String, int, long)}.
+     *
+     * @return The return value is a FragmentTag for the tagCombo.
+     *
+     * @throws IllegalArgumentException If the tagCombo is null or is not a valid tagCombo.
+     */
+    public static FragmentTag valueOf(String tagCombo) {
+        return parse(tagCombo).intern();
+    }
+
+    /**
+     * Called to get a FragmentTag with the same fields as this one, whose tagTitle is the interned
+     * tagTitle String.
+     *
+     * @return The return value is this FragmentTag if its tagTitle is already the interned one,
+     * otherwise a new FragmentTag.
+     */
+    public FragmentTag intern() {
+        String title;
+        synchronized (INTERNED_TAG_TITLES) {
+            title = INTERNED_TAG_TITLES.get(tagTitle);
+            if (title == null) {
+                title = tagTitle;
+                INTERNED_TAG_TITLES.put(title, title);
+            }
+        }
+        if (title == tagTitle) {
+            return this;
+        }
+        return new FragmentTag(title, containerViewId, dbRecordId, tagCombo);
+    }
+
+    /**
+     * Called to get the tagTitle, a traditional fragment tag used here as a fragment title.
+     */
+    public String getTagTitle() {
+        return tagTitle;
+    }
+
+    /**
+     * Called to get the identifier of the container the fragment is placed in.
+     */
+    public int getContainerViewId() {
+        return containerViewId;
+    }
+
+    /**
+     * Called to get the database record ID associated with the fragment.
+     */
+    public long getDbRecordId() {
+        return dbRecordId;
+    }
+
+    /**
+     * Called to get the pipe delimited tagCombo. The tagCombo is built once and then kept.
+     */
+    public String getTagCombo() {
+        String result = tagCombo;
+        if (result == null) {
+            result = join(tagTitle, containerViewId, dbRecordId);
+            tagCombo = result;
+        }
+        return result;
+    }
+
+    /**
+     * Called to check whether this FragmentTag has the given tagTitle and dbRecordId, without
+     * regard to the container.
+     */
+    public boolean matches(String tagTitle, long dbRecordId) {
+        return this.dbRecordId == dbRecordId && this.tagTitle.equals(tagTitle);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FragmentTag)) {
+            return false;
+        }
+        FragmentTag other = (FragmentTag) o;
+        return hash == other.hash
+                && containerViewId == other.containerViewId
+                && dbRecordId == other.dbRecordId
+                && tagTitle.equals(other.tagTitle);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return getTagCombo();
+    }
+
+    /**
+     * Called to join the fields into a pipe delimited tagCombo.
+     */
+    static String join(String tagTitle, int containerViewId, long dbRecordId) {
+        StringBuilder builder = new StringBuilder(tagTitle.length() + 32);
+        builder.append(tagTitle)
+                .append(DELIMITER)
+                .append(containerViewId)
+                .append(DELIMITER)
+                .append(dbRecordId);
+        return builder.toString();
+    }
+
+    /**
+     * Called to split a pipe delimited String on every pipe, without building any intermediate
+     * collection.
+     */
+    static String[] split(String tagCombo) {
+        // Count the pipes first, so that the array is allocated once at its final size.
+        int pipes = 0;
+        int tagComboLength = tagCombo.length();
+        for (int index = 0; index < tagComboLength; index++) {
+            if (tagCombo.charAt(index) == DELIMITER) {
+                pipes++;
+            }
+        }
+        String[] result = new String[pipes + 1];
+        int start = 0;
+        for (int part = 0; part < pipes; part++) {
+            int end = tagCombo.indexOf(DELIMITER, start);
+            result[part] = tagCombo.substring(start, end);
+            start = end + 1;
+        }
+        result[pipes] = tagCombo.substring(start);
+        return result;
+    }
+
+    /**
+     * Called to parse a decimal long from part of a String, without taking a substring.
+     */
+    private static long parseLong(String s, int start, int end) {
+        if (start >= end) {
+            throw new IllegalArgumentException("Not a tagCombo: " + s);
+        }
+        boolean negative = s.charAt(start) == '-';
+        int index = negative ? start + 1 : start;
+        if (index >= end) {
+            throw new IllegalArgumentException("Not a tagCombo: " + s);
+        }
+        // Accumulate negatively, so that Long.MIN_VALUE can be parsed.
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiplyLimit = limit / 10;
+        long result = 0;
+        for (; index < end; index++) {
+            int digit = s.charAt(index) - '0';
+            if (digit < 0 || digit > 9 || result < multiplyLimit) {
+                throw new IllegalArgumentException("Not a tagCombo: " + s);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new IllegalArgumentException("Not a tagCombo: " + s);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.nothingworksright.fragmentboss;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * FrameScheduler creates the views that an {@link RebuildMode#INCREMENTAL} rebuild deferred, a few
+ * per frame.
+ *
+ * Each frame, deferred fragments are attached one at a time, nearest to the top of the back stack
+ * first, until the frame budget is used up. The rest wait for the next frame. The deferred
+ * fragments are hidden by the layers above them, so their views are created GONE and are never
+ * seen. On API 16 and up, frames are scheduled with Choreographer. Below API 16, each slice is
+ * posted to the UI thread with a handler.
+ *
+ * A deferred fragment that has already been attached, or has left the back stack, before its turn
+ * is skipped. All methods must be called on the UI thread.
+ */
+final class FrameScheduler {
+
+    private static final long DEFAULT_FRAME_BUDGET_NANOS = 4000000L;
+
+    private static final Map<FragmentManager, ArrayList<String>> DEFERRED = new WeakHashMap<>();
+    private static volatile long frameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
+    private static boolean scheduled;
+    private static Handler handler;
+
+    private static final Runnable SLICE = new Runnable() {
+        @Override
+        public void run() {
+            runSlice();
+        }
+    };
+
+    private FrameScheduler() {
+    }
+
+    /**
+     * Called to set how much of each frame may be spent attaching deferred fragments.
+     *
+     * @param budgetMillis long: The budget per frame, in milliseconds. At least one fragment is
+     *                     attached per frame, even with a budget of zero.
+     */
+    static void setFrameBudgetMillis(long budgetMillis) {
+        frameBudgetNanos = Math.max(0, budgetMillis) * 1000000L;
+    }
+
+    /**
+     * Called to attach the fragments with the given tagCombos in later frames.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param tagCombos List: The tagCombos of the deferred layers, bottom first.
+     */
+    static void attachLater(FragmentManager fm, List<String> tagCombos) {
+        ArrayList<String> deferred = DEFERRED.get(fm);
+        if (deferred == null) {
+            deferred = new ArrayList<>(tagCombos.size());
+            DEFERRED.put(fm, deferred);
+        }
+        // The layers are attached from the end of the list, so the highest layers go first.
+        deferred.removeAll(tagCombos);
+        deferred.addAll(tagCombos);
+        schedule();
+    }
+
+    private static void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            Frames.post();
+        } else {
+            if (handler == null) {
+                handler = new Handler(Looper.getMainLooper());
+            }
+            handler.post(SLICE);
+        }
+    }
+
+    /**
+     * Called once per frame to attach deferred fragments until the frame budget is used up.
+     */
+    private static void runSlice() {
+        scheduled = false;
+        long start = System.nanoTime();
+        boolean attachedOne = false;
+        ArrayList<FragmentManager> managers = new ArrayList<>(DEFERRED.keySet());
+        int managersSize = managers.size();
+        for (int entry = 0; entry < managersSize; entry++) {
+            FragmentManager fm = managers.get(entry);
+            ArrayList<String> deferred = DEFERRED.get(fm);
+            if (fm.isDestroyed()) {
+                DEFERRED.remove(fm);
+                continue;
+            }
+            while (!deferred.isEmpty()) {
+                if (attachedOne && System.nanoTime() - start >= frameBudgetNanos) {
+                    // Out of time. Finish next frame.
+                    schedule();
+                    return;
+                }
+                String tagCombo = deferred.remove(deferred.size() - 1);
+                if (attach(fm, tagCombo)) {
+                    attachedOne = true;
+                }
+            }
+            DEFERRED.remove(fm);
+        }
+    }
+
+    /**
+     * Called to attach one deferred fragment, if it is still in the back stack and detached.
+     *
+     * @return The return value is true if the fragment was attached.
+     */
+    private static boolean attach(FragmentManager fm, String tagCombo) {
+        BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+        BackStackIndex.Layer layer = index.findByTagCombo(tagCombo);
+        if (layer == null) {
+            return false;
+        }
+        Fragment fragment = index.fragmentOf(layer);
+        if (fragment == null || !fragment.isDetached()) {
+            return false;
+        }
+        FragmentTransaction ft = fm.beginTransaction();
+        ft.attach(fragment);
+        try {
+            ft.commitNow();
+        } catch (IllegalStateException e) {
+            // The fragment manager has saved its state. The view is created when the fragment
+            // is back on top.
+            return false;
+        }
+        ViewReattacher.of(fm).attached(tagCombo);
+        return true;
+    }
+
+    /**
+     * This class keeps Choreographer out of FrameScheduler, so that it is only loaded on API 16
+     * and up.
+     */
+    private static final class Frames {
+
+        private static final Choreographer.FrameCallback CALLBACK =
+                new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        runSlice();
+                    }
+                };
+
+        static void post() {
+            Choreographer.getInstance().postFrameCallback(CALLBACK);
+        }
+
+    }
+
+}
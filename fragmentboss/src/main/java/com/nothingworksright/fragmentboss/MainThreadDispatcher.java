@@ -0,0 +1,331 @@
+package com.nothingworksright.fragmentboss;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.app.FragmentManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MainThreadDispatcher runs FragmentBoss operations on the UI thread.
+ *
+ * Operations are dispatched into a lock-free queue, which any number of threads may add to at
+ * once. Only the UI thread takes operations from the queue, in batches, so no thread ever waits
+ * for another to dispatch. One handler is shared by every operation. An operation dispatched on
+ * the UI thread runs right away, unless another operation is running or waiting, in which case it
+ * waits its turn. An operation dispatched from any other thread waits for the next drain, which is
+ * posted once no matter how many operations are waiting.
+ *
+ * Waiting operations are coalesced as the UI thread takes them from the queue. An operation that
+ * moves a tagCombo supersedes an earlier waiting resurface or bury of the same tagCombo on the
+ * same fragment manager and with the same {@link RebuildMode}, because only the last move decides
+ * where that layer ends up. A pop, any
+ * remove, a memory trim, or a batch on the same fragment manager keeps the earlier move, because
+ * it may depend on it. A setBackStack decides the order of every layer, so it supersedes every
+ * earlier waiting resurface or bury on the same fragment manager with the same RebuildMode, back
+ * to the last of those. A move never supersedes one with another RebuildMode, so each call is
+ * rebuilt the way it asked for. A
+ * repeated remove or topFragmentOnResume directly after an identical one is dropped. The handle
+ * of a dropped operation completes along with the operation that superseded it.
+ *
+ * Once an operation has run, the back stack it left is published as an immutable
+ * {@link BackStackIndex.Snapshot}, which the lookups read when they are called off the UI thread.
+ */
+final class MainThreadDispatcher {
+
+    private static final ConcurrentLinkedQueue<Operation> QUEUE = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean DRAIN_POSTED = new AtomicBoolean();
+    // Only touched on the UI thread.
+    private static final ArrayList<Operation> PENDING = new ArrayList<>();
+    private static boolean running;
+    private static volatile Handler handler;
+
+    private static final Runnable DRAIN = new Runnable() {
+        @Override
+        public void run() {
+            DRAIN_POSTED.set(false);
+            if (!running) {
+                running = true;
+                drain();
+            }
+        }
+    };
+
+    private MainThreadDispatcher() {
+    }
+
+    /**
+     * Called to run an operation on the UI thread.
+     *
+     * @param operation Operation: The operation to run.
+     *
+     * @return The return value is the OperationHandle of the operation.
+     */
+    static OperationHandle dispatch(Operation operation) {
+        QUEUE.offer(operation);
+        if (!isMainThread()) {
+            postDrain();
+        } else if (!running) {
+            // Nothing else is running, so run every waiting operation right here.
+            running = true;
+            drain();
+        }
+        return operation.handle;
+    }
+
+    /**
+     * Called to post a runnable to the UI thread, with the handler shared by every operation.
+     */
+    static void post(Runnable runnable) {
+        Handler mainHandler = handler;
+        if (mainHandler == null) {
+            synchronized (MainThreadDispatcher.class) {
+                if (handler == null) {
+                    handler = new Handler(Looper.getMainLooper());
+                }
+                mainHandler = handler;
+            }
+        }
+        mainHandler.post(runnable);
+    }
+
+    /**
+     * Called to check whether the current thread is the UI thread.
+     */
+    static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    /**
+     * Called on the UI thread to run waiting operations until none are left. Operations
+     * dispatched while the drain is running are taken from the queue, and coalesced, before each
+     * operation runs.
+     */
+    private static void drain() {
+        try {
+            while (true) {
+                Operation next;
+                while ((next = QUEUE.poll()) != null) {
+                    coalesce(PENDING, next);
+                    PENDING.add(next);
+                }
+                if (PENDING.isEmpty()) {
+                    return;
+                }
+                PENDING.remove(0).run();
+            }
+        } finally {
+            running = false;
+            if (!PENDING.isEmpty() || !QUEUE.isEmpty()) {
+                // An operation threw, or another thread dispatched one just now. Leave the rest
+                // for a later drain.
+                postDrain();
+            }
+        }
+    }
+
+    /**
+     * Called to post a drain to the UI thread unless one is posted.
+     */
+    private static void postDrain() {
+        if (DRAIN_POSTED.compareAndSet(false, true)) {
+            post(DRAIN);
+        }
+    }
+
+    /**
+     * Called on the UI thread to drop the waiting operations made redundant by a new one.
+     *
+     * @param pending List: The operations waiting to run, in order.
+     * @param operation Operation: The new operation, which is not in the list yet.
+     */
+    static void coalesce(List<Operation> pending, Operation operation) {
+        int pendingSize = pending.size();
+        if (pendingSize == 0) {
+            return;
+        }
+
+        // A repeated remove or topFragmentOnResume directly after an identical one does nothing.
+        if (operation.kind == Operation.REMOVE || operation.kind == Operation.TOP_ON_RESUME) {
+            Operation last = pending.get(pendingSize - 1);
+            if (last.isSameAs(operation)) {
+                pending.remove(pendingSize - 1);
+                operation.handle.absorb(last.handle);
+            }
+            return;
+        }
+
+        // A move supersedes earlier moves of the same tagCombo, back to the last pop, remove,
+        // memory trim, batch, or restore of the saved state.
+        // A setBackStack supersedes earlier moves of any tagCombo.
+        // Only moves with the same RebuildMode are superseded.
+        boolean movesEverything = operation.kind == Operation.SET_BACK_STACK;
+        if (movesEverything || operation.movesTagCombo()) {
+            for (int entry = pendingSize - 1; entry >= 0; entry--) {
+                Operation earlier = pending.get(entry);
+                if (earlier.fm != operation.fm) {
+                    continue;
+                }
+                if (earlier.isBarrier()) {
+                    break;
+                }
+                if ((earlier.kind == Operation.RESURFACE || earlier.kind == Operation.BURY)
+                        && earlier.requestedMode == operation.requestedMode
+                        && (movesEverything || earlier.key.equals(operation.key))) {
+                    pending.remove(entry);
+                    operation.handle.absorb(earlier.handle);
+                }
+            }
+        }
+    }
+
+    /**
+     * This class represents one FragmentBoss operation waiting to run on the UI thread.
+     *
+     * Subclasses do their work in {@link #execute()}. Running the operation times it and then
+     * completes its {@link OperationHandle} with the resulting back stack. An operation that
+     * throws still completes its handle, with what it threw, and the throwable is then passed on.
+     * The timing of an operation that did not throw is also recorded in the
+     * {@link MetricsRegistry}, while metrics are enabled.
+     */
+    abstract static class Operation implements Runnable {
+
+        static final int REPLACE = 1;
+        static final int RESURFACE = 2;
+        static final int BURY = 3;
+        static final int POP = 4;
+        static final int REMOVE = 5;
+        static final int TOP_ON_RESUME = 6;
+        static final int SET_BACK_STACK = 7;
+        static final int REMOVE_MATCHING = 8;
+        static final int TRIM_MEMORY = 9;
+        static final int BATCH = 10;
+        static final int RESTORE_STATE = 11;
+
+        final int kind;
+        final FragmentManager fm;
+        final String key;
+        final long dbRecordId;
+        // The RebuildMode the caller asked for, or null for the default one.
+        final RebuildMode requestedMode;
+        final OperationHandle handle = new OperationHandle();
+
+        /**
+         * @param kind int: The kind of operation, used for coalescing.
+         * @param fm FragmentManager: The fragment manager the operation works on.
+         * @param key String: The tagCombo the operation works on, or the tagTitle for a remove.
+         */
+        Operation(int kind, FragmentManager fm, String key) {
+            this(kind, fm, key, 0, null);
+        }
+
+        Operation(int kind, FragmentManager fm, String key, long dbRecordId) {
+            this(kind, fm, key, dbRecordId, null);
+        }
+
+        /**
+         * @param requestedMode RebuildMode: The RebuildMode the caller asked for, or null for the
+         *                      default one. Only moves with the same RebuildMode are coalesced.
+         */
+        Operation(int kind, FragmentManager fm, String key, RebuildMode requestedMode) {
+            this(kind, fm, key, 0, requestedMode);
+        }
+
+        private Operation(int kind, FragmentManager fm, String key, long dbRecordId,
+                          RebuildMode requestedMode) {
+            this.kind = kind;
+            this.fm = fm;
+            this.key = key;
+            this.dbRecordId = dbRecordId;
+            this.requestedMode = requestedMode;
+        }
+
+        /**
+         * Called on the UI thread to do the work of the operation.
+         *
+         * @return The return value is the number of transactions that were run.
+         */
+        abstract int execute();
+
+        @Override
+        public final void run() {
+            long start = System.nanoTime();
+            int transactions = 0;
+            Throwable thrown = null;
+            try {
+                transactions = execute();
+            } catch (RuntimeException | Error e) {
+                thrown = e;
+                throw e;
+            } finally {
+                // The handle is completed even if the operation threw, so nothing waits forever.
+                long runNanos = System.nanoTime() - start;
+                List<FragmentTag> backStack;
+                if (fm != null) {
+                    backStack = FragmentManagerHost.of(fm).publish().tags();
+                } else {
+                    backStack = Collections.emptyList();
+                }
+                FragmentBossMetrics.Operation metric = metric();
+                if (metric != null && thrown == null) {
+                    MetricsRegistry.ran(metric, runNanos, transactions,
+                            fm != null ? backStack.size() : -1);
+                }
+                handle.complete(backStack, runNanos, transactions, thrown);
+            }
+        }
+
+        /**
+         * Called to get the kind of operation the metrics record this one as.
+         *
+         * @return The return value is the FragmentBossMetrics.Operation, or null if this kind of
+         * operation is not measured.
+         */
+        FragmentBossMetrics.Operation metric() {
+            switch (kind) {
+                case REPLACE:
+                    return FragmentBossMetrics.Operation.REPLACE;
+                case RESURFACE:
+                    return FragmentBossMetrics.Operation.RESURFACE;
+                case BURY:
+                    return FragmentBossMetrics.Operation.BURY;
+                case POP:
+                    return FragmentBossMetrics.Operation.POP;
+                case REMOVE:
+                case REMOVE_MATCHING:
+                    return FragmentBossMetrics.Operation.REMOVE;
+                case SET_BACK_STACK:
+                case RESTORE_STATE:
+                    return FragmentBossMetrics.Operation.SET_BACK_STACK;
+                case TRIM_MEMORY:
+                    return FragmentBossMetrics.Operation.TRIM_MEMORY;
+                case BATCH:
+                    return FragmentBossMetrics.Operation.BATCH;
+                default:
+                    return null;
+            }
+        }
+
+        boolean isBarrier() {
+            return kind == POP || kind == REMOVE || kind == REMOVE_MATCHING || kind == TRIM_MEMORY
+                    || kind == BATCH || kind == RESTORE_STATE;
+        }
+
+        boolean movesTagCombo() {
+            return key != null && (kind == REPLACE || kind == RESURFACE || kind == BURY);
+        }
+
+        boolean isSameAs(Operation other) {
+            return kind == other.kind
+                    && fm == other.fm
+                    && dbRecordId == other.dbRecordId
+                    && (key == null ? other.key == null : key.equals(other.key));
+        }
+
+    }
+
+}
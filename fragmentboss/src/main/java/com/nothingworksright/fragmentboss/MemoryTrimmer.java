@@ -0,0 +1,167 @@
+package com.nothingworksright.fragmentboss;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * MemoryTrimmer sheds the fragments that are covered by the top fragment of their container when
+ * the system asks the app to trim its memory.
+ *
+ * From {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} up, the covered fragments are
+ * detached, which releases their views but keeps the fragments in the back stack. A detached
+ * fragment is attached again as soon as it becomes the top fragment of its container. See
+ * {@link ViewReattacher}.
+ *
+ * At {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL}, the covered fragments are shelved
+ * instead, which keeps only their tag and saved state, just like fragments past the maximum back
+ * stack depth. See {@link FragmentShelf}. This is the last level that arrives while the app is
+ * in the foreground, so the back stack can still change. The levels that arrive once the app is
+ * in the background, up to {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE}, come after the
+ * fragment manager has saved its state, so they only release views. If the fragment manager has
+ * already saved its state at TRIM_MEMORY_RUNNING_CRITICAL, the views are released as well.
+ *
+ * Only the fragment managers that FragmentBoss has already worked with are trimmed. The
+ * callbacks can only be registered on API 14 and up, where ComponentCallbacks2 exists.
+ */
+final class MemoryTrimmer {
+
+    private MemoryTrimmer() {
+    }
+
+    /**
+     * Called to register the trimmer with the application context. Registering more than once has
+     * no further effect, and neither does registering below API 14.
+     */
+    static void register(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            Callbacks.register(context);
+        }
+    }
+
+    /**
+     * Called to unregister the trimmer from the application context.
+     */
+    static void unregister(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            Callbacks.unregister(context);
+        }
+    }
+
+    /**
+     * Called to shed the covered fragments of one fragment manager.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param level int: The trim memory level, as passed to ComponentCallbacks2.onTrimMemory.
+     *
+     * @return The return value is the number of transactions that were run.
+     */
+    static int trim(FragmentManager fm, int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW || fm.isDestroyed()) {
+            return 0;
+        }
+        // Every layer below the top layer of its container.
+        HashSet<BackStackIndex.Layer> covered;
+        covered = FragmentShelf.coveredPast(FragmentManagerHost.indexOf(fm), 1);
+        if (covered.isEmpty()) {
+            return 0;
+        }
+        if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            try {
+                return FragmentShelf.evict(fm, covered);
+            } catch (IllegalStateException e) {
+                // The fragment manager has saved its state, so the back stack can't change.
+                // Releasing the views is still allowed.
+            }
+        }
+        return releaseViews(fm, covered);
+    }
+
+    /**
+     * Called to detach the fragments of the given layers that still have a view, in one
+     * transaction that is not added to the back stack.
+     */
+    private static int releaseViews(FragmentManager fm, HashSet<BackStackIndex.Layer> covered) {
+        BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+        ViewReattacher reattacher = null;
+        FragmentTransaction ft = fm.beginTransaction();
+        for (BackStackIndex.Layer layer : covered) {
+            Fragment fragment = index.fragmentOf(layer);
+            if (fragment != null && fragment.getView() != null && !fragment.isDetached()) {
+                if (reattacher == null) {
+                    reattacher = ViewReattacher.of(fm);
+                }
+                reattacher.released(layer.tagCombo);
+                ft.detach(fragment);
+            }
+        }
+        if (ft.isEmpty()) {
+            return 0;
+        }
+        // Losing this transaction only means the views are kept, so state loss is allowed.
+        ft.commitAllowingStateLoss();
+        fm.executePendingTransactions();
+        return 1;
+    }
+
+    /**
+     * This class keeps ComponentCallbacks2 out of MemoryTrimmer, so that it is only loaded on API
+     * 14 and up.
+     */
+    private static final class Callbacks implements ComponentCallbacks2 {
+
+        private static Callbacks registered;
+
+        static synchronized void register(Context context) {
+            if (registered == null) {
+                registered = new Callbacks();
+                context.getApplicationContext().registerComponentCallbacks(registered);
+            }
+        }
+
+        static synchronized void unregister(Context context) {
+            if (registered != null) {
+                context.getApplicationContext().unregisterComponentCallbacks(registered);
+                registered = null;
+            }
+        }
+
+        @Override
+        public void onTrimMemory(final int level) {
+            if (level < TRIM_MEMORY_RUNNING_LOW) {
+                return;
+            }
+            List<FragmentManager> managers = FragmentManagerHost.managers();
+            int managersSize = managers.size();
+            for (int entry = 0; entry < managersSize; entry++) {
+                final FragmentManager fm = managers.get(entry);
+                MainThreadDispatcher.dispatch(new MainThreadDispatcher.Operation(
+                        MainThreadDispatcher.Operation.TRIM_MEMORY, fm, null) {
+                    @Override
+                    int execute() {
+                        return trim(fm, level);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            onTrimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+    }
+
+}
@@ -0,0 +1,231 @@
+package com.nothingworksright.fragmentboss;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * MetricsRegistry records what {@link FragmentBossMetrics} reports.
+ *
+ * Nothing is recorded while metrics are disabled, and every recording method returns after one
+ * volatile read. Operations record on the UI thread, and a snapshot may be taken on any thread,
+ * so the counts are kept under a lock that is almost never contended.
+ *
+ * The rebuild phases are also marked as trace sections through a {@link Tracer}, which on a
+ * device writes to the system trace. The registry itself does not touch the Android framework.
+ */
+final class MetricsRegistry {
+
+    static final String SECTION_SNAPSHOT = "FragmentBoss:snapshot";
+    static final String SECTION_CLEAR = "FragmentBoss:clear";
+    static final String SECTION_REMOVE = "FragmentBoss:remove";
+    static final String SECTION_READD = "FragmentBoss:re-add";
+
+    private static final int OPERATIONS = FragmentBossMetrics.Operation.values().length;
+    private static final int BUCKETS = FragmentBossMetrics.Histogram.BUCKETS;
+
+    private static final Object LOCK = new Object();
+    private static final CopyOnWriteArrayList<FragmentBossMetrics.Listener> LISTENERS =
+            new CopyOnWriteArrayList<>();
+    private static volatile boolean enabled;
+    private static volatile Tracer tracer;
+
+    private static final long[][] BUCKET_COUNTS = new long[OPERATIONS][BUCKETS];
+    private static final long[] COUNTS = new long[OPERATIONS];
+    private static final long[] TOTAL_NANOS = new long[OPERATIONS];
+    private static final long[] MAX_NANOS = new long[OPERATIONS];
+    private static long transactionsCommitted;
+    private static long fragmentsReadded;
+    private static int backStackDepth;
+    private static int maxBackStackDepth;
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * Called to turn recording on or off. What was recorded so far is kept.
+     *
+     * @param enable boolean: True to record.
+     * @param sectionTracer Tracer: Marks the rebuild phases while recording. May be null.
+     */
+    static void setEnabled(boolean enable, Tracer sectionTracer) {
+        tracer = sectionTracer;
+        enabled = enable;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Called to get the time an operation starts, when it is to be measured.
+     *
+     * @return The return value is System.nanoTime(), or 0 while metrics are disabled.
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Called when a lookup that started at the given time is done. Lookups may be called from
+     * any thread, but the listeners are only called on the UI thread.
+     *
+     * @param startNanos long: The time the lookup started, or 0 if it is not measured.
+     * @param uiThread Executor: Runs the listener calls on the UI thread when the lookup ran on
+     *                 another thread, or null when the lookup ran on the UI thread.
+     */
+    static void found(long startNanos, Executor uiThread) {
+        if (startNanos != 0) {
+            record(FragmentBossMetrics.Operation.FIND, System.nanoTime() - startNanos, 0, -1,
+                    uiThread);
+        }
+    }
+
+    /**
+     * Called on the UI thread once an operation has run.
+     *
+     * @param operation Operation: The kind of operation.
+     * @param durationNanos long: How long it ran.
+     * @param transactions int: The number of transactions it committed.
+     * @param depth int: The depth of the back stack it left, or -1 if it did not read it.
+     */
+    static void ran(FragmentBossMetrics.Operation operation, long durationNanos, int transactions,
+                    int depth) {
+        record(operation, durationNanos, transactions, depth, null);
+    }
+
+    private static void record(final FragmentBossMetrics.Operation operation,
+                               final long durationNanos, final int transactions, int depth,
+                               Executor uiThread) {
+        if (!enabled) {
+            return;
+        }
+        int kind = operation.ordinal();
+        final int reportedDepth;
+        synchronized (LOCK) {
+            BUCKET_COUNTS[kind][FragmentBossMetrics.Histogram.bucketOf(durationNanos)]++;
+            COUNTS[kind]++;
+            TOTAL_NANOS[kind] += durationNanos;
+            MAX_NANOS[kind] = Math.max(MAX_NANOS[kind], durationNanos);
+            transactionsCommitted += transactions;
+            if (depth >= 0) {
+                backStackDepth = depth;
+                maxBackStackDepth = Math.max(maxBackStackDepth, depth);
+            }
+            reportedDepth = backStackDepth;
+        }
+        if (LISTENERS.isEmpty()) {
+            return;
+        }
+        if (uiThread == null) {
+            callListeners(operation, durationNanos, transactions, reportedDepth);
+        } else {
+            uiThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callListeners(operation, durationNanos, transactions, reportedDepth);
+                }
+            });
+        }
+    }
+
+    private static void callListeners(FragmentBossMetrics.Operation operation, long durationNanos,
+                                      int transactions, int backStackDepth) {
+        for (FragmentBossMetrics.Listener listener : LISTENERS) {
+            listener.onOperation(operation, durationNanos, transactions, backStackDepth);
+        }
+    }
+
+    /**
+     * Called when a rebuild adds back fragments that it tore down.
+     */
+    static void readded(int fragments) {
+        if (enabled && fragments > 0) {
+            synchronized (LOCK) {
+                fragmentsReadded += fragments;
+            }
+        }
+    }
+
+    /**
+     * Called to begin a trace section. Pass the result to {@link #endSection(boolean)}.
+     *
+     * @return The return value is true if the section was begun.
+     */
+    static boolean beginSection(String sectionName) {
+        Tracer sectionTracer = tracer;
+        if (enabled && sectionTracer != null) {
+            sectionTracer.beginSection(sectionName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called to end the trace section begun by {@link #beginSection(String)}.
+     */
+    static void endSection(boolean begun) {
+        Tracer sectionTracer = tracer;
+        if (begun && sectionTracer != null) {
+            sectionTracer.endSection();
+        }
+    }
+
+    static void addListener(FragmentBossMetrics.Listener listener) {
+        if (listener != null) {
+            LISTENERS.addIfAbsent(listener);
+        }
+    }
+
+    static void removeListener(FragmentBossMetrics.Listener listener) {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Called to copy everything recorded so far.
+     *
+     * @return The return value is a new FragmentBossMetrics.
+     */
+    static FragmentBossMetrics snapshot() {
+        synchronized (LOCK) {
+            FragmentBossMetrics.Histogram[] latencies;
+            latencies = new FragmentBossMetrics.Histogram[OPERATIONS];
+            for (int kind = 0; kind < OPERATIONS; kind++) {
+                latencies[kind] = new FragmentBossMetrics.Histogram(BUCKET_COUNTS[kind].clone(),
+                        COUNTS[kind], TOTAL_NANOS[kind], MAX_NANOS[kind]);
+            }
+            return new FragmentBossMetrics(latencies, transactionsCommitted, fragmentsReadded,
+                    backStackDepth, maxBackStackDepth);
+        }
+    }
+
+    /**
+     * Called to forget everything recorded so far.
+     */
+    static void reset() {
+        synchronized (LOCK) {
+            for (int kind = 0; kind < OPERATIONS; kind++) {
+                Arrays.fill(BUCKET_COUNTS[kind], 0);
+            }
+            Arrays.fill(COUNTS, 0);
+            Arrays.fill(TOTAL_NANOS, 0);
+            Arrays.fill(MAX_NANOS, 0);
+            transactionsCommitted = 0;
+            fragmentsReadded = 0;
+            backStackDepth = 0;
+            maxBackStackDepth = 0;
+        }
+    }
+
+    /**
+     * Tracer marks the phases of a rebuild, such as in the system trace.
+     */
+    interface Tracer {
+
+        void beginSection(String sectionName);
+
+        void endSection();
+
+    }
+
+}
@@ -0,0 +1,270 @@
+package com.nothingworksright.fragmentboss;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OperationHandle reports when a FragmentBoss operation has run, and what it left behind.
+ *
+ * Every FragmentBoss method that changes the back stack returns a handle. Once the operation has
+ * run on the UI thread, the handle holds the resulting back stack, how long the operation took,
+ * and how many transactions it committed. A listener added to the handle is called exactly once,
+ * on the UI thread, right after the operation. A background thread can also wait for the handle.
+ *
+ * An operation that was superseded by a later one, and so never ran, completes together with the
+ * operation that superseded it, and reports that operation's results. An operation that throws
+ * is complete as well, and reports what it threw.
+ */
+public final class OperationHandle {
+
+    private final long dispatchedAtNanos = System.nanoTime();
+    private boolean done;
+    private boolean superseded;
+    private List<FragmentTag> finalBackStack = Collections.emptyList();
+    private long durationNanos;
+    private long latencyNanos;
+    private int transactionCount;
+    private Throwable failure;
+    private ArrayList<Listener> listeners;
+    private ArrayList<OperationHandle> absorbed;
+
+    OperationHandle() {
+    }
+
+    /**
+     * Called to check whether the operation has run, or was superseded by one that has run.
+     *
+     * @return The return value is true once the operation is complete.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Called to check whether the operation was dropped because a later operation made it
+     * redundant.
+     *
+     * @return The return value is true if the operation never ran. The results are those of the
+     * operation that superseded it.
+     */
+    public synchronized boolean isSuperseded() {
+        return superseded;
+    }
+
+    /**
+     * Called to get the back stack as the operation left it.
+     *
+     * @return The return value is an unmodifiable List of the tags of the back stack, bottom
+     * first, or an empty List if the operation is not complete.
+     */
+    public synchronized List<FragmentTag> getFinalBackStack() {
+        return finalBackStack;
+    }
+
+    /**
+     * Called to get how long the operation ran on the UI thread.
+     *
+     * @return The return value is the duration in nanoseconds, or 0 if the operation is not
+     * complete.
+     */
+    public synchronized long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Called to get how long it took from the call that dispatched the operation until it was
+     * complete, including any time spent waiting for the UI thread.
+     *
+     * @return The return value is the latency in nanoseconds, or 0 if the operation is not
+     * complete.
+     */
+    public synchronized long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * Called to get the number of fragment transactions the operation committed, counting a pop
+     * as one.
+     *
+     * @return The return value is the number of transactions, or 0 if the operation is not
+     * complete.
+     */
+    public synchronized int getTransactionCount() {
+        return transactionCount;
+    }
+
+    /**
+     * Called to get what the operation threw, if it did not finish its work.
+     *
+     * @return The return value is the RuntimeException or Error the operation threw, or null if
+     * it did not throw or is not complete.
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Called to add a listener that is called once the operation is complete.
+     *
+     * The listener is always called on the UI thread. If the operation is already complete, it is
+     * called right away when this method is called on the UI thread, and posted to the UI thread
+     * otherwise.
+     *
+     * @param listener Listener: The listener to call.
+     *
+     * @return The return value is this OperationHandle, so that calls can be chained.
+     */
+    public OperationHandle addListener(final Listener listener) {
+        if (listener == null) {
+            return this;
+        }
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<>(1);
+                }
+                listeners.add(listener);
+                return this;
+            }
+        }
+        if (MainThreadDispatcher.isMainThread()) {
+            listener.onComplete(this);
+        } else {
+            MainThreadDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onComplete(OperationHandle.this);
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Called to wait until the operation is complete.
+     *
+     * @throws InterruptedException If the waiting thread is interrupted.
+     * @throws IllegalStateException If called on the UI thread before the operation is complete,
+     * because the operation can only run on the UI thread.
+     */
+    public void await() throws InterruptedException {
+        await(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called to wait until the operation is complete, or until the timeout runs out.
+     *
+     * @param timeout long: The longest time to wait. Zero means no limit.
+     * @param unit TimeUnit: The unit of the timeout.
+     *
+     * @return The return value is true if the operation is complete.
+     *
+     * @throws InterruptedException If the waiting thread is interrupted.
+     * @throws IllegalStateException If called on the UI thread before the operation is complete,
+     * because the operation can only run on the UI thread.
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        if (done) {
+            return true;
+        }
+        if (MainThreadDispatcher.isMainThread()) {
+            throw new IllegalStateException(
+                    "Cannot wait for a FragmentBoss operation on the UI thread");
+        }
+        if (timeout <= 0) {
+            while (!done) {
+                wait();
+            }
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Called, when an earlier operation is dropped in favor of the one this handle belongs to, to
+     * complete the earlier handle along with this one.
+     */
+    synchronized void absorb(OperationHandle earlier) {
+        if (absorbed == null) {
+            absorbed = new ArrayList<>(1);
+        }
+        absorbed.add(earlier);
+    }
+
+    /**
+     * Called on the UI thread, once the operation has run, to record its results, wake up any
+     * waiting thread, and call the listeners.
+     */
+    void complete(List<FragmentTag> backStack, long runNanos, int transactions) {
+        complete(backStack, runNanos, transactions, null, false);
+    }
+
+    /**
+     * Called on the UI thread, once the operation has run or thrown, to record its results and
+     * what it threw, wake up any waiting thread, and call the listeners.
+     */
+    void complete(List<FragmentTag> backStack, long runNanos, int transactions,
+                  Throwable thrown) {
+        complete(backStack, runNanos, transactions, thrown, false);
+    }
+
+    private void complete(List<FragmentTag> backStack, long runNanos, int transactions,
+                          Throwable thrown, boolean wasSuperseded) {
+        ArrayList<Listener> toCall;
+        ArrayList<OperationHandle> toComplete;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            superseded = wasSuperseded;
+            finalBackStack = backStack;
+            durationNanos = runNanos;
+            latencyNanos = System.nanoTime() - dispatchedAtNanos;
+            transactionCount = transactions;
+            failure = thrown;
+            toCall = listeners;
+            toComplete = absorbed;
+            listeners = null;
+            absorbed = null;
+            notifyAll();
+        }
+        if (toComplete != null) {
+            int toCompleteSize = toComplete.size();
+            for (int entry = 0; entry < toCompleteSize; entry++) {
+                toComplete.get(entry).complete(backStack, runNanos, transactions, thrown, true);
+            }
+        }
+        if (toCall != null) {
+            int toCallSize = toCall.size();
+            for (int entry = 0; entry < toCallSize; entry++) {
+                toCall.get(entry).onComplete(this);
+            }
+        }
+    }
+
+    /**
+     * Listener is called once a FragmentBoss operation is complete.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the UI thread, right after the operation has run.
+         *
+         * @param handle OperationHandle: The handle of the complete operation.
+         */
+        void onComplete(OperationHandle handle);
+
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.nothingworksright.fragmentboss;
+
+import android.content.Context;
+
+/**
+ * Prefetchable is implemented by a fragment that can do some of its work ahead of time, when
+ * FragmentBoss builds it during idle time because it is likely to be shown next.
+ *
+ * See {@link FragmentBoss#setPrefetchEnabled(boolean)}.
+ */
+public interface Prefetchable {
+
+    /**
+     * Called on the UI thread, while the UI thread is idle, right after the fragment was built
+     * ahead of time. The fragment is not added to a fragment manager yet. It may inflate its view
+     * here, such as with LayoutInflater.from(context), and return it from onCreateView.
+     *
+     * @param context Context: The context of the activity the fragment is likely to be added to.
+     */
+    void onPrefetch(Context context);
+
+}
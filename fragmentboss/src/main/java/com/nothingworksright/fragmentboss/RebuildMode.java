@@ -0,0 +1,47 @@
+package com.nothingworksright.fragmentboss;
+
+/**
+ * RebuildMode chooses how FragmentBoss refills the back stack after moving or removing a layer.
+ *
+ * Set the rebuild mode by using {@link FragmentBoss#setRebuildMode(RebuildMode)}, or choose one
+ * for a single operation by passing it to an overload that takes a RebuildMode.
+ *
+ * @see FragmentBoss#resurfaceFragmentInBackStack(android.support.v4.app.FragmentManager, String)
+ * @see FragmentBoss#buryFragmentInBackStack(android.support.v4.app.FragmentManager, String)
+ * @see FragmentBoss#removeFragmentByTagTitleAndDbId(android.support.v4.app.FragmentManager, String,
+ * long)
+ */
+public enum RebuildMode {
+
+    /**
+     * The layers are popped immediately, and the pop is executed before any layer is added back.
+     * Every popped fragment goes through its full remove and add lifecycle, and is laid out again.
+     */
+    SEQUENTIAL,
+
+    /**
+     * The pop and every add are queued together and run by a single call to
+     * executePendingTransactions. Each transaction allows optimization, so the fragment manager may
+     * reorder the operations and cancel a remove against the add of the same fragment. A fragment
+     * that is popped and added back keeps its view, and the container is laid out once.
+     *
+     * The back stack holds one layer per transaction, so one transaction per layer is still
+     * committed, but only one layout and measure pass happens per operation.
+     *
+     * Only the top fragment of each container gets its view right away. A covered fragment
+     * without a view is added detached, and its view is created when it becomes the top of its
+     * container. Fragments that already have a view keep it. This is the default.
+     */
+    BATCHED,
+
+    /**
+     * Like {@link #BATCHED}, except that the views of the covered fragments are not left until
+     * they surface. They are created in later frames, a few fragments per frame, nearest to the
+     * top first, so that popping back to them needs no inflation.
+     *
+     * The back stack is complete as soon as the operation returns. Only view creation is spread
+     * over frames, within the budget set by using {@link FragmentBoss#setFrameBudgetMillis(long)}.
+     */
+    INCREMENTAL
+
+}
@@ -0,0 +1,28 @@
+package com.nothingworksright.fragmentboss;
+
+/**
+ * Recyclable is implemented by a fragment that FragmentBoss may reuse for another tag with the
+ * same tagTitle, once the fragment has been removed from its fragment manager. Only the fragment
+ * instance is reused, and it inflates a new view once it is added again.
+ *
+ * See {@link FragmentBoss#setRecyclePoolSize(String, int)}.
+ */
+public interface Recyclable {
+
+    /**
+     * Called on the UI thread when the fragment is taken from the pool, right before
+     * {@link #onRebind(FragmentTag)}. Release anything tied to the old tag here, such as data
+     * kept in fields. A pooled fragment that is added back with its old tag is not called.
+     */
+    void onRecycle();
+
+    /**
+     * Called on the UI thread when the fragment is taken from the pool, right before it is added
+     * with the given tag. The fragment is not in any fragment manager, and its old arguments have
+     * been cleared. Set its arguments for the new dbRecordId here.
+     *
+     * @param tag FragmentTag: The tag the fragment will be added with.
+     */
+    void onRebind(FragmentTag tag);
+
+}
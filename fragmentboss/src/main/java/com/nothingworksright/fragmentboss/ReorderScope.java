@@ -0,0 +1,32 @@
+package com.nothingworksright.fragmentboss;
+
+/**
+ * ReorderScope chooses which layers of the back stack a resurface or a bury may move.
+ *
+ * Set the reorder scope by using {@link FragmentBoss#setReorderScope(ReorderScope)}.
+ *
+ * @see FragmentBoss#resurfaceFragmentInBackStack(android.support.v4.app.FragmentManager, String)
+ * @see FragmentBoss#buryFragmentInBackStack(android.support.v4.app.FragmentManager, String)
+ */
+public enum ReorderScope {
+
+    /**
+     * A resurfaced layer goes to the top of the whole back stack, and a buried layer goes to the
+     * bottom of the whole back stack, whatever container the other layers are in. This is the
+     * default.
+     */
+    BACK_STACK,
+
+    /**
+     * Only the layers of the affected container are reordered. A resurfaced layer goes to the
+     * highest position held by its container, and a buried layer goes to the lowest one. Every
+     * layer of another container keeps its position in the back stack.
+     *
+     * Layers of other containers that sit above the lowest moved position are still popped and
+     * added back, because the back stack can only change at the top. With
+     * {@link RebuildMode#BATCHED} or {@link RebuildMode#INCREMENTAL}, their fragments are not
+     * torn down, and their views are left alone.
+     */
+    CONTAINER
+
+}
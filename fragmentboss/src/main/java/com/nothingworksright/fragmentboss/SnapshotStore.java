@@ -0,0 +1,357 @@
+package com.nothingworksright.fragmentboss;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.util.AtomicFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * SnapshotStore saves the back stack of a fragment manager as a {@link BackStackSnapshot} in the
+ * app's private files, and builds its fragments again on a cold start.
+ *
+ * Each layer is kept as its tag, the class name of its fragment, its arguments, and the
+ * Fragment.SavedState the fragment manager saves for it. The arguments and saved state are
+ * marshalled with a Parcel, which is only readable by the same build of the app on the same build
+ * of the system. The snapshot is stamped with both, and a snapshot with another stamp is deleted
+ * instead of being read.
+ *
+ * Only the encoding is done on the calling thread. The file is written, deleted, and pruned on one
+ * background thread, in the order those calls were made. Until a write or delete has reached the
+ * file, {@link #load(Context, String)} reads the snapshot from memory instead. The file is written
+ * through an AtomicFile, so a process that dies while writing leaves the previous snapshot in
+ * place. All methods must be called on the UI thread.
+ */
+final class SnapshotStore {
+
+    private static final String DIRECTORY = "fragmentboss";
+    private static final String SUFFIX = ".snapshot";
+
+    // Stands for a pending delete in PENDING.
+    private static final byte[] DELETED = new byte[0];
+    // The encoded snapshots that are not written yet, or DELETED, by name.
+    private static final HashMap<String, byte[]> PENDING = new HashMap<>();
+
+    private static final Executor IO = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FragmentBoss snapshots");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private SnapshotStore() {
+    }
+
+    /**
+     * Called to save the back stack of a fragment manager.
+     *
+     * @param context Context: Any context of the app.
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     * @param name String: The name of the snapshot, which is used as a file name.
+     *
+     * @return The return value is true if the snapshot was encoded and is being written.
+     */
+    static boolean save(Context context, FragmentManager fm, String name) {
+        BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+        List<BackStackIndex.Layer> layers = index.layers();
+        int layersSize = layers.size();
+        List<BackStackSnapshot.Entry> entries = new ArrayList<>(layersSize);
+        for (int entry = 0; entry < layersSize; entry++) {
+            BackStackIndex.Layer layer = layers.get(entry);
+            Fragment fragment = index.fragmentOf(layer);
+            if (fragment != null) {
+                entries.add(capture(fm, layer.tag, fragment));
+            }
+        }
+        return write(context, name, entries);
+    }
+
+    /**
+     * Called to write a snapshot of the given layers, stamped with this build of the app and of
+     * the system. The snapshot is encoded right away, and written on the background thread.
+     *
+     * @return The return value is true if the snapshot was encoded and is being written.
+     */
+    static boolean write(Context context, String name, List<BackStackSnapshot.Entry> entries) {
+        checkName(name);
+        final byte[] data;
+        try {
+            data = new BackStackSnapshot(stampOf(context), entries).encode();
+        } catch (IOException e) {
+            return false;
+        }
+        final Context appContext = context.getApplicationContext();
+        final String fileName = name;
+        synchronized (PENDING) {
+            PENDING.put(fileName, data);
+        }
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                AtomicFile file = fileOf(appContext, fileName);
+                FileOutputStream out = null;
+                try {
+                    out = file.startWrite();
+                    out.write(data);
+                    file.finishWrite(out);
+                } catch (IOException e) {
+                    // The previous snapshot is left in place.
+                    if (out != null) {
+                        file.failWrite(out);
+                    }
+                }
+                settle(fileName, data);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Called on the background thread once a write or delete has reached the file, so that
+     * {@link #load(Context, String)} reads the file again, unless a later one is pending.
+     */
+    private static void settle(String name, byte[] data) {
+        synchronized (PENDING) {
+            if (PENDING.get(name) == data) {
+                PENDING.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Called to read a saved snapshot.
+     *
+     * @param context Context: Any context of the app.
+     * @param name String: The name of the snapshot.
+     *
+     * @return The return value is the BackStackSnapshot, or null if there is none that this build
+     * of the app can read.
+     */
+    static BackStackSnapshot load(Context context, String name) {
+        checkName(name);
+        byte[] pending;
+        synchronized (PENDING) {
+            pending = PENDING.get(name);
+        }
+        if (pending == DELETED) {
+            return null;
+        }
+        if (pending != null) {
+            try {
+                // Encoded by this process, so its stamp is current.
+                return BackStackSnapshot.decode(pending);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        AtomicFile file = fileOf(context, name);
+        if (!file.getBaseFile().exists()) {
+            return null;
+        }
+        try {
+            BackStackSnapshot snapshot = BackStackSnapshot.decode(file.readFully());
+            if (snapshot.stamp == stampOf(context)) {
+                return snapshot;
+            }
+        } catch (IOException e) {
+            // An unreadable snapshot is dropped like a stale one.
+        }
+        file.delete();
+        return null;
+    }
+
+    /**
+     * Called to delete a saved snapshot, on the background thread.
+     */
+    static void delete(Context context, String name) {
+        checkName(name);
+        final Context appContext = context.getApplicationContext();
+        final String fileName = name;
+        synchronized (PENDING) {
+            PENDING.put(fileName, DELETED);
+        }
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                fileOf(appContext, fileName).delete();
+                settle(fileName, DELETED);
+            }
+        });
+    }
+
+    /**
+     * Called to delete the snapshots whose names start with the prefix, and that have not been
+     * written for the given time, on the background thread.
+     */
+    static void prune(Context context, final String prefix, final long maxAgeMillis) {
+        final Context appContext = context.getApplicationContext();
+        IO.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = new File(appContext.getFilesDir(), DIRECTORY).listFiles();
+                if (files == null) {
+                    return;
+                }
+                long oldest = System.currentTimeMillis() - maxAgeMillis;
+                for (File file : files) {
+                    if (file.getName().startsWith(prefix) && file.lastModified() < oldest) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called to capture a fragment that is in the fragment manager as a layer of a snapshot.
+     *
+     * @param fm FragmentManager: The fragment manager the fragment is in.
+     * @param tag FragmentTag: The tag of the fragment.
+     * @param fragment Fragment: The fragment.
+     *
+     * @return The return value is the BackStackSnapshot.Entry of the fragment.
+     */
+    static BackStackSnapshot.Entry capture(FragmentManager fm, FragmentTag tag,
+                                           Fragment fragment) {
+        Fragment.SavedState savedState = null;
+        try {
+            savedState = fm.saveFragmentInstanceState(fragment);
+        } catch (IllegalStateException e) {
+            // The fragment is not active in the fragment manager, so it has no state to save.
+        }
+        return entryOf(tag, fragment.getClass(), fragment.getArguments(), savedState);
+    }
+
+    /**
+     * Called to marshall a fragment's class, arguments, and saved state as a layer of a snapshot.
+     */
+    static BackStackSnapshot.Entry entryOf(FragmentTag tag, Class<?> fragmentClass,
+                                           Bundle arguments, Fragment.SavedState savedState) {
+        return new BackStackSnapshot.Entry(tag, fragmentClass.getName(), marshall(arguments),
+                marshall(savedState));
+    }
+
+    /**
+     * Called to build a fragment again from its layer of a snapshot, with its arguments and saved
+     * state.
+     *
+     * @param context Context: Any context of the app.
+     * @param entry BackStackSnapshot.Entry: The layer of the snapshot.
+     *
+     * @return The return value is the new Fragment, or null if it cannot be built.
+     */
+    static Fragment build(Context context, BackStackSnapshot.Entry entry) {
+        ClassLoader classLoader = context.getClassLoader();
+        try {
+            Bundle arguments = null;
+            if (entry.arguments != null) {
+                Parcel parcel = unmarshall(entry.arguments);
+                try {
+                    arguments = parcel.readBundle(classLoader);
+                } finally {
+                    parcel.recycle();
+                }
+            }
+            Fragment fragment = Fragment.instantiate(context, entry.className, arguments);
+            if (entry.savedState != null) {
+                Parcel parcel = unmarshall(entry.savedState);
+                try {
+                    Fragment.SavedState savedState = parcel.readParcelable(classLoader);
+                    fragment.setInitialSavedState(savedState);
+                } finally {
+                    parcel.recycle();
+                }
+            }
+            return fragment;
+        } catch (RuntimeException e) {
+            // The class is gone, or its state cannot be read. The layer is left out.
+            return null;
+        }
+    }
+
+    /**
+     * Called to check that a snapshot name can be used as a file name.
+     *
+     * @throws IllegalArgumentException If the name is empty or is not a plain file name.
+     */
+    static void checkName(String name) {
+        if (name == null || name.isEmpty() || name.indexOf(File.separatorChar) >= 0) {
+            throw new IllegalArgumentException("Not a snapshot name: " + name);
+        }
+    }
+
+    private static AtomicFile fileOf(Context context, String name) {
+        checkName(name);
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return new AtomicFile(new File(directory, name + SUFFIX));
+    }
+
+    /**
+     * Called to get the stamp of this build of the app on this build of the system. A marshalled
+     * Parcel is only readable when the stamp is the same.
+     */
+    private static long stampOf(Context context) {
+        long lastUpdateTime = 0;
+        try {
+            lastUpdateTime = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // The app always finds its own package.
+        }
+        return 31 * lastUpdateTime + Build.FINGERPRINT.hashCode();
+    }
+
+    private static byte[] marshall(Bundle bundle) {
+        if (bundle == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static byte[] marshall(Fragment.SavedState savedState) {
+        if (savedState == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(savedState, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Parcel unmarshall(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(data, 0, data.length);
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+
+}
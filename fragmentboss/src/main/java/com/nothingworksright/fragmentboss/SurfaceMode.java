@@ -0,0 +1,30 @@
+package com.nothingworksright.fragmentboss;
+
+/**
+ * SurfaceMode chooses what happens to the fragment that was on top of a container when another
+ * layer is added on top of it, and so what happens to it again when it is resurfaced.
+ *
+ * The choice trades memory for latency. It is made per container by using
+ * {@link FragmentBoss#setSurfaceMode(int, SurfaceMode)}, or for every container by using
+ * {@link FragmentBoss#setSurfaceMode(SurfaceMode)}.
+ *
+ * Either way, the covered fragment is put away in the same back stack transaction that adds the
+ * new layer, so popping the new layer brings the covered fragment back without any extra work.
+ */
+public enum SurfaceMode {
+
+    /**
+     * The covered fragment is hidden. It keeps its view hierarchy, which is set to GONE, so it
+     * is neither measured nor drawn. Resurfacing it only shows the view again, with no inflation.
+     * Uses the most memory, and has the lowest latency. This is the default.
+     */
+    HIDE_SHOW,
+
+    /**
+     * The covered fragment is detached. Its view hierarchy is destroyed, but the fragment
+     * instance and its state are kept. Resurfacing it inflates the view again. Uses less memory,
+     * and has a higher latency.
+     */
+    DETACH_ATTACH
+
+}
@@ -0,0 +1,85 @@
+package com.nothingworksright.fragmentboss;
+
+import java.util.HashMap;
+
+/**
+ * Surfacer builds the transaction that adds one layer to a container, following the
+ * {@link SurfaceMode} of that container.
+ *
+ * The new fragment is added and shown, or attached, and the fragment it covers is hidden, or
+ * detached, in the same transaction. Every operation is included even when it would change
+ * nothing, because popping the layer reverses the transaction, and the reverse must always bring
+ * back the covered fragment.
+ */
+final class Surfacer {
+
+    private static final HashMap<Integer, SurfaceMode> CONTAINER_MODES = new HashMap<>();
+    private static SurfaceMode defaultMode = SurfaceMode.HIDE_SHOW;
+
+    private Surfacer() {
+    }
+
+    /**
+     * Called to set the surface mode of every container without a mode of its own.
+     */
+    static void setDefaultMode(SurfaceMode mode) {
+        synchronized (CONTAINER_MODES) {
+            defaultMode = mode != null ? mode : SurfaceMode.HIDE_SHOW;
+        }
+    }
+
+    /**
+     * Called to set the surface mode of one container. Null goes back to the default mode.
+     */
+    static void setContainerMode(int containerViewId, SurfaceMode mode) {
+        synchronized (CONTAINER_MODES) {
+            if (mode != null) {
+                CONTAINER_MODES.put(containerViewId, mode);
+            } else {
+                CONTAINER_MODES.remove(containerViewId);
+            }
+        }
+    }
+
+    /**
+     * Called to get the surface mode of a container.
+     */
+    static SurfaceMode modeOf(int containerViewId) {
+        synchronized (CONTAINER_MODES) {
+            SurfaceMode mode = CONTAINER_MODES.get(containerViewId);
+            return mode != null ? mode : defaultMode;
+        }
+    }
+
+    /**
+     * Called to add a layer's fragment to a transaction, and put away the fragment it covers.
+     *
+     * @param ft Transaction: The transaction of the layer. The caller adds it to the back stack
+     *           and commits it.
+     * @param containerViewId int: Identifier of the container.
+     * @param fragment F: The fragment of the new layer.
+     * @param tagCombo String: The tagCombo of the new layer.
+     * @param covered F: The fragment on top of the container before this layer, or null.
+     * @param deferView boolean: True to add the fragment detached, so its view is created later.
+     */
+    static <F> void addLayer(BackStackHost.Transaction<F> ft, int containerViewId, F fragment,
+                             String tagCombo, F covered, boolean deferView) {
+        boolean hideShow = modeOf(containerViewId) == SurfaceMode.HIDE_SHOW;
+        ft.add(containerViewId, fragment, tagCombo);
+        if (deferView) {
+            ft.detach(fragment);
+        } else if (hideShow) {
+            ft.show(fragment);
+        } else {
+            ft.attach(fragment);
+        }
+        if (covered != null && covered != fragment) {
+            if (hideShow) {
+                ft.hide(covered);
+            } else {
+                ft.detach(covered);
+            }
+        }
+    }
+
+}
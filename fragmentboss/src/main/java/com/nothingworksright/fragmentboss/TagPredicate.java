@@ -0,0 +1,21 @@
+package com.nothingworksright.fragmentboss;
+
+/**
+ * TagPredicate decides whether a {@link FragmentTag} matches.
+ *
+ * Used by {@link FragmentBoss#removeFragments(android.support.v4.app.FragmentManager,
+ * TagPredicate)} to choose the fragments to remove. java.util.function.Predicate is not available
+ * on every API level this library supports, so this interface takes its place.
+ */
+public interface TagPredicate {
+
+    /**
+     * Called to test a tag.
+     *
+     * @param tag FragmentTag: The parsed tagCombo of a layer in the back stack.
+     *
+     * @return The return value is true if the tag matches.
+     */
+    boolean test(FragmentTag tag);
+
+}
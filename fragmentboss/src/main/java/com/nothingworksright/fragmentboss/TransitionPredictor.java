@@ -0,0 +1,125 @@
+package com.nothingworksright.fragmentboss;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TransitionPredictor learns which tagTitle tends to be shown after which, and predicts the
+ * tagTitles that are likely to be shown next.
+ *
+ * For each tagTitle that was navigated away from, the number of times each tagTitle followed it is
+ * counted. Once a tagTitle has been navigated away from {@link #MAX_ROW_TOTAL} times, its counts
+ * are halved, so that recent navigation weighs more than old navigation. Only the
+ * {@link #MAX_TITLES} most recently navigated tagTitles are remembered.
+ *
+ * This class is not thread safe. FragmentBoss only uses it on the UI thread.
+ */
+final class TransitionPredictor {
+
+    static final int MAX_TITLES = 64;
+    static final int MAX_ROW_TOTAL = 256;
+
+    private static final Comparator<Map.Entry<String, int[]>> MOST_FREQUENT =
+            new Comparator<Map.Entry<String, int[]>>() {
+                @Override
+                public int compare(Map.Entry<String, int[]> left, Map.Entry<String, int[]> right) {
+                    int byCount = right.getValue()[0] - left.getValue()[0];
+                    return byCount != 0 ? byCount : left.getKey().compareTo(right.getKey());
+                }
+            };
+
+    private final LinkedHashMap<String, Row> rows =
+            new LinkedHashMap<String, Row>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Row> eldest) {
+                    return size() > MAX_TITLES;
+                }
+            };
+
+    /**
+     * Called when the tagTitle shown changed.
+     *
+     * @param fromTitle String: The tagTitle that was on top.
+     * @param toTitle String: The tagTitle that is on top now.
+     */
+    void record(String fromTitle, String toTitle) {
+        if (fromTitle == null || toTitle == null) {
+            return;
+        }
+        Row row = rows.get(fromTitle);
+        if (row == null) {
+            row = new Row();
+            rows.put(fromTitle, row);
+        }
+        int[] count = row.counts.get(toTitle);
+        if (count == null) {
+            count = new int[1];
+            row.counts.put(toTitle, count);
+        }
+        count[0]++;
+        row.total++;
+        if (row.total >= MAX_ROW_TOTAL) {
+            row.halve();
+        }
+    }
+
+    /**
+     * Called to predict the tagTitles that are likely to be shown after the given one.
+     *
+     * @param fromTitle String: The tagTitle on top.
+     * @param limit int: The most tagTitles to predict.
+     * @param minPercent int: The share of the navigation away from fromTitle, in percent, that a
+     *                   tagTitle must have had to be predicted.
+     *
+     * @return The return value is a list of the predicted tagTitles, most likely first, which is
+     * empty if nothing is likely enough.
+     */
+    List<String> predict(String fromTitle, int limit, int minPercent) {
+        Row row = fromTitle != null ? rows.get(fromTitle) : null;
+        if (row == null || row.total == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<String, int[]>> entries = new ArrayList<>(row.counts.entrySet());
+        Collections.sort(entries, MOST_FREQUENT);
+        List<String> likely = new ArrayList<>(Math.min(limit, entries.size()));
+        int entriesSize = entries.size();
+        for (int entry = 0; entry < entriesSize && likely.size() < limit; entry++) {
+            Map.Entry<String, int[]> next = entries.get(entry);
+            if (next.getValue()[0] * 100L < (long) minPercent * row.total) {
+                break;
+            }
+            likely.add(next.getKey());
+        }
+        return likely;
+    }
+
+    /**
+     * This class represents the counts of the tagTitles shown after one tagTitle.
+     */
+    private static final class Row {
+
+        final HashMap<String, int[]> counts = new HashMap<>();
+        int total;
+
+        void halve() {
+            total = 0;
+            ArrayList<String> gone = new ArrayList<>();
+            for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                int[] count = entry.getValue();
+                count[0] /= 2;
+                if (count[0] == 0) {
+                    gone.add(entry.getKey());
+                }
+                total += count[0];
+            }
+            counts.keySet().removeAll(gone);
+        }
+
+    }
+
+}
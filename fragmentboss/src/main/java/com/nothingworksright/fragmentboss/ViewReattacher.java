@@ -0,0 +1,108 @@
+package com.nothingworksright.fragmentboss;
+
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+import android.support.v4.app.FragmentTransaction;
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * ViewReattacher attaches a fragment that FragmentBoss detached, to release or defer its view,
+ * again as soon as it becomes the top fragment of its container.
+ *
+ * One reattacher is kept per fragment manager, and registers itself as an
+ * OnBackStackChangedListener. Released fragments are remembered by their tagCombo only. All
+ * methods must be called on the UI thread.
+ */
+final class ViewReattacher implements FragmentManager.OnBackStackChangedListener {
+
+    private static final Map<FragmentManager, ViewReattacher> REATTACHERS = new WeakHashMap<>();
+
+    private final WeakReference<FragmentManager> fmRef;
+    private final HashSet<String> released = new HashSet<>();
+
+    private ViewReattacher(FragmentManager fm) {
+        fmRef = new WeakReference<>(fm);
+    }
+
+    /**
+     * Called to get the reattacher for a fragment manager. The reattacher is created and
+     * registered as an OnBackStackChangedListener the first time it is needed.
+     *
+     * @param fm FragmentManager: The fragment manager interface being used to interact with the
+     *           fragment objects inside of the activity.
+     *
+     * @return The return value is the ViewReattacher of the fragment manager.
+     */
+    static ViewReattacher of(FragmentManager fm) {
+        synchronized (REATTACHERS) {
+            ViewReattacher reattacher = REATTACHERS.get(fm);
+            if (reattacher == null) {
+                // Make sure the host is registered first, so the index is already stale when
+                // this listener reads it.
+                FragmentManagerHost.of(fm);
+                reattacher = new ViewReattacher(fm);
+                fm.addOnBackStackChangedListener(reattacher);
+                REATTACHERS.put(fm, reattacher);
+            }
+            return reattacher;
+        }
+    }
+
+    /**
+     * Called to remember that the fragment with the given tagCombo was detached by FragmentBoss.
+     */
+    void released(String tagCombo) {
+        released.add(tagCombo);
+    }
+
+    /**
+     * Called to forget a released fragment that has been attached again.
+     */
+    void attached(String tagCombo) {
+        released.remove(tagCombo);
+    }
+
+    @Override
+    public void onBackStackChanged() {
+        FragmentManager fm = fmRef.get();
+        if (fm == null || released.isEmpty()) {
+            return;
+        }
+        BackStackIndex<Fragment> index = FragmentManagerHost.indexOf(fm);
+        List<BackStackIndex.Layer> layers = index.layers();
+        HashSet<Integer> containers = new HashSet<>();
+        HashSet<String> present = new HashSet<>();
+        FragmentTransaction ft = null;
+        for (int entry = layers.size() - 1; entry >= 0; entry--) {
+            BackStackIndex.Layer layer = layers.get(entry);
+            if (layer.tag == null) {
+                continue;
+            }
+            present.add(layer.tagCombo);
+            if (!containers.add(layer.tag.getContainerViewId())
+                    || !released.contains(layer.tagCombo)) {
+                continue;
+            }
+            Fragment fragment = index.fragmentOf(layer);
+            if (fragment != null && fragment.isDetached()) {
+                if (ft == null) {
+                    ft = fm.beginTransaction();
+                }
+                ft.attach(fragment);
+            }
+            released.remove(layer.tagCombo);
+        }
+        // Forget the released fragments that have left the back stack.
+        released.retainAll(present);
+        if (ft != null) {
+            // The fragment manager may be running transactions, so this one is queued.
+            ft.commit();
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package com.nothingworksright.fragmentboss;
+
+import android.support.v4.app.Fragment;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class BackStackBatchTest {
+
+    private static final FragmentTag SHELVED = FragmentTag.valueOf("Detail|2|42");
+
+    private static BackStackBatch shelvedBatch(FragmentShelf shelf) {
+        shelf.shelve(SHELVED, Fragment.class, null, null);
+        return new BackStackBatch(null, shelf, Collections.<FragmentTag>emptyList());
+    }
+
+    @Test
+    public void removeThenReplace_usesTheRecordedFragment() throws Exception {
+        FragmentShelf shelf = new FragmentShelf();
+        BackStackBatch batch = shelvedBatch(shelf);
+        Fragment replacement = new Fragment();
+
+        batch.remove("Detail", 42).replace(replacement, "Detail|2|42");
+        BackStackHost.Factory<Fragment> factory = batch.factory();
+
+        assertFalse(shelf.contains(SHELVED));
+        assertSame(replacement, factory.newFragment(SHELVED));
+        assertEquals(Collections.singleton(SHELVED), batch.recordedTags());
+    }
+
+    @Test
+    public void removeThenResurface_leavesTheShelvedFragmentOut() throws Exception {
+        FragmentShelf shelf = new FragmentShelf();
+        BackStackBatch batch = shelvedBatch(shelf);
+
+        batch.remove("Detail", 42).resurface("Detail|2|42");
+
+        assertTrue(batch.getBackStack().isEmpty());
+        batch.factory();
+        assertEquals(0, shelf.size());
+    }
+
+}
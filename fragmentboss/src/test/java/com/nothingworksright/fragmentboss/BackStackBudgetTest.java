@@ -0,0 +1,388 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs random sequences of back stack operations against a {@link SimulatedHost}, and checks each
+ * one against a plain list model of the back stack and against the budget it declares.
+ *
+ * An operation touches the layers above the longest prefix it leaves in place. Its budget of
+ * transactions, executes, re-adds, and views created grows with the number of touched layers and
+ * never with the depth of the back stack. Its budget of allocated bytes grows with the touched
+ * layers too, plus a little per layer for reading the back stack again. The allocation budget is
+ * generous, as the exact numbers depend on the JVM, and is only checked on a JVM that counts the
+ * bytes each thread allocates. Every failure names the seed and the step, so it can be replayed.
+ */
+public class BackStackBudgetTest {
+
+    private static final long[] SEEDS = {1L, 7L, 42L, 1234L, 98765L};
+    private static final int STEPS = 300;
+
+    private static final String[] TITLES = {"Main", "Detail", "Edit"};
+    private static final int[] CONTAINERS = {1, 2, 3};
+    private static final int DB_RECORD_IDS = 4;
+
+    private static final int PUSH = 0;
+    private static final int RESURFACE = 1;
+    private static final int BURY = 2;
+    private static final int REMOVE = 3;
+    private static final int APPLY = 4;
+
+    @After
+    public void tearDown() throws Exception {
+        BackStackRebuilder.setReorderScope(ReorderScope.BACK_STACK);
+    }
+
+    @Test
+    public void randomSequences_batched_stayWithinBudget() throws Exception {
+        for (long seed : SEEDS) {
+            run(seed, RebuildMode.BATCHED, ReorderScope.BACK_STACK, false);
+        }
+    }
+
+    @Test
+    public void randomSequences_incremental_stayWithinBudget() throws Exception {
+        for (long seed : SEEDS) {
+            run(seed, RebuildMode.INCREMENTAL, ReorderScope.BACK_STACK, false);
+        }
+    }
+
+    @Test
+    public void randomSequences_sequential_stayWithinBudget() throws Exception {
+        for (long seed : SEEDS) {
+            run(seed, RebuildMode.SEQUENTIAL, ReorderScope.BACK_STACK, false);
+        }
+    }
+
+    @Test
+    public void randomSequences_containerScope_stayWithinBudget() throws Exception {
+        for (long seed : SEEDS) {
+            run(seed, RebuildMode.BATCHED, ReorderScope.CONTAINER, false);
+            run(seed, RebuildMode.SEQUENTIAL, ReorderScope.CONTAINER, false);
+        }
+    }
+
+    @Test
+    public void randomSequences_stayWithinAllocationBudget() throws Exception {
+        Assume.assumeTrue("The JVM does not count allocated bytes", allocatedBytes() >= 0);
+        // Load and compile everything once, so that the budget only sees the steps.
+        for (RebuildMode mode : RebuildMode.values()) {
+            run(SEEDS[0], mode, ReorderScope.BACK_STACK, false);
+        }
+        for (long seed : SEEDS) {
+            for (RebuildMode mode : RebuildMode.values()) {
+                run(seed, mode, ReorderScope.BACK_STACK, true);
+            }
+            run(seed, RebuildMode.BATCHED, ReorderScope.CONTAINER, true);
+        }
+    }
+
+    private static void run(long seed, RebuildMode mode, ReorderScope scope,
+                            boolean checkAllocation) {
+        BackStackRebuilder.setReorderScope(scope);
+        Random random = new Random(seed);
+        SimulatedHost host = new SimulatedHost();
+        List<FragmentTag> model = new ArrayList<>();
+        Set<String> deferred = new HashSet<>();
+        for (int step = 0; step < STEPS; step++) {
+            Operation operation = Operation.choose(random, model);
+            List<FragmentTag> expected = operation.expected(model, scope);
+            String where = "seed " + seed + ", " + mode + ", " + scope + ", step " + step + ", "
+                    + operation;
+
+            host.resetCounters();
+            long allocatedBefore = checkAllocation ? allocatedBytes() : 0;
+            int transactions = operation.run(host, mode);
+            long allocated = checkAllocation ? allocatedBytes() - allocatedBefore : -1;
+            deferred.addAll(host.deferred());
+
+            assertEquals(where, tagCombos(expected), host.names());
+            assertEquals(where, host.transactions, transactions);
+            Budget.of(mode, model, expected).check(where, host, allocated);
+            checkSurfaces(where, host, expected, deferred);
+            model = expected;
+        }
+    }
+
+    /**
+     * Called to check that the top layer of each container is visible, or deferred until it
+     * surfaces, and that every covered layer is out of sight.
+     */
+    private static void checkSurfaces(String where, SimulatedHost host,
+                                      List<FragmentTag> backStack, Set<String> deferred) {
+        Set<Integer> containers = new HashSet<>();
+        for (int entry = backStack.size() - 1; entry >= 0; entry--) {
+            String tagCombo = backStack.get(entry).getTagCombo();
+            SimulatedHost.SimFragment fragment = host.findFragmentByTag(tagCombo);
+            assertNotNull(where + ", " + tagCombo, fragment);
+            if (containers.add(fragment.containerViewId)) {
+                assertFalse(where + ", top " + tagCombo, fragment.hidden);
+                assertTrue(where + ", top " + tagCombo,
+                        fragment.hasView || deferred.contains(tagCombo));
+            } else {
+                assertTrue(where + ", covered " + tagCombo, fragment.hidden || !fragment.hasView);
+            }
+        }
+    }
+
+    private static List<String> tagCombos(List<FragmentTag> tags) {
+        List<String> tagCombos = new ArrayList<>(tags.size());
+        for (FragmentTag tag : tags) {
+            tagCombos.add(tag.getTagCombo());
+        }
+        return tagCombos;
+    }
+
+    /**
+     * Called to get the number of bytes allocated by this thread so far, or -1 when the JVM does
+     * not count them.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()
+                    && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * This class holds the most one operation may cost.
+     */
+    private static final class Budget {
+
+        private static final long ALLOCATED_BYTES = 16 * 1024;
+        private static final long ALLOCATED_BYTES_PER_TOUCHED_LAYER = 4 * 1024;
+        // Reading the back stack again costs a little per layer, wherever the change is.
+        private static final long ALLOCATED_BYTES_PER_LAYER = 256;
+
+        final boolean unchanged;
+        int beginTransactions;
+        int executes;
+        int readds;
+        int viewsCreated;
+        long allocatedBytes;
+
+        private Budget(boolean unchanged) {
+            this.unchanged = unchanged;
+        }
+
+        /**
+         * Called to declare the budget of an operation, from the back stack before and after.
+         */
+        static Budget of(RebuildMode mode, List<FragmentTag> before, List<FragmentTag> after) {
+            int prefix = 0;
+            while (prefix < before.size() && prefix < after.size()
+                    && before.get(prefix).equals(after.get(prefix))) {
+                prefix++;
+            }
+            Budget budget = new Budget(before.equals(after));
+            int touched = after.size() - prefix;
+            // One transaction per layer added back, and one to attach or remove what is left.
+            budget.beginTransactions = touched + 1;
+            budget.allocatedBytes = ALLOCATED_BYTES + ALLOCATED_BYTES_PER_TOUCHED_LAYER * touched
+                    + ALLOCATED_BYTES_PER_LAYER * Math.max(before.size(), after.size());
+            if (mode == RebuildMode.SEQUENTIAL) {
+                // Pop, then add back, and every layer added back is torn down first.
+                budget.executes = 2;
+                budget.readds = touched;
+                budget.viewsCreated = touched;
+            } else {
+                // One pass, nothing torn down, and at most one new view per container.
+                budget.executes = 1;
+                budget.readds = 0;
+                budget.viewsCreated = CONTAINERS.length;
+            }
+            return budget;
+        }
+
+        /**
+         * @param allocated long: The bytes the operation allocated, or -1 to leave them out.
+         */
+        void check(String where, SimulatedHost host, long allocated) {
+            if (unchanged) {
+                assertEquals(where, 0, host.transactions);
+                assertEquals(where, 0, host.beginTransactions);
+                assertEquals(where, 0, host.executes);
+                return;
+            }
+            assertBudget(where + ", beginTransaction", beginTransactions, host.beginTransactions);
+            assertBudget(where + ", executePendingTransactions", executes, host.executes);
+            assertBudget(where + ", re-adds", readds, host.readds);
+            assertBudget(where + ", views created", viewsCreated, host.viewsCreated);
+            if (allocated >= 0) {
+                assertBudget(where + ", allocated bytes", allocatedBytes, allocated);
+            }
+        }
+
+        private static void assertBudget(String what, long budget, long actual) {
+            assertTrue(what + ": " + actual + " over the budget of " + budget, actual <= budget);
+        }
+
+    }
+
+    /**
+     * This class represents one random operation, and what it does to the model.
+     */
+    private static final class Operation {
+
+        final int kind;
+        final FragmentTag tag;
+        final List<FragmentTag> desired;
+
+        private Operation(int kind, FragmentTag tag, List<FragmentTag> desired) {
+            this.kind = kind;
+            this.tag = tag;
+            this.desired = desired;
+        }
+
+        static Operation choose(Random random, List<FragmentTag> model) {
+            FragmentTag unused = unusedTag(random, model);
+            int kind = model.isEmpty() ? PUSH : random.nextInt(5);
+            if (kind == PUSH && unused == null) {
+                kind = RESURFACE;
+            }
+            switch (kind) {
+                case PUSH:
+                    return new Operation(PUSH, unused, null);
+                case RESURFACE:
+                case BURY:
+                    return new Operation(kind, model.get(random.nextInt(model.size())), null);
+                case REMOVE:
+                    // Any title and dbRecordId, which may match no layer, one, or several.
+                    return new Operation(REMOVE, FragmentTag.of(
+                            TITLES[random.nextInt(TITLES.length)], CONTAINERS[0],
+                            random.nextInt(DB_RECORD_IDS)), null);
+                default:
+                    // Some of the layers in a new order, and sometimes a new one.
+                    List<FragmentTag> desired = new ArrayList<>(model);
+                    Collections.shuffle(desired, random);
+                    desired = new ArrayList<>(desired.subList(0, random.nextInt(model.size() + 1)));
+                    if (unused != null && random.nextBoolean()) {
+                        desired.add(random.nextInt(desired.size() + 1), unused);
+                    }
+                    return new Operation(APPLY, null, desired);
+            }
+        }
+
+        private static FragmentTag unusedTag(Random random, List<FragmentTag> model) {
+            List<FragmentTag> unused = new ArrayList<>();
+            for (String tagTitle : TITLES) {
+                for (int containerViewId : CONTAINERS) {
+                    for (int dbRecordId = 0; dbRecordId < DB_RECORD_IDS; dbRecordId++) {
+                        FragmentTag tag = FragmentTag.of(tagTitle, containerViewId, dbRecordId);
+                        if (!model.contains(tag)) {
+                            unused.add(tag);
+                        }
+                    }
+                }
+            }
+            return unused.isEmpty() ? null : unused.get(random.nextInt(unused.size()));
+        }
+
+        int run(SimulatedHost host, RebuildMode mode) {
+            switch (kind) {
+                case PUSH:
+                    return BackStackRebuilder.push(host, tag, new SimulatedHost.SimFragment(),
+                            mode);
+                case RESURFACE:
+                    return BackStackRebuilder.resurface(host, tag.getTagCombo(), mode);
+                case BURY:
+                    return BackStackRebuilder.bury(host, tag.getTagCombo(), mode);
+                case REMOVE:
+                    return BackStackRebuilder.remove(host, tag.getTagTitle(),
+                            tag.getDbRecordId(), mode);
+                default:
+                    return BackStackRebuilder.apply(host, desired,
+                            new BackStackHost.Factory<SimulatedHost.SimFragment>() {
+                                @Override
+                                public SimulatedHost.SimFragment newFragment(FragmentTag tag) {
+                                    return new SimulatedHost.SimFragment();
+                                }
+                            }, mode);
+            }
+        }
+
+        List<FragmentTag> expected(List<FragmentTag> model, ReorderScope scope) {
+            List<FragmentTag> expected = new ArrayList<>(model);
+            switch (kind) {
+                case PUSH:
+                    expected.add(tag);
+                    return expected;
+                case RESURFACE:
+                case BURY:
+                    if (scope == ReorderScope.CONTAINER) {
+                        return reorderedInContainer(model);
+                    }
+                    expected.remove(tag);
+                    expected.add(kind == RESURFACE ? expected.size() : 0, tag);
+                    return expected;
+                case REMOVE:
+                    for (int entry = expected.size() - 1; entry >= 0; entry--) {
+                        if (expected.get(entry).matches(tag.getTagTitle(), tag.getDbRecordId())) {
+                            expected.remove(entry);
+                        }
+                    }
+                    return expected;
+                default:
+                    return new ArrayList<>(desired);
+            }
+        }
+
+        /**
+         * Called to move the tag to the last or first position its container holds, leaving the
+         * layers of other containers in place.
+         */
+        private List<FragmentTag> reorderedInContainer(List<FragmentTag> model) {
+            List<Integer> slots = new ArrayList<>();
+            List<FragmentTag> order = new ArrayList<>();
+            for (int entry = 0; entry < model.size(); entry++) {
+                if (model.get(entry).getContainerViewId() == tag.getContainerViewId()) {
+                    slots.add(entry);
+                    order.add(model.get(entry));
+                }
+            }
+            order.remove(tag);
+            order.add(kind == RESURFACE ? order.size() : 0, tag);
+            List<FragmentTag> expected = new ArrayList<>(model);
+            for (int slot = 0; slot < slots.size(); slot++) {
+                expected.set(slots.get(slot), order.get(slot));
+            }
+            return expected;
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case PUSH:
+                    return "push " + tag.getTagCombo();
+                case RESURFACE:
+                    return "resurface " + tag.getTagCombo();
+                case BURY:
+                    return "bury " + tag.getTagCombo();
+                case REMOVE:
+                    return "remove " + tag.getTagTitle() + " " + tag.getDbRecordId();
+                default:
+                    return "apply " + desired;
+            }
+        }
+
+    }
+
+}
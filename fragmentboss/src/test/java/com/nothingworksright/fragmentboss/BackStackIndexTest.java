@@ -0,0 +1,69 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BackStackIndexTest {
+
+    @Test
+    public void snapshot_isMadeOncePerChangeAndNeverChanges() throws Exception {
+        SimulatedHost host = new SimulatedHost();
+        SimulatedHost.SimFragment detail = new SimulatedHost.SimFragment();
+        BackStackRebuilder.push(host, FragmentTag.valueOf("Main|1|-1"),
+                new SimulatedHost.SimFragment(), RebuildMode.BATCHED);
+        BackStackRebuilder.push(host, FragmentTag.valueOf("Detail|2|42"), detail,
+                RebuildMode.BATCHED);
+
+        BackStackIndex.Snapshot<SimulatedHost.SimFragment> before = host.index().snapshot();
+        assertSame(before, host.index().snapshot());
+
+        BackStackRebuilder.resurface(host, "Main|1|-1", RebuildMode.BATCHED);
+        BackStackIndex.Snapshot<SimulatedHost.SimFragment> after = host.index().snapshot();
+
+        assertNotSame(before, after);
+        assertEquals(Arrays.asList(FragmentTag.valueOf("Main|1|-1"),
+                FragmentTag.valueOf("Detail|2|42")), before.tags());
+        assertEquals("Detail|2|42", before.top().getTagCombo());
+        assertEquals("Main|1|-1", after.top().getTagCombo());
+        assertSame(detail, before.findByTagTitleAndDbId("Detail", 42));
+        assertSame(detail, after.findByTagTitleAndDbId("Detail", 42));
+        assertNull(after.findByTagTitleAndDbId("Detail", 7));
+        assertEquals(Arrays.asList(detail), after.inContainer(2));
+        assertTrue(after.inContainer(3).isEmpty());
+    }
+
+    @Test
+    public void foreignEntry_isKeptWithoutTagAndLeftOutOfRebuilds() throws Exception {
+        SimulatedHost host = new SimulatedHost();
+        SimulatedHost.SimFragment detail = new SimulatedHost.SimFragment();
+        BackStackRebuilder.push(host, FragmentTag.valueOf("Main|1|-1"),
+                new SimulatedHost.SimFragment(), RebuildMode.BATCHED);
+        // An entry added by the app itself, with a name that is not a tagCombo.
+        BackStackHost.Transaction<SimulatedHost.SimFragment> ft = host.beginTransaction();
+        ft.add(1, new SimulatedHost.SimFragment(), "Settings");
+        ft.addToBackStack("Settings");
+        ft.commit();
+        host.executePendingTransactions();
+        BackStackRebuilder.push(host, FragmentTag.valueOf("Detail|2|42"), detail,
+                RebuildMode.BATCHED);
+
+        BackStackIndex<SimulatedHost.SimFragment> index = host.index();
+        assertEquals(3, index.size());
+        assertNull(index.layers().get(1).tag);
+        assertNull(index.findByTagCombo("Settings"));
+        assertEquals(Arrays.asList(FragmentTag.valueOf("Main|1|-1"),
+                FragmentTag.valueOf("Detail|2|42")), index.tags());
+        assertEquals(1, index.inContainer(1).size());
+        assertSame(detail, index.snapshot().findByTagTitleAndDbId("Detail", 42));
+
+        BackStackRebuilder.resurface(host, "Main|1|-1", RebuildMode.BATCHED);
+
+        assertEquals(Arrays.asList("Detail|2|42", "Main|1|-1"), host.names());
+        assertEquals(Arrays.asList(FragmentTag.valueOf("Detail|2|42"),
+                FragmentTag.valueOf("Main|1|-1")), index.tags());
+    }
+
+}
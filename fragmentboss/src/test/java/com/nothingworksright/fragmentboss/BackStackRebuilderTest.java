@@ -0,0 +1,138 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BackStackRebuilderTest {
+
+    private static final int MAIN = 1;
+    private static final int DETAIL = 2;
+
+    private SimulatedHost host;
+
+    @Before
+    public void setUp() throws Exception {
+        host = new SimulatedHost();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BackStackRebuilder.setReorderScope(ReorderScope.BACK_STACK);
+    }
+
+    private void push(String... tagCombos) {
+        for (String tagCombo : tagCombos) {
+            BackStackRebuilder.push(host, FragmentTag.valueOf(tagCombo),
+                    new SimulatedHost.SimFragment(), RebuildMode.BATCHED);
+        }
+        host.resetCounters();
+    }
+
+    @Test
+    public void resurface_batched_keepsEveryFragmentAndView() throws Exception {
+        push("A|1|-1", "B|1|-1", "C|1|-1", "D|1|-1");
+
+        int transactions = BackStackRebuilder.resurface(host, "A|1|-1", RebuildMode.BATCHED);
+
+        assertEquals(Arrays.asList("B|1|-1", "C|1|-1", "D|1|-1", "A|1|-1"), host.names());
+        assertEquals(5, transactions);
+        assertEquals(0, host.adds);
+        assertEquals(0, host.removes);
+        assertEquals(0, host.viewsCreated);
+        assertFalse(host.findFragmentByTag("A|1|-1").hidden);
+        assertTrue(host.findFragmentByTag("D|1|-1").hidden);
+    }
+
+    @Test
+    public void resurface_sequential_recreatesEveryMovedFragment() throws Exception {
+        push("A|1|-1", "B|1|-1", "C|1|-1", "D|1|-1");
+
+        BackStackRebuilder.resurface(host, "B|1|-1", RebuildMode.SEQUENTIAL);
+
+        assertEquals(Arrays.asList("A|1|-1", "C|1|-1", "D|1|-1", "B|1|-1"), host.names());
+        assertEquals(3, host.removes);
+        assertEquals(3, host.adds);
+        assertEquals(3, host.viewsCreated);
+    }
+
+    @Test
+    public void apply_createsOnlyTheTopViewAndDefersTheRest() throws Exception {
+        List<FragmentTag> desired = new ArrayList<>();
+        for (String tagCombo : new String[] {"A|1|-1", "B|1|-1", "C|1|-1", "D|2|-1"}) {
+            desired.add(FragmentTag.valueOf(tagCombo));
+        }
+        BackStackHost.Factory<SimulatedHost.SimFragment> factory;
+        factory = new BackStackHost.Factory<SimulatedHost.SimFragment>() {
+            @Override
+            public SimulatedHost.SimFragment newFragment(FragmentTag tag) {
+                return new SimulatedHost.SimFragment();
+            }
+        };
+
+        BackStackRebuilder.apply(host, desired, factory, RebuildMode.BATCHED);
+
+        assertEquals(4, host.getBackStackEntryCount());
+        assertEquals(4, host.adds);
+        assertEquals(2, host.viewsCreated);
+        assertEquals(Arrays.asList("A|1|-1", "B|1|-1"), host.deferred());
+        assertTrue(host.findFragmentByTag("C|1|-1").hasView);
+        assertTrue(host.findFragmentByTag("D|2|-1").hasView);
+    }
+
+    @Test
+    public void apply_freshTag_replacesTheFragmentInTheBackStack() throws Exception {
+        push("A|1|-1", "X|2|-1");
+        SimulatedHost.SimFragment old = host.findFragmentByTag("X|2|-1");
+        final SimulatedHost.SimFragment replacement = new SimulatedHost.SimFragment();
+        BackStackHost.Factory<SimulatedHost.SimFragment> factory;
+        factory = new BackStackHost.Factory<SimulatedHost.SimFragment>() {
+            @Override
+            public SimulatedHost.SimFragment newFragment(FragmentTag tag) {
+                return replacement;
+            }
+        };
+        List<FragmentTag> desired = Arrays.asList(FragmentTag.valueOf("A|1|-1"),
+                FragmentTag.valueOf("X|2|-1"));
+
+        assertEquals(0, BackStackRebuilder.apply(host, desired, factory, RebuildMode.BATCHED));
+        BackStackRebuilder.apply(host, desired, factory,
+                Collections.singleton(FragmentTag.valueOf("X|2|-1")), RebuildMode.BATCHED);
+
+        assertEquals(Arrays.asList("A|1|-1", "X|2|-1"), host.names());
+        assertSame(replacement, host.findFragmentByTag("X|2|-1"));
+        assertFalse(old.added);
+    }
+
+    @Test
+    public void bury_containerScope_leavesOtherContainersInPlace() throws Exception {
+        push("A|1|-1", "X|2|-1", "B|1|-1", "Y|2|-1", "C|1|-1");
+        BackStackRebuilder.setReorderScope(ReorderScope.CONTAINER);
+
+        BackStackRebuilder.bury(host, "C|1|-1", RebuildMode.BATCHED);
+
+        assertEquals(Arrays.asList("C|1|-1", "X|2|-1", "A|1|-1", "Y|2|-1", "B|1|-1"),
+                host.names());
+        assertEquals(0, host.viewsCreated);
+    }
+
+    @Test
+    public void remove_popsFromTheLowestMatchAndKeepsTheRest() throws Exception {
+        push("A|1|-1", "B|1|7", "C|1|-1", "B|2|7", "D|1|-1");
+
+        int transactions = BackStackRebuilder.remove(host, "B", 7, RebuildMode.BATCHED);
+
+        assertEquals(Arrays.asList("A|1|-1", "C|1|-1", "D|1|-1"), host.names());
+        assertEquals(3, transactions);
+        assertEquals(2, host.removes);
+        assertEquals(0, host.adds);
+    }
+
+}
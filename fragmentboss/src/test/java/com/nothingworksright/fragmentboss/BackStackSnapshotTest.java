@@ -0,0 +1,80 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BackStackSnapshotTest {
+
+    private static final String CLASS_NAME = "com.example.DetailFragment";
+
+    @Test
+    public void encode_decode_keepsEveryLayerInOrder() throws Exception {
+        List<BackStackSnapshot.Entry> entries = Arrays.asList(
+                new BackStackSnapshot.Entry(FragmentTag.of("Main", 2131492944, -1),
+                        "com.example.MainFragment", null, null),
+                new BackStackSnapshot.Entry(FragmentTag.of("Detail|Pane", 2131492945, 42),
+                        CLASS_NAME, new byte[] {1, 2, 3}, new byte[0]),
+                new BackStackSnapshot.Entry(FragmentTag.of("Detail|Pane", 2131492945,
+                        Long.MIN_VALUE), CLASS_NAME, null, new byte[] {9}));
+
+        BackStackSnapshot decoded;
+        decoded = BackStackSnapshot.decode(new BackStackSnapshot(77L, entries).encode());
+
+        assertEquals(77L, decoded.stamp);
+        assertEquals(3, decoded.entries.size());
+        for (int entry = 0; entry < 3; entry++) {
+            BackStackSnapshot.Entry expected = entries.get(entry);
+            BackStackSnapshot.Entry actual = decoded.entries.get(entry);
+            assertEquals(expected.tag, actual.tag);
+            assertSame(actual.tag.getTagTitle(), actual.tag.intern().getTagTitle());
+            assertEquals(expected.className, actual.className);
+            assertArrayEquals(expected.arguments, actual.arguments);
+            assertArrayEquals(expected.savedState, actual.savedState);
+        }
+        assertNull(decoded.entries.get(0).arguments);
+        assertEquals(0, decoded.entries.get(1).savedState.length);
+    }
+
+    @Test
+    public void encode_writesEachTitleClassNameAndContainerOnce() throws Exception {
+        List<BackStackSnapshot.Entry> entries = new ArrayList<>();
+        for (int dbRecordId = 0; dbRecordId < 100; dbRecordId++) {
+            entries.add(new BackStackSnapshot.Entry(FragmentTag.of("Detail", 2131492945,
+                    dbRecordId), CLASS_NAME, null, null));
+        }
+
+        byte[] data = new BackStackSnapshot(0L, entries).encode();
+
+        // A header, two strings, one container, and at most 7 bytes per layer without state.
+        assertTrue(data.length < 64 + 7 * 100);
+    }
+
+    @Test
+    public void decode_rejectsDataThatIsNotASnapshotOrIsCutShort() throws Exception {
+        List<BackStackSnapshot.Entry> entries = Arrays.asList(new BackStackSnapshot.Entry(
+                FragmentTag.of("Main", 1, -1), CLASS_NAME, new byte[] {1, 2, 3}, null));
+        byte[] data = new BackStackSnapshot(0L, entries).encode();
+
+        assertDecodeFails(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        assertDecodeFails(Arrays.copyOf(data, data.length - 2));
+        byte[] otherFormat = data.clone();
+        otherFormat[4] = 99;
+        assertDecodeFails(otherFormat);
+    }
+
+    private static void assertDecodeFails(byte[] data) {
+        try {
+            BackStackSnapshot.decode(data);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class FragmentShelfTest {
+
+    @Test
+    public void coveredPast_keepsTheTopLayersOfEachContainer() throws Exception {
+        SimulatedHost host = new SimulatedHost();
+        String[] tagCombos = {"A|1|-1", "B|2|-1", "C|1|-1", "D|1|-1", "E|2|-1", "F|1|-1"};
+        for (String tagCombo : tagCombos) {
+            BackStackRebuilder.push(host, FragmentTag.valueOf(tagCombo),
+                    new SimulatedHost.SimFragment(), RebuildMode.BATCHED);
+        }
+
+        Set<String> covered = new HashSet<>();
+        for (BackStackIndex.Layer layer : FragmentShelf.coveredPast(host.index(), 2)) {
+            covered.add(layer.tag.getTagCombo());
+        }
+
+        // Container 1 keeps F and D, and container 2 keeps both of its layers.
+        assertEquals(new HashSet<>(Arrays.asList("A|1|-1", "C|1|-1")), covered);
+        assertTrue(FragmentShelf.coveredPast(host.index(), 3).contains(
+                host.index().findByTagCombo("A|1|-1")));
+        assertTrue(FragmentShelf.coveredPast(host.index(), 4).isEmpty());
+    }
+
+    @Test
+    public void pastLimits_globalLimit_keepsTheTopLayerOfEachContainer() throws Exception {
+        SimulatedHost host = new SimulatedHost();
+        // The master pane holds only its lowest layer, under a long detail history.
+        BackStackRebuilder.push(host, FragmentTag.valueOf("Master|1|-1"),
+                new SimulatedHost.SimFragment(), RebuildMode.BATCHED);
+        for (int detail = 0; detail < 8; detail++) {
+            BackStackRebuilder.push(host, FragmentTag.valueOf("Detail|2|" + detail),
+                    new SimulatedHost.SimFragment(), RebuildMode.BATCHED);
+        }
+
+        Set<String> evicted = new HashSet<>();
+        for (BackStackIndex.Layer layer : FragmentShelf.pastLimits(host.index(), 8, null)) {
+            evicted.add(layer.tag.getTagCombo());
+        }
+
+        // Trimmed to six layers: the master stays, and the three lowest details are shelved.
+        assertEquals(new HashSet<>(Arrays.asList("Detail|2|0", "Detail|2|1", "Detail|2|2")),
+                evicted);
+        assertNull(FragmentShelf.pastLimits(host.index(), 9, null));
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FragmentTagTest {
+
+    @Test
+    public void parse_readsEveryField() throws Exception {
+        FragmentTag tag = FragmentTag.parse("Detail|2131492944|42");
+        assertEquals("Detail", tag.getTagTitle());
+        assertEquals(2131492944, tag.getContainerViewId());
+        assertEquals(42L, tag.getDbRecordId());
+        assertEquals("Detail|2131492944|42", tag.getTagCombo());
+    }
+
+    @Test
+    public void parse_allowsPipesAndNegativesInTheRightPlaces() throws Exception {
+        FragmentTag tag = FragmentTag.parse("A|B|-7|" + Long.MIN_VALUE);
+        assertEquals("A|B", tag.getTagTitle());
+        assertEquals(-7, tag.getContainerViewId());
+        assertEquals(Long.MIN_VALUE, tag.getDbRecordId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_rejectsMissingFields() throws Exception {
+        FragmentTag.parse("Detail|42");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_rejectsContainerOverflow() throws Exception {
+        FragmentTag.parse("Detail|4294967296|1");
+    }
+
+    @Test
+    public void of_matchesTagJoiner() throws Exception {
+        FragmentTag tag = FragmentTag.of("Main", 7, -1);
+        assertEquals(FragmentBoss.tagJoiner("Main", 7, -1), tag.getTagCombo());
+        assertEquals(tag, FragmentTag.parse(tag.getTagCombo()));
+        assertEquals(tag.hashCode(), FragmentTag.parse(tag.getTagCombo()).hashCode());
+    }
+
+    @Test
+    public void intern_sharesTheTagTitleOnly() throws Exception {
+        FragmentTag first = FragmentTag.parse("Interned|3|9").intern();
+        FragmentTag second = FragmentTag.of(new String("Interned"), 3, 9).intern();
+        assertEquals(first, second);
+        assertSame(first.getTagTitle(), second.getTagTitle());
+        assertSame(first.getTagTitle(), FragmentTag.valueOf("Interned|4|9").getTagTitle());
+        assertSame(second, second.intern());
+    }
+
+    @Test
+    public void intern_remembersOnlyTheMostRecentTagTitles() throws Exception {
+        FragmentTag oldest = FragmentTag.of("Oldest", 1, 1).intern();
+        for (int title = 0; title < FragmentTag.MAX_INTERNED_TAG_TITLES; title++) {
+            FragmentTag.of("Title" + title, 1, 1).intern();
+        }
+        assertNotSame(oldest.getTagTitle(),
+                FragmentTag.of(new String("Oldest"), 1, 1).intern().getTagTitle());
+    }
+
+    @Test
+    public void tagSplitter_splitsOnEveryPipe() throws Exception {
+        assertArrayEquals(new String[]{"Main", "7", "-1"}, FragmentBoss.tagSplitter("Main|7|-1"));
+        assertArrayEquals(new String[]{"", ""}, FragmentBoss.tagSplitter("|"));
+        assertEquals(0, FragmentBoss.tagSplitter(null).length);
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MainThreadDispatcherTest {
+
+    private static MainThreadDispatcher.Operation move(int kind, String tagCombo,
+                                                       RebuildMode mode) {
+        return new MainThreadDispatcher.Operation(kind, null, tagCombo, mode) {
+            @Override
+            int execute() {
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public void coalesce_supersedesMovesWithTheSameMode() throws Exception {
+        List<MainThreadDispatcher.Operation> pending = new ArrayList<>();
+        MainThreadDispatcher.Operation first;
+        first = move(MainThreadDispatcher.Operation.RESURFACE, "Main|1|-1", RebuildMode.BATCHED);
+        pending.add(first);
+        MainThreadDispatcher.Operation second;
+        second = move(MainThreadDispatcher.Operation.BURY, "Main|1|-1", RebuildMode.BATCHED);
+
+        MainThreadDispatcher.coalesce(pending, second);
+
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    public void coalesce_keepsMovesWithAnotherMode() throws Exception {
+        List<MainThreadDispatcher.Operation> pending = new ArrayList<>();
+        MainThreadDispatcher.Operation sequential;
+        sequential = move(MainThreadDispatcher.Operation.RESURFACE, "Main|1|-1",
+                RebuildMode.SEQUENTIAL);
+        pending.add(sequential);
+        MainThreadDispatcher.Operation byDefault;
+        byDefault = move(MainThreadDispatcher.Operation.RESURFACE, "Detail|2|7", null);
+        pending.add(byDefault);
+
+        MainThreadDispatcher.coalesce(pending, move(MainThreadDispatcher.Operation.RESURFACE,
+                "Main|1|-1", RebuildMode.BATCHED));
+        MainThreadDispatcher.coalesce(pending, move(MainThreadDispatcher.Operation.SET_BACK_STACK,
+                null, RebuildMode.INCREMENTAL));
+
+        assertEquals(Arrays.asList(sequential, byDefault), pending);
+    }
+
+    @Test
+    public void coalesce_keepsMovesBeforeARestoreOfTheSavedState() throws Exception {
+        List<MainThreadDispatcher.Operation> pending = new ArrayList<>();
+        MainThreadDispatcher.Operation byDefault;
+        byDefault = move(MainThreadDispatcher.Operation.RESURFACE, "Main|1|-1", null);
+        pending.add(byDefault);
+        MainThreadDispatcher.Operation restore;
+        restore = move(MainThreadDispatcher.Operation.RESTORE_STATE, null, null);
+
+        MainThreadDispatcher.coalesce(pending, restore);
+        pending.add(restore);
+        MainThreadDispatcher.coalesce(pending, move(MainThreadDispatcher.Operation.BURY,
+                "Main|1|-1", null));
+
+        assertEquals(Arrays.asList(byDefault, restore), pending);
+    }
+
+    @Test
+    public void run_completesTheHandleWhenTheOperationThrows() throws Exception {
+        final IllegalStateException thrown = new IllegalStateException("Can not perform this");
+        MainThreadDispatcher.Operation failing = new MainThreadDispatcher.Operation(
+                MainThreadDispatcher.Operation.RESURFACE, null, "Main|1|-1") {
+            @Override
+            int execute() {
+                throw thrown;
+            }
+        };
+
+        try {
+            failing.run();
+            fail("The operation should have thrown");
+        } catch (IllegalStateException e) {
+            assertSame(thrown, e);
+        }
+
+        assertTrue(failing.handle.isDone());
+        assertSame(thrown, failing.handle.getFailure());
+        assertTrue(failing.handle.await(1, TimeUnit.MILLISECONDS));
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    private final List<String> sections = new ArrayList<>();
+
+    private final MetricsRegistry.Tracer tracer = new MetricsRegistry.Tracer() {
+        @Override
+        public void beginSection(String sectionName) {
+            sections.add(sectionName);
+        }
+
+        @Override
+        public void endSection() {
+            sections.add("end");
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        MetricsRegistry.reset();
+        MetricsRegistry.setEnabled(true, tracer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MetricsRegistry.setEnabled(false, null);
+        MetricsRegistry.reset();
+    }
+
+    @Test
+    public void histogram_bucketsDoubleAndPercentilesStayWithinTheMaximum() throws Exception {
+        assertEquals(0, FragmentBossMetrics.Histogram.bucketOf(0));
+        assertEquals(0, FragmentBossMetrics.Histogram.bucketOf(1023));
+        assertEquals(1, FragmentBossMetrics.Histogram.bucketOf(1024));
+        assertEquals(11, FragmentBossMetrics.Histogram.bucketOf(1500000));
+        assertEquals(31, FragmentBossMetrics.Histogram.bucketOf(Long.MAX_VALUE));
+
+        for (int run = 0; run < 99; run++) {
+            MetricsRegistry.ran(FragmentBossMetrics.Operation.RESURFACE, 1500, 2, 4);
+        }
+        MetricsRegistry.ran(FragmentBossMetrics.Operation.RESURFACE, 3000000, 2, 9);
+        FragmentBossMetrics.Histogram latency;
+        latency = MetricsRegistry.snapshot().getLatency(FragmentBossMetrics.Operation.RESURFACE);
+
+        assertEquals(100, latency.getCount());
+        assertEquals(99, latency.getCountInBucket(1));
+        assertEquals(2048, latency.getPercentileNanos(50));
+        assertEquals(2048, latency.getPercentileNanos(99));
+        assertEquals(3000000, latency.getPercentileNanos(100));
+        assertEquals(3000000, latency.getMaxNanos());
+        assertEquals((99 * 1500 + 3000000) / 100, latency.getMeanNanos());
+    }
+
+    @Test
+    public void ran_countsTransactionsTracksDepthAndCallsListeners() throws Exception {
+        final List<String> heard = new ArrayList<>();
+        FragmentBossMetrics.Listener listener = new FragmentBossMetrics.Listener() {
+            @Override
+            public void onOperation(FragmentBossMetrics.Operation operation, long durationNanos,
+                                    int transactions, int backStackDepth) {
+                heard.add(operation + " " + transactions + " " + backStackDepth);
+            }
+        };
+        MetricsRegistry.addListener(listener);
+        try {
+            MetricsRegistry.ran(FragmentBossMetrics.Operation.REPLACE, 10, 1, 6);
+            MetricsRegistry.ran(FragmentBossMetrics.Operation.REMOVE, 10, 3, 2);
+            MetricsRegistry.found(MetricsRegistry.start(), null);
+        } finally {
+            MetricsRegistry.removeListener(listener);
+        }
+
+        FragmentBossMetrics metrics = MetricsRegistry.snapshot();
+        assertEquals(4, metrics.getTransactionsCommitted());
+        assertEquals(2, metrics.getBackStackDepth());
+        assertEquals(6, metrics.getMaxBackStackDepth());
+        assertEquals(1, metrics.getLatency(FragmentBossMetrics.Operation.FIND).getCount());
+        assertEquals(Arrays.asList("REPLACE 1 6", "REMOVE 3 2", "FIND 0 2"), heard);
+    }
+
+    @Test
+    public void found_offTheUiThread_handsTheListenersToTheUiThread() throws Exception {
+        final List<String> heard = new ArrayList<>();
+        FragmentBossMetrics.Listener listener = new FragmentBossMetrics.Listener() {
+            @Override
+            public void onOperation(FragmentBossMetrics.Operation operation, long durationNanos,
+                                    int transactions, int backStackDepth) {
+                heard.add(operation.toString());
+            }
+        };
+        final List<Runnable> posted = new ArrayList<>();
+        Executor uiThread = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                posted.add(runnable);
+            }
+        };
+        MetricsRegistry.addListener(listener);
+        try {
+            MetricsRegistry.found(MetricsRegistry.start(), uiThread);
+
+            assertTrue(heard.isEmpty());
+            assertEquals(1, posted.size());
+            posted.get(0).run();
+        } finally {
+            MetricsRegistry.removeListener(listener);
+        }
+
+        assertEquals(Arrays.asList("FIND"), heard);
+        assertEquals(1, MetricsRegistry.snapshot().getLatency(
+                FragmentBossMetrics.Operation.FIND).getCount());
+    }
+
+    @Test
+    public void disabled_recordsAndTracesNothing() throws Exception {
+        MetricsRegistry.setEnabled(false, tracer);
+
+        MetricsRegistry.ran(FragmentBossMetrics.Operation.POP, 10, 1, 1);
+        MetricsRegistry.readded(3);
+        MetricsRegistry.endSection(MetricsRegistry.beginSection(MetricsRegistry.SECTION_CLEAR));
+
+        FragmentBossMetrics metrics = MetricsRegistry.snapshot();
+        assertEquals(0, MetricsRegistry.start());
+        assertEquals(0, metrics.getLatency(FragmentBossMetrics.Operation.POP).getCount());
+        assertEquals(0, metrics.getTransactionsCommitted());
+        assertEquals(0, metrics.getFragmentsReadded());
+        assertTrue(sections.isEmpty());
+    }
+
+    @Test
+    public void sequentialRebuild_countsReaddsAndTracesEachPhase() throws Exception {
+        SimulatedHost host = new SimulatedHost();
+        for (String tagCombo : new String[] {"A|1|-1", "B|1|-1", "C|1|-1", "D|1|-1"}) {
+            BackStackRebuilder.push(host, FragmentTag.valueOf(tagCombo),
+                    new SimulatedHost.SimFragment(), RebuildMode.BATCHED);
+        }
+        sections.clear();
+
+        BackStackRebuilder.resurface(host, "B|1|-1", RebuildMode.SEQUENTIAL);
+
+        assertEquals(3, MetricsRegistry.snapshot().getFragmentsReadded());
+        assertEquals(Arrays.asList(
+                MetricsRegistry.SECTION_SNAPSHOT, "end",
+                MetricsRegistry.SECTION_CLEAR, "end",
+                MetricsRegistry.SECTION_REMOVE, "end",
+                MetricsRegistry.SECTION_READD, "end"), sections);
+    }
+
+}
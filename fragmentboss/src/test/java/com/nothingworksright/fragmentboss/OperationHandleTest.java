@@ -0,0 +1,56 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OperationHandleTest {
+
+    @Test
+    public void complete_reportsResultsAndCallsListenersOnce() throws Exception {
+        final List<OperationHandle> called = new ArrayList<>();
+        OperationHandle handle = new OperationHandle();
+        handle.addListener(new OperationHandle.Listener() {
+            @Override
+            public void onComplete(OperationHandle completed) {
+                called.add(completed);
+            }
+        });
+        assertFalse(handle.isDone());
+
+        List<FragmentTag> backStack = Collections.singletonList(FragmentTag.of("Main", 1, -1));
+        handle.complete(backStack, 1500L, 3);
+        handle.complete(Collections.<FragmentTag>emptyList(), 1L, 1);
+
+        assertTrue(handle.isDone());
+        assertFalse(handle.isSuperseded());
+        assertEquals(backStack, handle.getFinalBackStack());
+        assertEquals(1500L, handle.getDurationNanos());
+        assertEquals(3, handle.getTransactionCount());
+        assertEquals(1, called.size());
+        assertSame(handle, called.get(0));
+        assertTrue(handle.await(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void absorb_completesTheSupersededHandleWithTheSameResults() throws Exception {
+        OperationHandle earlier = new OperationHandle();
+        OperationHandle later = new OperationHandle();
+        later.absorb(earlier);
+
+        List<FragmentTag> backStack = Collections.singletonList(FragmentTag.of("Detail", 2, 7));
+        later.complete(backStack, 10L, 2);
+
+        assertTrue(earlier.isDone());
+        assertTrue(earlier.isSuperseded());
+        assertFalse(later.isSuperseded());
+        assertEquals(backStack, earlier.getFinalBackStack());
+        assertEquals(2, earlier.getTransactionCount());
+    }
+
+}
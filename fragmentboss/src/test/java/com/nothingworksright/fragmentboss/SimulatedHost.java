@@ -0,0 +1,414 @@
+package com.nothingworksright.fragmentboss;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SimulatedHost is an in-memory {@link BackStackHost}, so that the rebuild algorithms can be
+ * measured and tested on a plain JVM.
+ *
+ * It models the parts of the support library fragment manager that the algorithms rely on. Every
+ * committed transaction is kept as a back stack record, and popping a record reverses its
+ * operations. Queued transactions run together on executePendingTransactions. When every queued
+ * transaction allows optimization, only the net change of each fragment is applied, so a
+ * fragment that is popped and added back keeps its view. A fragment has a view while it is added
+ * and not detached, hidden or not.
+ *
+ * Layers are located by a {@link BackStackIndex}, as on a device. The host counts transactions,
+ * calls to beginTransaction and executePendingTransactions, fragment adds, re-adds and removes,
+ * and view creations, so that tests can check what an operation cost. A re-add is an add of a
+ * fragment that was added before, which on a device recreates its view and its state.
+ */
+final class SimulatedHost implements BackStackHost<SimulatedHost.SimFragment>,
+        BackStackIndex.Source<SimulatedHost.SimFragment> {
+
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+    private static final int SHOW = 3;
+    private static final int HIDE = 4;
+    private static final int ATTACH = 5;
+    private static final int DETACH = 6;
+
+    private final ArrayList<Record> backStack = new ArrayList<>();
+    private final ArrayList<Record> pending = new ArrayList<>();
+    private final HashMap<String, SimFragment> added = new HashMap<>();
+    private final ArrayList<String> deferred = new ArrayList<>();
+    private final BackStackIndex<SimFragment> index = new BackStackIndex<>(this);
+    private int nextEntryId;
+
+    int transactions;
+    int beginTransactions;
+    int executes;
+    int adds;
+    int readds;
+    int removes;
+    int viewsCreated;
+    int viewsDestroyed;
+
+    /**
+     * Called to reset every counter, typically after building the starting back stack.
+     */
+    void resetCounters() {
+        transactions = 0;
+        beginTransactions = 0;
+        executes = 0;
+        adds = 0;
+        readds = 0;
+        removes = 0;
+        viewsCreated = 0;
+        viewsDestroyed = 0;
+        deferred.clear();
+    }
+
+    /**
+     * Called to get the tagCombos of the back stack, bottom first.
+     */
+    List<String> names() {
+        int backStackSize = backStack.size();
+        ArrayList<String> names = new ArrayList<>(backStackSize);
+        for (int entry = 0; entry < backStackSize; entry++) {
+            names.add(backStack.get(entry).name);
+        }
+        return names;
+    }
+
+    /**
+     * Called to get the tagCombos the last rebuilds deferred the views of.
+     */
+    List<String> deferred() {
+        return Collections.unmodifiableList(deferred);
+    }
+
+    @Override
+    public BackStackIndex<SimFragment> index() {
+        return index;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return true;
+    }
+
+    @Override
+    public int getBackStackEntryCount() {
+        return backStack.size();
+    }
+
+    @Override
+    public int getBackStackEntryIdAt(int position) {
+        return backStack.get(position).id;
+    }
+
+    @Override
+    public String getBackStackEntryNameAt(int position) {
+        return backStack.get(position).name;
+    }
+
+    @Override
+    public SimFragment findFragmentByTag(String tag) {
+        return added.get(tag);
+    }
+
+    @Override
+    public boolean isAddedWithTag(SimFragment fragment, String tag) {
+        return fragment.added && tag.equals(fragment.tag);
+    }
+
+    @Override
+    public boolean hasView(SimFragment fragment) {
+        return fragment.hasView;
+    }
+
+    @Override
+    public boolean isAdded(SimFragment fragment) {
+        return fragment.added;
+    }
+
+    @Override
+    public boolean isDetached(SimFragment fragment) {
+        return fragment.detached;
+    }
+
+    @Override
+    public void popFrom(BackStackIndex.Layer layer, boolean immediate) {
+        pending.add(Record.pop(layer.position));
+        if (immediate) {
+            runPending();
+        }
+    }
+
+    @Override
+    public BackStackHost.Transaction<SimFragment> beginTransaction() {
+        beginTransactions++;
+        return new Transaction();
+    }
+
+    @Override
+    public void executePendingTransactions() {
+        executes++;
+        runPending();
+    }
+
+    private void runPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        ArrayList<Record> toRun = new ArrayList<>(pending);
+        pending.clear();
+        runAll(toRun);
+    }
+
+    @Override
+    public void viewsDeferred(List<String> tagCombos, boolean createLater) {
+        deferred.addAll(tagCombos);
+    }
+
+    private void runAll(List<Record> toRun) {
+        // Optimization only applies when every queued transaction allows it.
+        boolean optimize = true;
+        for (Record record : toRun) {
+            if (record.popFrom < 0 && !record.allowOptimization) {
+                optimize = false;
+            }
+        }
+
+        // Remember how each fragment started, to apply only the net change when optimizing.
+        Map<SimFragment, Boolean> startedAdded = new IdentityHashMap<>();
+        for (Record record : toRun) {
+            transactions++;
+            if (record.popFrom >= 0) {
+                index.onBackStackChanged();
+                for (int entry = backStack.size() - 1; entry >= record.popFrom; entry--) {
+                    Record popped = backStack.remove(entry);
+                    for (int op = popped.ops.size() - 1; op >= 0; op--) {
+                        run(popped.ops.get(op).reversed(), optimize, startedAdded);
+                    }
+                }
+            } else {
+                for (Op op : record.ops) {
+                    run(op, optimize, startedAdded);
+                }
+                if (record.name != null) {
+                    record.id = nextEntryId++;
+                    backStack.add(record);
+                    index.onBackStackChanged();
+                }
+            }
+        }
+
+        if (optimize) {
+            for (Map.Entry<SimFragment, Boolean> start : startedAdded.entrySet()) {
+                SimFragment fragment = start.getKey();
+                if (fragment.added && !start.getValue()) {
+                    countAdd(fragment);
+                } else if (!fragment.added && start.getValue()) {
+                    removes++;
+                }
+                updateView(fragment);
+            }
+        }
+    }
+
+    private void run(Op op, boolean optimize, Map<SimFragment, Boolean> startedAdded) {
+        SimFragment fragment = op.fragment;
+        if (!startedAdded.containsKey(fragment)) {
+            startedAdded.put(fragment, fragment.added);
+        }
+        switch (op.command) {
+            case ADD:
+                if (fragment.added) {
+                    throw new IllegalStateException("Fragment already added: " + fragment.tag);
+                }
+                fragment.added = true;
+                fragment.tag = op.tag;
+                fragment.containerViewId = op.containerViewId;
+                added.put(op.tag, fragment);
+                if (!optimize) {
+                    countAdd(fragment);
+                }
+                break;
+            case REMOVE:
+                fragment.added = false;
+                if (added.get(fragment.tag) == fragment) {
+                    added.remove(fragment.tag);
+                }
+                if (!optimize) {
+                    removes++;
+                }
+                break;
+            case SHOW:
+                fragment.hidden = false;
+                break;
+            case HIDE:
+                fragment.hidden = true;
+                break;
+            case ATTACH:
+                fragment.detached = false;
+                break;
+            case DETACH:
+                fragment.detached = true;
+                break;
+            default:
+                break;
+        }
+        if (!optimize) {
+            updateView(fragment);
+        }
+    }
+
+    private void countAdd(SimFragment fragment) {
+        adds++;
+        if (fragment.timesAdded > 0) {
+            readds++;
+        }
+        fragment.timesAdded++;
+    }
+
+    private void updateView(SimFragment fragment) {
+        boolean wantsView = fragment.added && !fragment.detached;
+        if (wantsView && !fragment.hasView) {
+            fragment.hasView = true;
+            viewsCreated++;
+        } else if (!wantsView && fragment.hasView) {
+            fragment.hasView = false;
+            viewsDestroyed++;
+        }
+    }
+
+    /**
+     * This class represents a fragment in the simulated host.
+     */
+    static final class SimFragment {
+
+        String tag;
+        int containerViewId;
+        boolean added;
+        boolean detached;
+        boolean hidden;
+        boolean hasView;
+        int timesAdded;
+
+    }
+
+    /**
+     * This class represents a committed transaction, or a queued pop.
+     */
+    private static final class Record {
+
+        final ArrayList<Op> ops = new ArrayList<>();
+        int id;
+        String name;
+        boolean allowOptimization;
+        int popFrom = -1;
+
+        static Record pop(int position) {
+            Record record = new Record();
+            record.popFrom = position;
+            return record;
+        }
+
+    }
+
+    /**
+     * This class represents one operation of a transaction.
+     */
+    private static final class Op {
+
+        final int command;
+        final SimFragment fragment;
+        final int containerViewId;
+        final String tag;
+
+        Op(int command, SimFragment fragment, int containerViewId, String tag) {
+            this.command = command;
+            this.fragment = fragment;
+            this.containerViewId = containerViewId;
+            this.tag = tag;
+        }
+
+        Op reversed() {
+            switch (command) {
+                case ADD:
+                    return new Op(REMOVE, fragment, containerViewId, tag);
+                case REMOVE:
+                    return new Op(ADD, fragment, containerViewId, tag);
+                case SHOW:
+                    return new Op(HIDE, fragment, containerViewId, tag);
+                case HIDE:
+                    return new Op(SHOW, fragment, containerViewId, tag);
+                case ATTACH:
+                    return new Op(DETACH, fragment, containerViewId, tag);
+                default:
+                    return new Op(ATTACH, fragment, containerViewId, tag);
+            }
+        }
+
+    }
+
+    /**
+     * This class records the operations of one transaction.
+     */
+    private final class Transaction implements BackStackHost.Transaction<SimFragment> {
+
+        private final Record record = new Record();
+
+        @Override
+        public void add(int containerViewId, SimFragment fragment, String tag) {
+            record.ops.add(new Op(ADD, fragment, containerViewId, tag));
+        }
+
+        @Override
+        public void remove(SimFragment fragment) {
+            record.ops.add(new Op(REMOVE, fragment, fragment.containerViewId, fragment.tag));
+        }
+
+        @Override
+        public void show(SimFragment fragment) {
+            record.ops.add(new Op(SHOW, fragment, fragment.containerViewId, fragment.tag));
+        }
+
+        @Override
+        public void hide(SimFragment fragment) {
+            record.ops.add(new Op(HIDE, fragment, fragment.containerViewId, fragment.tag));
+        }
+
+        @Override
+        public void attach(SimFragment fragment) {
+            record.ops.add(new Op(ATTACH, fragment, fragment.containerViewId, fragment.tag));
+        }
+
+        @Override
+        public void detach(SimFragment fragment) {
+            record.ops.add(new Op(DETACH, fragment, fragment.containerViewId, fragment.tag));
+        }
+
+        @Override
+        public void setAllowOptimization(boolean allowOptimization) {
+            record.allowOptimization = allowOptimization;
+        }
+
+        @Override
+        public void addToBackStack(String name) {
+            record.name = name;
+        }
+
+        @Override
+        public void commit() {
+            pending.add(record);
+        }
+
+        @Override
+        public void commitNow() {
+            if (record.name != null) {
+                throw new IllegalStateException("commitNow cannot add to the back stack");
+            }
+            runAll(Collections.singletonList(record));
+        }
+
+    }
+
+}
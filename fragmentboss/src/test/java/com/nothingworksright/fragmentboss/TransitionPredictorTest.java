@@ -0,0 +1,49 @@
+package com.nothingworksright.fragmentboss;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TransitionPredictorTest {
+
+    @Test
+    public void predict_ordersByFrequencyAndSkipsUnlikelyTitles() throws Exception {
+        TransitionPredictor predictor = new TransitionPredictor();
+        for (int run = 0; run < 6; run++) {
+            predictor.record("List", "Detail");
+        }
+        for (int run = 0; run < 3; run++) {
+            predictor.record("List", "Search");
+        }
+        predictor.record("List", "Settings");
+
+        assertEquals(Arrays.asList("Detail", "Search"), predictor.predict("List", 3, 25));
+        assertEquals(Collections.singletonList("Detail"), predictor.predict("List", 1, 25));
+        assertEquals(3, predictor.predict("List", 3, 10).size());
+        assertTrue(predictor.predict("Detail", 3, 25).isEmpty());
+        assertTrue(predictor.predict(null, 3, 25).isEmpty());
+    }
+
+    @Test
+    public void record_weighsRecentNavigationMoreAndForgetsOldTitles() throws Exception {
+        TransitionPredictor predictor = new TransitionPredictor();
+        for (int run = 0; run < TransitionPredictor.MAX_ROW_TOTAL - 1; run++) {
+            predictor.record("List", "Detail");
+        }
+        // The counts are halved, so the new habit wins sooner than it would otherwise.
+        for (int run = 0; run < TransitionPredictor.MAX_ROW_TOTAL / 2 + 1; run++) {
+            predictor.record("List", "Search");
+        }
+        assertEquals("Search", predictor.predict("List", 1, 0).get(0));
+
+        for (int title = 0; title < TransitionPredictor.MAX_TITLES; title++) {
+            predictor.record("Title" + title, "Detail");
+        }
+        assertTrue(predictor.predict("List", 1, 0).isEmpty());
+        assertEquals(Collections.singletonList("Detail"), predictor.predict("Title0", 1, 0));
+    }
+
+}